@@ -0,0 +1,245 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented tests of the schema migrations, run against the device SQLite.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProductDbHelperTest {
+
+    private static final String UPGRADED_DATABASE = "migration-upgraded-test.db";
+    private static final String CREATED_DATABASE = "migration-created-test.db";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(UPGRADED_DATABASE);
+        mContext.deleteDatabase(CREATED_DATABASE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase(UPGRADED_DATABASE);
+        mContext.deleteDatabase(CREATED_DATABASE);
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsProducts() throws Exception {
+        createVersion1Database(UPGRADED_DATABASE);
+
+        SQLiteDatabase db = new ProductDbHelper(mContext, UPGRADED_DATABASE).getReadableDatabase();
+        try {
+            assertEquals(ProductDbHelper.DATABASE_VERSION, db.getVersion());
+
+            Cursor cursor = db.query(ProductEntry.TABLE_NAME, new String[]{ProductEntry.COLUMN_PRODUCT_NAME,
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null, null, ProductEntry._ID);
+            try {
+                assertEquals(3, cursor.getCount());
+                cursor.moveToFirst();
+                assertEquals("Green Tea", cursor.getString(0));
+                assertEquals(12, cursor.getInt(1));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1_indexesExistingNames() throws Exception {
+        createVersion1Database(UPGRADED_DATABASE);
+
+        SQLiteDatabase db = new ProductDbHelper(mContext, UPGRADED_DATABASE).getReadableDatabase();
+        try {
+            Cursor cursor = db.rawQuery("SELECT docid FROM " + ProductEntry.FTS_TABLE_NAME
+                    + " WHERE " + ProductEntry.FTS_TABLE_NAME + " MATCH ?", new String[]{"te*"});
+            try {
+                assertEquals(2, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1_matchesFreshSchema() throws Exception {
+        createVersion1Database(UPGRADED_DATABASE);
+
+        SQLiteDatabase upgraded = new ProductDbHelper(mContext, UPGRADED_DATABASE).getReadableDatabase();
+        SQLiteDatabase created = new ProductDbHelper(mContext, CREATED_DATABASE).getReadableDatabase();
+        try {
+            assertEquals(readSchema(created), readSchema(upgraded));
+        } finally {
+            upgraded.close();
+            created.close();
+        }
+    }
+
+    @Test
+    public void nameSort_usesNameIndex() throws Exception {
+        createVersion1Database(UPGRADED_DATABASE);
+
+        SQLiteDatabase db = new ProductDbHelper(mContext, UPGRADED_DATABASE).getReadableDatabase();
+        try {
+            String plan = explain(db, "SELECT _id, name FROM products WHERE deleted_at = 0 ORDER BY name COLLATE NOCASE");
+            assertTrue(plan, plan.contains(ProductDbHelper.INDEX_PRODUCT_NAME));
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void lowStockQuery_usesQuantityIndex() throws Exception {
+        createVersion1Database(UPGRADED_DATABASE);
+
+        SQLiteDatabase db = new ProductDbHelper(mContext, UPGRADED_DATABASE).getReadableDatabase();
+        try {
+            String plan = explain(db, "SELECT _id FROM products WHERE deleted_at = 0 AND quantity < 5");
+            assertTrue(plan, plan.contains(ProductDbHelper.INDEX_PRODUCT_QUANTITY));
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void stockStats_followWrites() throws Exception {
+        createVersion1Database(UPGRADED_DATABASE);
+
+        SQLiteDatabase db = new ProductDbHelper(mContext, UPGRADED_DATABASE).getWritableDatabase();
+        try {
+            assertEquals("3 15 2 [2, 3]", readStockStats(db));
+
+            db.execSQL("INSERT INTO products (name, quantity) VALUES ('Cocoa', 1)");
+            db.execSQL("UPDATE products SET quantity = 2 WHERE name = 'Green Tea'");
+            db.execSQL("UPDATE products SET low_stock_threshold = 0 WHERE name = 'Coffee'");
+            db.execSQL("DELETE FROM products WHERE name = 'Black Tea'");
+            assertEquals("3 3 2 [1, 4]", readStockStats(db));
+            assertEquals(readStockStats(db), scanStockStats(db));
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void stockStats_leaveOutDeletedProducts() throws Exception {
+        createVersion1Database(UPGRADED_DATABASE);
+
+        ProductDbHelper helper = new ProductDbHelper(mContext, UPGRADED_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            db.execSQL("UPDATE products SET deleted_at = 100 WHERE name IN ('Green Tea', 'Coffee')");
+            assertEquals("1 3 1 [2]", readStockStats(db));
+            db.execSQL("UPDATE products SET quantity = 1 WHERE name = 'Green Tea'");
+            assertEquals("1 3 1 [2]", readStockStats(db));
+
+            db.execSQL("UPDATE products SET deleted_at = 0 WHERE name = 'Green Tea'");
+            assertEquals("2 4 2 [1, 2]", readStockStats(db));
+            assertEquals(readStockStats(db), scanStockStats(db));
+
+            assertEquals(0, helper.purgeDeletedProducts(db, 100));
+            assertEquals(1, helper.purgeDeletedProducts(db, 101));
+            assertEquals("2 4 2 [1, 2]", readStockStats(db));
+            assertEquals(readStockStats(db), scanStockStats(db));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String readStockStats(SQLiteDatabase db) {
+        Cursor stats = db.rawQuery("SELECT product_count, total_quantity, low_stock_count FROM product_stats", null);
+        Cursor ids = db.rawQuery("SELECT product_id FROM low_stock_products ORDER BY product_id", null);
+        try {
+            return formatStockStats(stats, ids);
+        } finally {
+            stats.close();
+            ids.close();
+        }
+    }
+
+    private static String scanStockStats(SQLiteDatabase db) {
+        Cursor stats = db.rawQuery("SELECT COUNT(*), SUM(quantity), SUM(quantity < low_stock_threshold) "
+                + "FROM products WHERE deleted_at = 0", null);
+        Cursor ids = db.rawQuery("SELECT _id FROM products WHERE deleted_at = 0 "
+                + "AND quantity < low_stock_threshold ORDER BY _id", null);
+        try {
+            return formatStockStats(stats, ids);
+        } finally {
+            stats.close();
+            ids.close();
+        }
+    }
+
+    private static String formatStockStats(Cursor stats, Cursor ids) {
+        stats.moveToFirst();
+        List<Long> lowStockIds = new ArrayList<>();
+        while (ids.moveToNext()) {
+            lowStockIds.add(ids.getLong(0));
+        }
+        return stats.getInt(0) + " " + stats.getLong(1) + " " + stats.getInt(2) + " " + lowStockIds;
+    }
+
+    private void createVersion1Database(String name) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mContext.getDatabasePath(name), null);
+        try {
+            db.execSQL("CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "name TEXT NOT NULL, quantity INTEGER NOT NULL DEFAULT 0);");
+            db.execSQL("INSERT INTO products (name, quantity) VALUES ('Green Tea', 12)");
+            db.execSQL("INSERT INTO products (name, quantity) VALUES ('Black Tea', 3)");
+            db.execSQL("INSERT INTO products (name, quantity) VALUES ('Coffee', 0)");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static List<String> readSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master "
+                + "WHERE name NOT LIKE 'sqlite_%' AND name <> 'android_metadata' ORDER BY type, name", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1) + ": " + cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    static String explain(SQLiteDatabase db, String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
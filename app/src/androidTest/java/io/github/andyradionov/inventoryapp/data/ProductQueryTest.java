@@ -0,0 +1,127 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the query plan of every sort and filter combination of {@link ProductQuery} against
+ * the device SQLite.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProductQueryTest {
+
+    private static final String DATABASE = "product-query-test.db";
+
+    private static final String[] SORTS = {
+            null, ProductEntry.SORT_ID, ProductEntry.SORT_NAME, ProductEntry.SORT_QUANTITY, ProductEntry.SORT_UPDATED
+    };
+    private static final String[] FILTERS = {null, ProductEntry.FILTER_IN_STOCK, ProductEntry.FILTER_LOW_STOCK};
+    private static final String[] NAME_PREFIXES = {null, "Te"};
+
+    private static final String[] PROJECTION = {
+            ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_NAME, ProductEntry.COLUMN_PRODUCT_QUANTITY
+    };
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE);
+        mDb = new ProductDbHelper(mContext, DATABASE).getWritableDatabase();
+        mDb.execSQL("INSERT INTO products (name, quantity, updated_at) VALUES ('Green Tea', 12, 3)");
+        mDb.execSQL("INSERT INTO products (name, quantity, updated_at) VALUES ('black tea', 3, 2)");
+        mDb.execSQL("INSERT INTO products (name, quantity, updated_at) VALUES ('Coffee', 0, 1)");
+        mDb.execSQL("INSERT INTO products (name, quantity, updated_at) VALUES ('Tea Pot', 7, 4)");
+        // Deleted, so no query may return it
+        mDb.execSQL("INSERT INTO products (name, quantity, updated_at, deleted_at) VALUES ('Tea Cup', 2, 5, 6)");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void everyCombination_isIndexBacked() throws Exception {
+        for (String sort : SORTS) {
+            for (String filter : FILTERS) {
+                for (String namePrefix : NAME_PREFIXES) {
+                    ProductQuery query = ProductQuery.build(sort, filter, namePrefix);
+                    String plan = ProductDbHelperTest.explain(mDb, buildSql(query), query.getSelectionArgs())
+                            .replace("TABLE ", "");
+                    String description = sort + "/" + filter + "/" + namePrefix + ":\n" + plan;
+
+                    if (filter == null && namePrefix == null) {
+                        // The whole list, read in the order of an index
+                        assertFalse(description, plan.contains("TEMP B-TREE"));
+                        if (sort != null && !ProductEntry.SORT_ID.equals(sort)) {
+                            assertTrue(description, plan.contains("SEARCH products USING"));
+                        }
+                    } else {
+                        assertTrue(description, plan.contains("SEARCH products USING"));
+                        assertFalse(description, plan.contains("SCAN products"));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filters_selectMatchingProducts() throws Exception {
+        assertEquals("[Green Tea, black tea, Tea Pot]",
+                readNames(ProductQuery.build(null, ProductEntry.FILTER_IN_STOCK, null)));
+        assertEquals("[black tea, Coffee]",
+                readNames(ProductQuery.build(null, ProductEntry.FILTER_LOW_STOCK, null)));
+        assertEquals("[Tea Pot]", readNames(ProductQuery.build(null, null, "te")));
+        assertEquals("[Coffee]", readNames(ProductQuery.build(null, ProductEntry.FILTER_LOW_STOCK, "C")));
+    }
+
+    @Test
+    public void sorts_orderProducts() throws Exception {
+        assertEquals("[black tea, Coffee, Green Tea, Tea Pot]",
+                readNames(ProductQuery.build(ProductEntry.SORT_NAME, null, null)));
+        assertEquals("[Coffee, black tea, Tea Pot, Green Tea]",
+                readNames(ProductQuery.build(ProductEntry.SORT_QUANTITY, null, null)));
+        assertEquals("[Tea Pot, Green Tea, black tea, Coffee]",
+                readNames(ProductQuery.build(ProductEntry.SORT_UPDATED, null, null)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSort_isRejected() throws Exception {
+        ProductQuery.build("name; DROP TABLE products", null, null);
+    }
+
+    private String readNames(ProductQuery query) {
+        Cursor cursor = mDb.rawQuery(buildSql(query), query.getSelectionArgs());
+        StringBuilder names = new StringBuilder("[");
+        try {
+            while (cursor.moveToNext()) {
+                names.append(names.length() > 1 ? ", " : "").append(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names.append(']').toString();
+    }
+
+    private static String buildSql(ProductQuery query) {
+        return SQLiteQueryBuilder.buildQueryString(false, query.getTables(), PROJECTION,
+                query.getSelection(), null, null, query.getOrderBy(), null);
+    }
+}
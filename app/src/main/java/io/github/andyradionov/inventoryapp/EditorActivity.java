@@ -15,33 +15,80 @@
  */
 package io.github.andyradionov.inventoryapp;
 
+import android.content.ContentUris;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.Toast;
+
+import io.github.andyradionov.inventoryapp.data.ProductWriter;
+
+import static io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
 
 /**
- * Allows user to create a new pet or edit an existing one.
+ * Allows user to create a new product, or edit the one of the item URI it was started with.
+ * The product is loaded and saved in the background. Saves only overwrite the product if
+ * nobody changed it since it was loaded, otherwise the user chooses to overwrite or reload.
  */
-public class EditorActivity extends AppCompatActivity {
+public class EditorActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<Cursor>, ProductWriter.OnSaveListener {
 
-    public static int REQUEST_CODE_CREATE = 10;
     public static int REQUEST_CODE_EDIT = 11;
-    public static int RESPONSE_CODE_TRUE = 20;
     public static int RESPONSE_CODE_DEL = 21;
-    public static String EXTRA_REQUEST_CODE = "extra_request_code";
-    public static String EXTRA_PRODUCT_ID = "extra_product_id";
-    public static String EXTRA_PRODUCT_NAME = "extra_product_name";
-    public static String EXTRA_PRODUCT_QUANTITY = "extra_product_quantity";
+
+    private static final int ID_EDITOR_LOADER = 44;
+
+    private static final String STATE_FIELDS_LOADED = "fields_loaded";
+    private static final String STATE_VERSION = "version";
+    private static final String STATE_UPDATED_AT = "updated_at";
+    private static final String STATE_SAVING = "saving";
+
+    private static final String[] EDITOR_PROJECTION = {
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+            ProductEntry.COLUMN_PRODUCT_VERSION,
+            ProductEntry.COLUMN_PRODUCT_UPDATED_AT
+    };
 
     private EditText mProductNameEnter;
     private EditText mProductQuantityEnter;
-    private int mRequestCode;
+    private EditText mProductSkuEnter;
+
+    private ProductWriter mProductWriter;
+
+    /**
+     * Item URI of the edited product, null for a new one.
+     */
+    private Uri mProductUri;
+
+    /**
+     * Whether the fields show the product. Later loads only follow its changes, so they
+     * don't overwrite the user's edits.
+     */
+    private boolean mFieldsLoaded;
+
+    /**
+     * Version and update time of the product the fields were filled with.
+     */
+    private long mVersion;
+    private long mUpdatedAt;
+
+    /**
+     * Whether a save is running. Its result is kept by the writer while the activity is
+     * recreated, and delivered once it is resumed.
+     */
+    private boolean mSaving;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -50,15 +97,89 @@ public class EditorActivity extends AppCompatActivity {
 
         mProductNameEnter = findViewById(R.id.et_name_enter);
         mProductQuantityEnter = findViewById(R.id.et_quantity_enter);
+        mProductSkuEnter = findViewById(R.id.et_sku_enter);
+
+        mProductWriter = ProductWriter.getInstance(this);
+
+        if (savedInstanceState != null) {
+            mFieldsLoaded = savedInstanceState.getBoolean(STATE_FIELDS_LOADED);
+            mVersion = savedInstanceState.getLong(STATE_VERSION);
+            mUpdatedAt = savedInstanceState.getLong(STATE_UPDATED_AT);
+            // A restarted process has no record of the save, so saving is allowed again
+            mSaving = savedInstanceState.getBoolean(STATE_SAVING)
+                    && mProductWriter.hasUnreportedSave();
+        }
 
-        mRequestCode = getIntent().getIntExtra(EXTRA_REQUEST_CODE, -1);
-        if (mRequestCode == REQUEST_CODE_EDIT) {
-            setUpViews();
+        mProductUri = getIntent().getData();
+        if (mProductUri != null) {
+            setTitle(R.string.editor_activity_title_edit_product);
+            getSupportLoaderManager().initLoader(ID_EDITOR_LOADER, null, this);
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mProductWriter.setOnSaveListener(this);
+    }
+
+    @Override
+    protected void onPause() {
+        mProductWriter.setOnSaveListener(null);
+        if (isFinishing()) {
+            mProductWriter.abandonSaves();
+        }
+        super.onPause();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_FIELDS_LOADED, mFieldsLoaded);
+        outState.putLong(STATE_VERSION, mVersion);
+        outState.putLong(STATE_UPDATED_AT, mUpdatedAt);
+        outState.putBoolean(STATE_SAVING, mSaving);
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int loaderId, Bundle args) {
+        return new MeteredCursorLoader(this, "loader.editor", mProductUri, EDITOR_PROJECTION,
+                null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (mFieldsLoaded) {
+            return;
+        }
+        if (cursor == null || !cursor.moveToFirst()) {
+            Toast.makeText(this, R.string.product_missing_msg, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        mProductNameEnter.setText(cursor.getString(0));
+        mProductQuantityEnter.setText(String.valueOf(cursor.getInt(1)));
+        mProductSkuEnter.setText(cursor.getString(2));
+        mVersion = cursor.getLong(3);
+        mUpdatedAt = cursor.getLong(4);
+        mFieldsLoaded = true;
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+    }
+
     public void onSaveClick(View view) {
-        Intent resultIntent = new Intent();
+        save(true);
+    }
+
+    /**
+     * @param checkUnchanged whether to keep the changes of others made since the product was loaded
+     */
+    private void save(boolean checkUnchanged) {
+        if (mSaving || (mProductUri != null && !mFieldsLoaded)) {
+            return;
+        }
 
         String name = mProductNameEnter.getText().toString();
         if (TextUtils.isEmpty(name)) {
@@ -72,38 +193,62 @@ public class EditorActivity extends AppCompatActivity {
             showErrorDialog(getString(R.string.quantity_error_msg));
             return;
         }
+        String sku = mProductSkuEnter.getText().toString().trim();
 
-        resultIntent.putExtra(EXTRA_PRODUCT_NAME, name);
-        resultIntent.putExtra(EXTRA_PRODUCT_QUANTITY, quantity);
-
-        if (mRequestCode == REQUEST_CODE_EDIT) {
-            int id = getIntent().getIntExtra(EXTRA_PRODUCT_ID, -1);
-            resultIntent.putExtra(EXTRA_PRODUCT_ID, id);
+        mSaving = true;
+        if (mProductUri == null) {
+            mProductWriter.insert(name, quantity, sku);
+        } else if (checkUnchanged) {
+            mProductWriter.updateIfUnchanged((int) ContentUris.parseId(mProductUri), name, quantity, sku,
+                    mVersion, mUpdatedAt);
+        } else {
+            mProductWriter.update((int) ContentUris.parseId(mProductUri), name, quantity, sku);
         }
+    }
 
-        setResult(RESPONSE_CODE_TRUE, resultIntent);
-        finish();
+    @Override
+    public void onSaveComplete(int result) {
+        mSaving = false;
+        if (isFinishing()) {
+            return;
+        }
+        if (result == ProductWriter.SAVE_DONE) {
+            finish();
+        } else if (result == ProductWriter.SAVE_CONFLICT) {
+            showConflictDialog();
+        } else {
+            showErrorDialog(getString(R.string.write_error_msg));
+        }
     }
 
     public void onDeleteClick(View view) {
-        Intent resultIntent = new Intent();
-
-        if (mRequestCode == REQUEST_CODE_EDIT) {
-            int id = getIntent().getIntExtra(EXTRA_PRODUCT_ID, -1);
-            resultIntent.putExtra(EXTRA_PRODUCT_ID, id);
+        if (mProductUri != null) {
+            mProductWriter.delete((int) ContentUris.parseId(mProductUri));
+            // The list offers to undo the delete
+            setResult(RESPONSE_CODE_DEL, new Intent().setData(mProductUri));
         }
-
-        setResult(RESPONSE_CODE_DEL, resultIntent);
         finish();
     }
 
-    private void setUpViews() {
-        Intent startIntent = getIntent();
-        String name = startIntent.getStringExtra(EXTRA_PRODUCT_NAME);
-        int quantity = startIntent.getIntExtra(EXTRA_PRODUCT_QUANTITY, -1);
-
-        mProductNameEnter.setText(name);
-        mProductQuantityEnter.setText(String.valueOf(quantity));
+    private void showConflictDialog() {
+        new AlertDialog.Builder(this)
+                .setMessage(R.string.edit_conflict_msg)
+                .setPositiveButton(R.string.overwrite_button, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        save(false);
+                    }
+                })
+                .setNegativeButton(R.string.reload_button, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mFieldsLoaded = false;
+                        getSupportLoaderManager().restartLoader(ID_EDITOR_LOADER, null, EditorActivity.this);
+                    }
+                })
+                .setNeutralButton(R.string.cancel_button, null)
+                .create()
+                .show();
     }
 
     private void showErrorDialog(String message) {
@@ -0,0 +1,44 @@
+package io.github.andyradionov.inventoryapp;
+
+/**
+ * Writes decimal ints into caller-owned char buffers, so numbers can be shown in a
+ * {@link android.widget.TextView} without allocating a String per bind.
+ *
+ * @author Andrey Radionov
+ */
+final class IntFormatter {
+
+    /**
+     * Length of the longest int, {@link Integer#MIN_VALUE}.
+     */
+    static final int MAX_LENGTH = 11;
+
+    private IntFormatter() {
+    }
+
+    /**
+     * @param buffer of at least {@link #MAX_LENGTH} chars
+     * @return the number of chars written from the start of the buffer
+     */
+    static int format(int value, char[] buffer) {
+        long remaining = value;
+        int length = 0;
+        if (remaining < 0) {
+            buffer[length++] = '-';
+            remaining = -remaining;
+        }
+
+        int firstDigit = length;
+        do {
+            buffer[length++] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+
+        for (int i = firstDigit, j = length - 1; i < j; i++, j--) {
+            char digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+        return length;
+    }
+}
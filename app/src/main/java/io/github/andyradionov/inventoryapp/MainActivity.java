@@ -1,50 +1,174 @@
 package io.github.andyradionov.inventoryapp;
 
-import android.content.ContentValues;
+import android.content.ContentUris;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.view.ActionMode;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.InputType;
 import android.text.TextUtils;
 import android.view.Menu;
+import android.view.KeyEvent;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import io.github.andyradionov.inventoryapp.data.Product;
-import io.github.andyradionov.inventoryapp.data.ProductContract;
+import io.github.andyradionov.inventoryapp.data.ProductWriter;
 
 import static io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import static io.github.andyradionov.inventoryapp.data.ProductContract.StatsEntry;
 
 public class MainActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor>,
-        ProductAdapter.OnProductItemClickListener {
+        ProductAdapter.OnProductItemClickListener,
+        ProductWriter.OnWriteCompleteListener,
+        ProductWriter.OnTransferListener {
 
     private final String TAG = MainActivity.class.getSimpleName();
 
-    /*
-     * The columns of data that we are interested in displaying within our MainActivity's list of
-     * products data.
-     */
-    public static final String[] MAIN_PRODUCT_PROJECTION = {
-            ProductEntry._ID,
-            ProductEntry.COLUMN_PRODUCT_NAME,
-            ProductEntry.COLUMN_PRODUCT_QUANTITY
+    private static final int ID_PRODUCT_LOADER = 42;
+    private static final int ID_STATS_LOADER = 43;
+
+    private static final String[] STATS_PROJECTION = {
+            StatsEntry.COLUMN_PRODUCT_COUNT,
+            StatsEntry.COLUMN_TOTAL_QUANTITY,
+            StatsEntry.COLUMN_LOW_STOCK_COUNT
     };
 
-    public static final int INDEX_PRODUCT_ID = 0;
-    public static final int INDEX_PRODUCT_NAME = 1;
-    public static final int INDEX_PRODUCT_QUANTITY = 2;
+    /**
+     * Catalogs with at least this many products are shown page by page instead of in one cursor.
+     */
+    private static final int PAGING_THRESHOLD = 5000;
 
-    private static final int ID_PRODUCT_LOADER = 42;
+    private static final String ARG_SEARCH_QUERY = "search_query";
+
+    private static final String PREF_LIST_SORT = "list_sort";
+    private static final String PREF_LIST_FILTER = "list_filter";
+    private static final String PREF_SYNC_URL = "sync_url";
+
+    /**
+     * Delay after the last keystroke before the search runs.
+     */
+    private static final long SEARCH_DEBOUNCE_MS = 300;
+
+    private static final int SEARCH_RESULT_LIMIT = 500;
+
+    private static final int REQUEST_CODE_EXPORT_CSV = 30;
+    private static final int REQUEST_CODE_IMPORT_CSV = 31;
+    private static final int REQUEST_CODE_BACKUP = 32;
+    private static final int REQUEST_CODE_RESTORE = 33;
+
+    private static final String CSV_MIME_TYPE = "text/csv";
+    private static final String CSV_FILE_NAME = "inventory.csv";
+    private static final String SNAPSHOT_MIME_TYPE = "application/octet-stream";
+    private static final String SNAPSHOT_FILE_NAME = "inventory.invs";
+
+    /**
+     * Callbacks of the product list loader, which hands over finished snapshots instead of a
+     * cursor, so the adapter never reads a cursor owned by the loader.
+     */
+    private final LoaderManager.LoaderCallbacks<ProductRows> mProductLoaderCallbacks =
+            new LoaderManager.LoaderCallbacks<ProductRows>() {
+                @Override
+                public Loader<ProductRows> onCreateLoader(int loaderId, Bundle args) {
+                    String searchQuery = args == null ? null : args.getString(ARG_SEARCH_QUERY);
+                    if (!TextUtils.isEmpty(searchQuery)) {
+                        return new ProductRowsLoader(MainActivity.this, "loader.search",
+                                ProductEntry.buildSearchUri(searchQuery, SEARCH_RESULT_LIMIT),
+                                ProductEntry._ID + " ASC");
+                    }
+
+                    // The provider translates the sort and filter into an index-backed query
+                    return new ProductRowsLoader(MainActivity.this, "loader.products",
+                            ProductEntry.buildListUri(mSort, mFilter, null), null);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<ProductRows> loader, ProductRows rows) {
+                    mProductAdapter.swapRows(rows);
+                }
+
+                @Override
+                public void onLoaderReset(Loader<ProductRows> loader) {
+                    mProductAdapter.swapRows(null);
+                }
+            };
 
     private RecyclerView mProductsContainer;
+    private TextView mStockSummary;
     private ProductAdapter mProductAdapter;
+    private ProductWriter mProductWriter;
+    private ProductPager mProductPager;
     private int mPosition = RecyclerView.NO_POSITION;
+    private ActionMode mSelectionMode;
+
+    /**
+     * Action bar of the selection mode. Every bulk action is a single provider write, so the
+     * list refreshes once for the whole selection.
+     */
+    private final ActionMode.Callback mSelectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.selection_menu, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            long[] ids = mProductAdapter.getSelectedIds();
+            if (item.getItemId() == R.id.action_sell_selected) {
+                mProductWriter.sellAll(ids);
+                mode.finish();
+                return true;
+            } else if (item.getItemId() == R.id.action_adjust_selected) {
+                showAdjustDialog(ids);
+                return true;
+            } else if (item.getItemId() == R.id.action_delete_selected) {
+                showDeleteDialog(ids);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mSelectionMode = null;
+            mProductAdapter.setSelectionMode(false);
+        }
+    };
+
+    private final Handler mSearchHandler = new Handler();
+    private String mSearchQuery = "";
+    private String mSort = ProductEntry.SORT_ID;
+    private String mFilter;
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyListQuery();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -52,26 +176,237 @@ public class MainActivity extends AppCompatActivity implements
         setContentView(R.layout.activity_main);
 
         mProductsContainer = findViewById(R.id.rv_container_products);
+        mStockSummary = findViewById(R.id.tv_stock_summary);
         LinearLayoutManager layoutManager = new LinearLayoutManager(this, LinearLayoutManager.VERTICAL, false);
         mProductsContainer.setLayoutManager(layoutManager);
 
+        SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+        mSort = preferences.getString(PREF_LIST_SORT, ProductEntry.SORT_ID);
+        mFilter = preferences.getString(PREF_LIST_FILTER, null);
+
         mProductAdapter = new ProductAdapter(this, this);
         mProductsContainer.setAdapter(mProductAdapter);
 
-        getSupportLoaderManager().initLoader(ID_PRODUCT_LOADER, null, this);
+        mProductWriter = ProductWriter.getInstance(this);
+        mProductWriter.setOnWriteCompleteListener(this);
+        mProductWriter.setOnTransferListener(this);
+
+        getSupportLoaderManager().initLoader(ID_STATS_LOADER, null, this);
+
+        if (getSupportLoaderManager().getLoader(ID_PRODUCT_LOADER) != null) {
+            getSupportLoaderManager().initLoader(ID_PRODUCT_LOADER, null, mProductLoaderCallbacks);
+        } else {
+            ProductPager.loadCount(getContentResolver(), new ProductPager.OnCountLoadedListener() {
+                @Override
+                public void onCountLoaded(int count) {
+                    setUpProductList(count);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param productCount number of products, or {@link ProductPager#COUNT_FAILED}, in which case
+     *                     the list is loaded in one piece like a small catalog
+     */
+    private void setUpProductList(int productCount) {
+        if (isFinishing()) {
+            return;
+        }
+        if (productCount >= PAGING_THRESHOLD) {
+            mProductPager = new ProductPager(this);
+            mProductAdapter.setPager(mProductPager);
+            mProductPager.start();
+            if (!isDefaultList()) {
+                applyListQuery();
+            }
+        } else {
+            getSupportLoaderManager().initLoader(ID_PRODUCT_LOADER, null, mProductLoaderCallbacks);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mProductWriter.runMaintenanceIfDue();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mProductPager != null) {
+            mProductPager.stop();
+        }
+        mProductWriter.setOnWriteCompleteListener(null);
+        mProductWriter.setOnTransferListener(null);
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        super.onDestroy();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_menu, menu);
+
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                onSearchQueryChanged(query, 0);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                onSearchQueryChanged(newText, SEARCH_DEBOUNCE_MS);
+                return true;
+            }
+        });
+
+        menu.findItem(getSortItemId(mSort)).setChecked(true);
+        menu.findItem(getFilterItemId(mFilter)).setChecked(true);
         return true;
     }
 
+    private void onSearchQueryChanged(String query, long delayMs) {
+        mSearchQuery = query == null ? "" : query.trim();
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        mSearchHandler.postDelayed(mSearchRunnable, delayMs);
+    }
+
+    /**
+     * @return true if the whole catalog is shown in id order, which the pager can serve
+     */
+    private boolean isDefaultList() {
+        return TextUtils.isEmpty(mSearchQuery) && ProductEntry.SORT_ID.equals(mSort) && mFilter == null;
+    }
+
+    /**
+     * Shows products matching the current query, or the catalog in the selected order and filter
+     * if it is empty.
+     */
+    private void applyListQuery() {
+        if (isDefaultList()) {
+            if (mProductPager != null) {
+                getSupportLoaderManager().destroyLoader(ID_PRODUCT_LOADER);
+                mProductAdapter.setPager(mProductPager);
+            } else {
+                getSupportLoaderManager().restartLoader(ID_PRODUCT_LOADER, null, mProductLoaderCallbacks);
+            }
+            return;
+        }
+
+        if (mProductPager != null) {
+            mProductAdapter.setPager(null);
+        }
+        Bundle args = null;
+        if (!TextUtils.isEmpty(mSearchQuery)) {
+            args = new Bundle();
+            args.putString(ARG_SEARCH_QUERY, mSearchQuery);
+        }
+        getSupportLoaderManager().restartLoader(ID_PRODUCT_LOADER, args, mProductLoaderCallbacks);
+    }
+
+    private void setListOrder(String sort, String filter) {
+        mSort = sort;
+        mFilter = filter;
+        getPreferences(MODE_PRIVATE).edit()
+                .putString(PREF_LIST_SORT, sort)
+                .putString(PREF_LIST_FILTER, filter)
+                .apply();
+        applyListQuery();
+    }
+
+    private static int getSortItemId(String sort) {
+        switch (sort) {
+            case ProductEntry.SORT_NAME:
+                return R.id.action_sort_name;
+            case ProductEntry.SORT_QUANTITY:
+                return R.id.action_sort_quantity;
+            case ProductEntry.SORT_UPDATED:
+                return R.id.action_sort_updated;
+            default:
+                return R.id.action_sort_id;
+        }
+    }
+
+    private static int getFilterItemId(String filter) {
+        if (ProductEntry.FILTER_IN_STOCK.equals(filter)) {
+            return R.id.action_filter_in_stock;
+        } else if (ProductEntry.FILTER_LOW_STOCK.equals(filter)) {
+            return R.id.action_filter_low_stock;
+        }
+        return R.id.action_filter_all;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        String sort = null;
+        switch (item.getItemId()) {
+            case R.id.action_sort_id:
+                sort = ProductEntry.SORT_ID;
+                break;
+            case R.id.action_sort_name:
+                sort = ProductEntry.SORT_NAME;
+                break;
+            case R.id.action_sort_quantity:
+                sort = ProductEntry.SORT_QUANTITY;
+                break;
+            case R.id.action_sort_updated:
+                sort = ProductEntry.SORT_UPDATED;
+                break;
+        }
+        if (sort != null) {
+            item.setChecked(true);
+            setListOrder(sort, mFilter);
+            return true;
+        }
+        if (item.getItemId() == R.id.action_filter_all
+                || item.getItemId() == R.id.action_filter_in_stock
+                || item.getItemId() == R.id.action_filter_low_stock) {
+            item.setChecked(true);
+            String filter = item.getItemId() == R.id.action_filter_in_stock ? ProductEntry.FILTER_IN_STOCK
+                    : item.getItemId() == R.id.action_filter_low_stock ? ProductEntry.FILTER_LOW_STOCK : null;
+            setListOrder(mSort, filter);
+            return true;
+        }
+
         if (item.getItemId() == R.id.action_add_product) {
-            Intent startEditor = new Intent(MainActivity.this, EditorActivity.class);
-            startActivityForResult(startEditor, EditorActivity.REQUEST_CODE_CREATE);
+            startActivity(new Intent(MainActivity.this, EditorActivity.class));
+            return true;
+        } else if (item.getItemId() == R.id.action_scan_sale) {
+            showScanSaleDialog();
+            return true;
+        } else if (item.getItemId() == R.id.action_sync) {
+            showSyncDialog();
+            return true;
+        } else if (item.getItemId() == R.id.action_export_csv) {
+            Intent createDocument = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            createDocument.addCategory(Intent.CATEGORY_OPENABLE);
+            createDocument.setType(CSV_MIME_TYPE);
+            createDocument.putExtra(Intent.EXTRA_TITLE, CSV_FILE_NAME);
+            startActivityForResult(createDocument, REQUEST_CODE_EXPORT_CSV);
+            return true;
+        } else if (item.getItemId() == R.id.action_import_csv) {
+            Intent openDocument = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            openDocument.addCategory(Intent.CATEGORY_OPENABLE);
+            // Providers report CSV files under several types
+            openDocument.setType("*/*");
+            openDocument.putExtra(Intent.EXTRA_MIME_TYPES,
+                    new String[]{CSV_MIME_TYPE, "text/comma-separated-values", "text/plain"});
+            startActivityForResult(openDocument, REQUEST_CODE_IMPORT_CSV);
+            return true;
+        } else if (item.getItemId() == R.id.action_backup) {
+            Intent createDocument = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            createDocument.addCategory(Intent.CATEGORY_OPENABLE);
+            createDocument.setType(SNAPSHOT_MIME_TYPE);
+            createDocument.putExtra(Intent.EXTRA_TITLE, SNAPSHOT_FILE_NAME);
+            startActivityForResult(createDocument, REQUEST_CODE_BACKUP);
+            return true;
+        } else if (item.getItemId() == R.id.action_restore) {
+            Intent openDocument = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            openDocument.addCategory(Intent.CATEGORY_OPENABLE);
+            openDocument.setType("*/*");
+            startActivityForResult(openDocument, REQUEST_CODE_RESTORE);
             return true;
         }
         return super.onOptionsItemSelected(item);
@@ -79,132 +414,330 @@ public class MainActivity extends AppCompatActivity implements
 
     @Override
     public void onProductSaleClick(Product product) {
-        ContentValues values = new ContentValues();
-        int newQuantity = product.getQuantity() - 1;
-
-        if (newQuantity < 0) {
+        if (product.getQuantity() <= 0) {
             return;
         }
-
-        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, newQuantity);
-
-        int rowsUpdated = getContentResolver().update(ProductContract.ProductEntry.CONTENT_URI, values,
-                "_id = ?", new String[]{String.valueOf(product.getId())});
-
-        if (rowsUpdated == 1) {
-            getSupportLoaderManager().restartLoader(ID_PRODUCT_LOADER, null, this);
-        }
+        mProductWriter.sell(product.getId());
     }
 
     @Override
     public void onProductEditClick(Product product) {
+        // List rows carry only the summary columns, so the editor loads the whole product itself
         Intent startEditProduct = new Intent(MainActivity.this, EditorActivity.class);
-        startEditProduct.putExtra(EditorActivity.EXTRA_PRODUCT_ID, product.getId());
-        startEditProduct.putExtra(EditorActivity.EXTRA_PRODUCT_NAME, product.getName());
-        startEditProduct.putExtra(EditorActivity.EXTRA_PRODUCT_QUANTITY, product.getQuantity());
+        startEditProduct.setData(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, product.getId()));
 
         startActivityForResult(startEditProduct, EditorActivity.REQUEST_CODE_EDIT);
     }
 
     @Override
-    public void startActivityForResult(Intent intent, int requestCode) {
-        intent.putExtra(EditorActivity.EXTRA_REQUEST_CODE, requestCode);
-        super.startActivityForResult(intent, requestCode);
-    }
-
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (!isCorrectResult(requestCode, resultCode)) {
+    public void onProductSelectionChanged(int selectedCount) {
+        if (selectedCount == 0) {
+            if (mSelectionMode != null) {
+                mSelectionMode.finish();
+            }
             return;
         }
+        if (mSelectionMode == null) {
+            mSelectionMode = startSupportActionMode(mSelectionCallback);
+        }
+        if (mSelectionMode != null) {
+            mSelectionMode.setTitle(getString(R.string.selection_title, selectedCount));
+        }
+    }
 
-        int productId = data.getIntExtra(EditorActivity.EXTRA_PRODUCT_ID, -1);
+    private void showDeleteDialog(final long[] ids) {
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.delete_selected_title, ids.length))
+                .setNegativeButton(R.string.cancel_button, null)
+                .setPositiveButton(R.string.delete_btn, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mProductWriter.deleteAll(ids);
+                        showUndoDelete(ids);
+                        finishSelectionMode();
+                    }
+                })
+                .create()
+                .show();
+    }
+
+    private void showAdjustDialog(final long[] ids) {
+        final EditText deltaEnter = new EditText(this);
+        deltaEnter.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_SIGNED);
+        deltaEnter.setHint(R.string.adjust_selected_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.adjust_selected_title, ids.length))
+                .setView(deltaEnter)
+                .setNegativeButton(R.string.cancel_button, null)
+                .setPositiveButton(R.string.ok_button, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        int delta;
+                        try {
+                            delta = Integer.parseInt(deltaEnter.getText().toString().trim());
+                        } catch (NumberFormatException e) {
+                            Toast.makeText(MainActivity.this, R.string.quantity_error_msg,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        mProductWriter.adjustAll(ids, delta);
+                        finishSelectionMode();
+                    }
+                })
+                .create()
+                .show();
+    }
 
-        if (resultCode == EditorActivity.RESPONSE_CODE_DEL) {
-            deleteProduct(productId);
+    /**
+     * Sells one unit per scanned code. Barcode scanners attached as keyboards type the code
+     * followed by Enter, so the dialog stays open and every Enter sells the code typed so far.
+     */
+    private void showScanSaleDialog() {
+        final EditText codeEnter = new EditText(this);
+        codeEnter.setHint(R.string.scan_sale_hint);
+        codeEnter.setInputType(InputType.TYPE_CLASS_TEXT);
+        codeEnter.setImeOptions(EditorInfo.IME_ACTION_DONE);
+        codeEnter.setSingleLine();
+        codeEnter.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView view, int actionId, KeyEvent event) {
+                if (event != null && event.getAction() != KeyEvent.ACTION_DOWN) {
+                    // Swallows the key up of the Enter that was already handled
+                    return true;
+                }
+                String code = view.getText().toString().trim();
+                view.setText(null);
+                if (!code.isEmpty()) {
+                    mProductWriter.sellSku(code, mSkuSaleListener);
+                }
+                return true;
+            }
+        });
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.scan_sale_title)
+                .setView(codeEnter)
+                .setNegativeButton(R.string.close_button, null)
+                .create()
+                .show();
+        codeEnter.requestFocus();
+    }
+
+    private final ProductWriter.OnSkuSaleListener mSkuSaleListener = new ProductWriter.OnSkuSaleListener() {
+        @Override
+        public void onSkuSale(String sku, Product product, boolean sold) {
+            String message;
+            if (product == null) {
+                message = getString(R.string.scan_sale_unknown_msg, sku);
+            } else if (!sold) {
+                message = getString(R.string.scan_sale_out_of_stock_msg, product.getName());
+            } else {
+                message = getString(R.string.scan_sale_done_msg, product.getName(), product.getQuantity());
+            }
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show();
         }
+    };
 
-        String productName = data.getStringExtra(EditorActivity.EXTRA_PRODUCT_NAME);
-        int productQuantity = data.getIntExtra(EditorActivity.EXTRA_PRODUCT_QUANTITY, -1);
+    private void showSyncDialog() {
+        final EditText urlEnter = new EditText(this);
+        urlEnter.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
+        urlEnter.setHint(R.string.sync_url_hint);
+        urlEnter.setText(getPreferences(MODE_PRIVATE).getString(PREF_SYNC_URL, null));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.sync_title)
+                .setView(urlEnter)
+                .setNegativeButton(R.string.cancel_button, null)
+                .setPositiveButton(R.string.ok_button, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String url = urlEnter.getText().toString().trim();
+                        if (url.isEmpty()) {
+                            return;
+                        }
+                        getPreferences(MODE_PRIVATE).edit()
+                                .putString(PREF_SYNC_URL, url)
+                                .apply();
+                        if (getSupportActionBar() != null) {
+                            getSupportActionBar().setSubtitle(R.string.sync_started_msg);
+                        }
+                        mProductWriter.sync(url, mSyncListener);
+                    }
+                })
+                .create()
+                .show();
+    }
 
-        if (!isValidProduct(productName, productQuantity)) {
-            return;
+    private final ProductWriter.OnSyncListener mSyncListener = new ProductWriter.OnSyncListener() {
+        @Override
+        public void onSyncComplete(boolean successful, int pushed, int pulled) {
+            if (getSupportActionBar() != null) {
+                getSupportActionBar().setSubtitle(null);
+            }
+            int message = successful ? R.string.sync_done_msg : R.string.sync_error_msg;
+            Toast.makeText(MainActivity.this, getString(message, pushed, pulled), Toast.LENGTH_LONG).show();
         }
+    };
 
-        if (requestCode == EditorActivity.REQUEST_CODE_CREATE) {
-            insertProduct(productName, productQuantity);
-        } else {
-            updateProduct(productId, productName, productQuantity);
+    private void finishSelectionMode() {
+        if (mSelectionMode != null) {
+            mSelectionMode.finish();
         }
     }
 
+    /**
+     * Offers to undo a delete right away. Deletes only mark the products, so the undo is queued
+     * behind the delete and restores them as they were.
+     */
+    private void showUndoDelete(final long[] ids) {
+        String message = ids.length == 1 ? getString(R.string.delete_done_msg)
+                : getString(R.string.bulk_delete_done_msg, ids.length);
+        Snackbar.make(mProductsContainer, message, Snackbar.LENGTH_LONG)
+                .setAction(R.string.undo_button, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        mProductWriter.undeleteAll(ids);
+                    }
+                })
+                .show();
+    }
+
     @Override
-    public Loader<Cursor> onCreateLoader(int loaderId, Bundle args) {
-        if (loaderId != ID_PRODUCT_LOADER) {
-            throw new RuntimeException("Loader Not Implemented: " + loaderId);
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (isTransferRequest(requestCode)) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                startTransfer(requestCode, data.getData());
+            }
+            return;
         }
 
-        String sortOrder = ProductEntry._ID + " ASC";
-
-        return new CursorLoader(this,
-                ProductEntry.CONTENT_URI,
-                MAIN_PRODUCT_PROJECTION,
-                null, null,
-                sortOrder);
+        // The editor saves by itself, only its deletes come back to offer an undo
+        if (requestCode == EditorActivity.REQUEST_CODE_EDIT && resultCode == EditorActivity.RESPONSE_CODE_DEL
+                && data != null && data.getData() != null) {
+            showUndoDelete(new long[]{ContentUris.parseId(data.getData())});
+        }
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mProductAdapter.swapCursor(data);
+    public void onWriteComplete(int operation, int productId, boolean successful) {
+        if (successful) {
+            return;
+        }
+        int message = operation == ProductWriter.OPERATION_SALE
+                ? R.string.sale_error_msg : R.string.write_error_msg;
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mProductAdapter.swapCursor(null);
+    public void onBulkWriteComplete(int operation, int requested, int affected) {
+        String message;
+        switch (operation) {
+            case ProductWriter.OPERATION_BULK_DELETE:
+                // Announced with the undo action when the delete was requested
+                if (affected == requested) {
+                    return;
+                }
+                message = getString(R.string.bulk_delete_done_msg, affected);
+                break;
+            case ProductWriter.OPERATION_UNDELETE:
+                message = getString(R.string.undelete_done_msg, affected);
+                break;
+            case ProductWriter.OPERATION_BULK_SALE:
+                message = getString(R.string.bulk_sale_done_msg, affected, requested);
+                break;
+            default:
+                message = getString(R.string.bulk_adjust_done_msg, affected, requested);
+                break;
+        }
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
     }
 
-    private boolean isValidProduct(String name, int quantity) {
-        return !TextUtils.isEmpty(name) && quantity != -1;
+    private static boolean isTransferRequest(int requestCode) {
+        return requestCode == REQUEST_CODE_EXPORT_CSV || requestCode == REQUEST_CODE_IMPORT_CSV
+                || requestCode == REQUEST_CODE_BACKUP || requestCode == REQUEST_CODE_RESTORE;
     }
 
-    private boolean isCorrectResult(int requestCode, int responseCode) {
-        return (requestCode == EditorActivity.REQUEST_CODE_CREATE
-                || requestCode == EditorActivity.REQUEST_CODE_EDIT)
-                && (responseCode == EditorActivity.RESPONSE_CODE_TRUE
-                || responseCode == EditorActivity.RESPONSE_CODE_DEL);
+    private void startTransfer(int requestCode, Uri document) {
+        int startedMessage;
+        switch (requestCode) {
+            case REQUEST_CODE_IMPORT_CSV:
+                startedMessage = R.string.import_started_msg;
+                mProductWriter.importCsv(document);
+                break;
+            case REQUEST_CODE_EXPORT_CSV:
+                startedMessage = R.string.export_started_msg;
+                mProductWriter.exportCsv(document);
+                break;
+            case REQUEST_CODE_BACKUP:
+                startedMessage = R.string.backup_started_msg;
+                mProductWriter.backup(document);
+                break;
+            default:
+                startedMessage = R.string.restore_started_msg;
+                mProductWriter.restore(document);
+                break;
+        }
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(startedMessage);
+        }
     }
 
-    private void insertProduct(String name, int quantity) {
-        ContentValues values = new ContentValues();
-        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
-        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
-
-        Uri newUri = getContentResolver().insert(ProductEntry.CONTENT_URI, values);
-
-        if (newUri != null) {
-            getSupportLoaderManager().restartLoader(ID_PRODUCT_LOADER, null, this);
+    @Override
+    public void onTransferProgress(int operation, int rows) {
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(getString(R.string.import_progress_msg, rows));
         }
     }
 
-    private void updateProduct(int id, String name, int quantity) {
-        ContentValues values = new ContentValues();
-        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
-        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
-
-        int rowsUpdated = getContentResolver().update(ProductEntry.CONTENT_URI, values,
-                "_id = ?", new String[]{String.valueOf(id)});
+    @Override
+    public void onTransferComplete(int operation, int rows, boolean successful) {
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(null);
+        }
+        String message;
+        switch (operation) {
+            case ProductWriter.OPERATION_IMPORT:
+                message = successful ? getString(R.string.import_done_msg, rows)
+                        : getString(R.string.import_error_msg, rows);
+                break;
+            case ProductWriter.OPERATION_EXPORT:
+                message = successful ? getString(R.string.export_done_msg, rows)
+                        : getString(R.string.export_error_msg);
+                break;
+            case ProductWriter.OPERATION_BACKUP:
+                message = successful ? getString(R.string.backup_done_msg, rows)
+                        : getString(R.string.backup_error_msg);
+                break;
+            default:
+                message = successful ? getString(R.string.restore_done_msg, rows)
+                        : getString(R.string.restore_error_msg);
+                break;
+        }
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+    }
 
-        if (rowsUpdated == 1) {
-            getSupportLoaderManager().restartLoader(ID_PRODUCT_LOADER, null, this);
+    @Override
+    public Loader<Cursor> onCreateLoader(int loaderId, Bundle args) {
+        if (loaderId != ID_STATS_LOADER) {
+            throw new RuntimeException("Loader Not Implemented: " + loaderId);
         }
+        return new MeteredCursorLoader(this, "loader.stats",
+                StatsEntry.CONTENT_URI, STATS_PROJECTION, null, null, null);
     }
 
-    private void deleteProduct(int id) {
-        int rowsUpdated = getContentResolver().delete(ProductEntry.CONTENT_URI,
-                "_id = ?", new String[]{String.valueOf(id)});
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        showStockSummary(data);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+    }
 
-        if (rowsUpdated == 1) {
-            getSupportLoaderManager().restartLoader(ID_PRODUCT_LOADER, null, this);
+    private void showStockSummary(Cursor stats) {
+        if (stats == null || !stats.moveToFirst()) {
+            mStockSummary.setText(null);
+            return;
         }
+        mStockSummary.setText(getString(R.string.stock_summary,
+                stats.getInt(0), stats.getLong(1), stats.getInt(2)));
     }
 }
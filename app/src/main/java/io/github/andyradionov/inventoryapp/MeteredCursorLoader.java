@@ -0,0 +1,35 @@
+package io.github.andyradionov.inventoryapp;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+import io.github.andyradionov.inventoryapp.metrics.Metrics;
+import io.github.andyradionov.inventoryapp.metrics.OperationMetrics;
+
+/**
+ * {@link CursorLoader} that records how long each background load takes, including reloads
+ * after content changes. The load runs the query and fills the first cursor window, so this is
+ * the delay between a change and the list being able to show it.
+ *
+ * @author Andrey Radionov
+ */
+class MeteredCursorLoader extends CursorLoader {
+
+    private final OperationMetrics mLoadMetrics;
+
+    MeteredCursorLoader(Context context, String metricName, Uri uri, String[] projection,
+                        String selection, String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        mLoadMetrics = Metrics.operation(metricName);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        long start = System.nanoTime();
+        Cursor cursor = super.loadInBackground();
+        mLoadMetrics.record(start, cursor == null ? 0 : cursor.getCount());
+        return cursor;
+    }
+}
@@ -1,15 +1,24 @@
 package io.github.andyradionov.inventoryapp;
 
 import android.content.Context;
-import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 import io.github.andyradionov.inventoryapp.data.Product;
+import io.github.andyradionov.inventoryapp.metrics.Metrics;
+import io.github.andyradionov.inventoryapp.metrics.OperationMetrics;
 
 /**
  * @author Andrey Radionov
@@ -17,14 +26,81 @@ import io.github.andyradionov.inventoryapp.data.Product;
 
 public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ProductViewHolder> {
 
+    private static final Executor sDiffExecutor = Executors.newSingleThreadExecutor();
+
+    private static final OperationMetrics sCreateMetrics = Metrics.operation("adapter.create");
+    private static final OperationMetrics sBindMetrics = Metrics.operation("adapter.bind");
+    private static final OperationMetrics sBindQuantityMetrics = Metrics.operation("adapter.bind_quantity");
+    private static final OperationMetrics sDiffMetrics = Metrics.operation("adapter.diff");
+
+    /**
+     * Heap size of each snapshot, recorded in place of its row count.
+     */
+    private static final OperationMetrics sSnapshotBytesMetrics = Metrics.operation("adapter.snapshot_bytes");
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private Context mContext;
     private OnProductItemClickListener mClickListener;
-    private Cursor mCursor;
+
+    /**
+     * Last snapshot swapped in, read by the loader. All rows are bound from it outside paging
+     * mode, and it is the base for diffing the next snapshot, so the adapter never sees a cursor.
+     */
+    private ProductRows mRows = ProductRows.EMPTY;
+
+    /**
+     * Incremented by every swap, so results of outdated diffs are dropped.
+     */
+    private int mSwapGeneration;
+
+    /**
+     * Source of rows in paging mode, replaces the cursor when set.
+     */
+    private ProductPager mPager;
+
+    /**
+     * Rebinds just the selection state of a row.
+     */
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    /**
+     * Selected products by id, so the selection survives list changes and paging.
+     */
+    private final SparseBooleanArray mSelectedIds = new SparseBooleanArray();
+    private boolean mSelectionMode;
+
+    private final ProductPager.Listener mPagerListener = new ProductPager.Listener() {
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            notifyItemRangeChanged(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            notifyItemRangeInserted(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            notifyItemRangeRemoved(positionStart, itemCount);
+        }
+
+        @Override
+        public void onDataSetChanged() {
+            notifyDataSetChanged();
+        }
+    };
 
     public interface OnProductItemClickListener {
         void onProductSaleClick(Product product);
 
         void onProductEditClick(Product product);
+
+        /**
+         * Called when a long click starts selection mode and whenever the selection changes in it.
+         */
+        void onProductSelectionChanged(int selectedCount);
     }
 
     public ProductAdapter(Context context, OnProductItemClickListener clickListener) {
@@ -34,35 +110,190 @@ public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ProductV
 
     @Override
     public ProductViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        long start = System.nanoTime();
         View view = LayoutInflater.from(mContext).inflate(R.layout.item_product, parent, false);
-        return new ProductViewHolder(view);
+        ProductViewHolder holder = new ProductViewHolder(view);
+        sCreateMetrics.record(start, 1);
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(ProductViewHolder holder, int position) {
+        long start = System.nanoTime();
         holder.bind(position);
+        sBindMetrics.record(start, 1);
+    }
+
+    @Override
+    public void onBindViewHolder(ProductViewHolder holder, int position, List<Object> payloads) {
+        long start = System.nanoTime();
+        if (payloads.isEmpty() || !isPartial(payloads)) {
+            holder.bind(position);
+            sBindMetrics.record(start, 1);
+            return;
+        }
+        if (payloads.contains(ProductDiffCallback.PAYLOAD_QUANTITY)) {
+            holder.bindQuantity(position);
+        }
+        if (payloads.contains(PAYLOAD_SELECTION)) {
+            holder.bindSelection(position);
+        }
+        sBindQuantityMetrics.record(start, 1);
     }
 
     @Override
     public int getItemCount() {
-        if (null == mCursor) return 0;
-        return mCursor.getCount();
+        if (mPager != null) {
+            return mPager.getItemCount();
+        }
+        return mRows.size();
     }
 
-    void swapCursor(Cursor newCursor) {
-        mCursor = newCursor;
+    /**
+     * Switches the adapter to paging mode, rows are read from the pager instead of the snapshot.
+     */
+    void setPager(ProductPager pager) {
+        if (mPager != null) {
+            mPager.setListener(null);
+        }
+        mPager = pager;
+        if (mPager != null) {
+            mPager.setListener(mPagerListener);
+        }
         notifyDataSetChanged();
     }
 
+    /**
+     * Diffs the new rows against the current ones on a background thread and dispatches
+     * fine-grained change notifications once it is done. The current rows are shown until then.
+     * Both snapshots are immutable, so the diff thread shares nothing that may change under it.
+     */
+    void swapRows(final ProductRows newRows) {
+        final int generation = ++mSwapGeneration;
+
+        if (newRows == null) {
+            mRows = ProductRows.EMPTY;
+            notifyDataSetChanged();
+            return;
+        }
+        sSnapshotBytesMetrics.record(System.nanoTime(), newRows.getMemoryBytes());
+
+        final ProductRows oldRows = mRows;
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final DiffUtil.DiffResult diffResult =
+                        DiffUtil.calculateDiff(new ProductDiffCallback(oldRows, newRows));
+                sDiffMetrics.record(start, newRows.size());
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mSwapGeneration) {
+                            return;
+                        }
+                        mRows = newRows;
+                        diffResult.dispatchUpdatesTo(ProductAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return true if the payloads only ask for the quantity or the selection state to be rebound
+     */
+    private static boolean isPartial(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != ProductDiffCallback.PAYLOAD_QUANTITY && payload != PAYLOAD_SELECTION) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isSelectionMode() {
+        return mSelectionMode;
+    }
+
+    /**
+     * Leaving selection mode clears the selection.
+     */
+    void setSelectionMode(boolean selectionMode) {
+        if (mSelectionMode == selectionMode) {
+            return;
+        }
+        mSelectionMode = selectionMode;
+        if (!selectionMode) {
+            mSelectedIds.clear();
+            notifyItemRangeChanged(0, getItemCount(), PAYLOAD_SELECTION);
+        }
+    }
+
+    /**
+     * @return ids of the selected products, in no particular order
+     */
+    long[] getSelectedIds() {
+        long[] ids = new long[mSelectedIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mSelectedIds.keyAt(i);
+        }
+        return ids;
+    }
+
+    private void toggleSelection(int position) {
+        int id = getProductId(position);
+        if (id == -1) {
+            return;
+        }
+        if (mSelectedIds.get(id)) {
+            mSelectedIds.delete(id);
+        } else {
+            mSelectedIds.put(id, true);
+        }
+        notifyItemChanged(position, PAYLOAD_SELECTION);
+        mClickListener.onProductSelectionChanged(mSelectedIds.size());
+    }
+
+    /**
+     * @return the id of the product at the position, or -1 in paging mode while its page is loading
+     */
+    private int getProductId(int position) {
+        ProductRows rows = getRows(position);
+        int index = getRowIndex(position);
+        return rows != null && index < rows.size() ? rows.getId(index) : -1;
+    }
+
+    /**
+     * @return the snapshot holding the position, or null in paging mode while its page is loading
+     */
+    private ProductRows getRows(int position) {
+        return mPager != null ? mPager.getPage(position) : mRows;
+    }
+
+    private int getRowIndex(int position) {
+        return mPager != null ? position % ProductPager.PAGE_SIZE : position;
+    }
+
+    /**
+     * Builds a product for handing it to the click listener. Binding reads rows in place instead.
+     *
+     * @return the product at the position, or null in paging mode while its page is loading
+     */
     private Product getProduct(int position) {
-        mCursor.moveToPosition(position);
-        int id = mCursor.getInt(MainActivity.INDEX_PRODUCT_ID);
-        String name = mCursor.getString(MainActivity.INDEX_PRODUCT_NAME);
-        int quantity = mCursor.getInt(MainActivity.INDEX_PRODUCT_QUANTITY);
-        return new Product(id, name, quantity);
+        ProductRows rows = getRows(position);
+        int index = getRowIndex(position);
+        return rows != null && index < rows.size() ? rows.getProduct(index) : null;
     }
 
-    class ProductViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+    /**
+     * Row views and the buffers their numbers are written to. Buffers are owned by the holder
+     * because TextView keeps a reference to the chars it is given, and are reused for every bind.
+     * Names are set straight from the name store of the immutable snapshot.
+     */
+    class ProductViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, View.OnLongClickListener {
 
         private TextView mProductNumberDisplay;
         private TextView mProductNameDisplay;
@@ -70,6 +301,9 @@ public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ProductV
         private ImageButton mProductSaleButton;
         private ImageButton mProductEditButton;
 
+        private final char[] mIdChars = new char[IntFormatter.MAX_LENGTH];
+        private final char[] mQuantityChars = new char[IntFormatter.MAX_LENGTH];
+
         ProductViewHolder(View itemView) {
             super(itemView);
             mProductNumberDisplay = itemView.findViewById(R.id.tv_product_number);
@@ -80,25 +314,77 @@ public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ProductV
 
             mProductSaleButton.setOnClickListener(this);
             mProductEditButton.setOnClickListener(this);
+            itemView.setOnClickListener(this);
+            itemView.setOnLongClickListener(this);
         }
 
         void bind(int position) {
-            Product product = getProduct(position);
+            ProductRows rows = getRows(position);
+            int index = getRowIndex(position);
+            if (rows == null || index >= rows.size()) {
+                mProductNumberDisplay.setText(null);
+                mProductNameDisplay.setText(null);
+                mProductQuantityDisplay.setText(null);
+                itemView.setActivated(false);
+                return;
+            }
+            setNumber(mProductNumberDisplay, mIdChars, rows.getId(index));
+            itemView.setActivated(mSelectedIds.get(rows.getId(index)));
+            mProductNameDisplay.setText(rows.getNameChars(), rows.getNameStart(index), rows.getNameLength(index));
+            setNumber(mProductQuantityDisplay, mQuantityChars, rows.getQuantity(index));
+        }
+
+        void bindQuantity(int position) {
+            ProductRows rows = getRows(position);
+            int index = getRowIndex(position);
+            if (rows == null || index >= rows.size()) {
+                bind(position);
+                return;
+            }
+            setNumber(mProductQuantityDisplay, mQuantityChars, rows.getQuantity(index));
+        }
+
+        void bindSelection(int position) {
+            itemView.setActivated(mSelectedIds.get(getProductId(position)));
+        }
 
-            mProductNumberDisplay.setText(String.valueOf(product.getId()));
-            mProductNameDisplay.setText(product.getName());
-            mProductQuantityDisplay.setText(String.valueOf(product.getQuantity()));
+        private void setNumber(TextView view, char[] chars, int value) {
+            view.setText(chars, 0, IntFormatter.format(value, chars));
         }
 
         @Override
         public void onClick(View v) {
             int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            if (mSelectionMode) {
+                toggleSelection(position);
+                return;
+            }
+            if (v == itemView) {
+                return;
+            }
             Product product = getProduct(position);
+            if (product == null) {
+                return;
+            }
             if (v.getId() == mProductSaleButton.getId()) {
                 mClickListener.onProductSaleClick(product);
             } else if (v.getId() == mProductEditButton.getId()) {
                 mClickListener.onProductEditClick(product);
             }
         }
+
+        @Override
+        public boolean onLongClick(View v) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return false;
+            }
+            mSelectionMode = true;
+            toggleSelection(position);
+            return true;
+        }
     }
 }
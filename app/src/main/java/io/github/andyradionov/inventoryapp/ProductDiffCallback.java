@@ -0,0 +1,51 @@
+package io.github.andyradionov.inventoryapp;
+
+import android.support.v7.util.DiffUtil;
+
+/**
+ * Matches products by id and compares their name and quantity. A change that only touches the
+ * quantity carries {@link #PAYLOAD_QUANTITY}, so just that view has to be rebound.
+ *
+ * @author Andrey Radionov
+ */
+class ProductDiffCallback extends DiffUtil.Callback {
+
+    static final Object PAYLOAD_QUANTITY = new Object();
+
+    private final ProductRows mOldRows;
+    private final ProductRows mNewRows;
+
+    ProductDiffCallback(ProductRows oldRows, ProductRows newRows) {
+        mOldRows = oldRows;
+        mNewRows = newRows;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return mOldRows.size();
+    }
+
+    @Override
+    public int getNewListSize() {
+        return mNewRows.size();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        return mOldRows.getId(oldItemPosition) == mNewRows.getId(newItemPosition);
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        return mOldRows.getQuantity(oldItemPosition) == mNewRows.getQuantity(newItemPosition)
+                && mOldRows.hasSameName(oldItemPosition, mNewRows, newItemPosition);
+    }
+
+    @Override
+    public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+        if (mOldRows.hasSameName(oldItemPosition, mNewRows, newItemPosition)) {
+            return PAYLOAD_QUANTITY;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,332 @@
+package io.github.andyradionov.inventoryapp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import static io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Loads the product list in pages of {@link #PAGE_SIZE} rows using keyset pagination on the id.
+ * Pages are fetched in the background as the list scrolls towards them, and only
+ * {@link #MAX_LOADED_PAGES} pages are kept in memory regardless of the catalog size.
+ * <p>
+ * All methods must be called on the main thread.
+ *
+ * @author Andrey Radionov
+ */
+class ProductPager {
+
+    private static final String TAG = ProductPager.class.getSimpleName();
+
+    static final int PAGE_SIZE = 100;
+
+    private static final int MAX_LOADED_PAGES = 6;
+
+    /**
+     * How close to the edge of a page a bind has to be to start loading the neighbouring page.
+     */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    private static final Executor sLoadExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Receives changes of the paged list.
+     */
+    interface Listener {
+        void onItemRangeChanged(int positionStart, int itemCount);
+
+        void onItemRangeInserted(int positionStart, int itemCount);
+
+        void onItemRangeRemoved(int positionStart, int itemCount);
+
+        void onDataSetChanged();
+    }
+
+    interface OnCountLoadedListener {
+        /**
+         * @param count number of products, or {@link #COUNT_FAILED} if it couldn't be read
+         */
+        void onCountLoaded(int count);
+    }
+
+    static final int COUNT_FAILED = -1;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private Listener mListener;
+
+    private final SparseArray<ProductRows> mPages = new SparseArray<>();
+
+    /**
+     * Pages loaded before the last change, shown until their reloads arrive.
+     */
+    private final SparseArray<ProductRows> mStalePages = new SparseArray<>();
+    private final SparseBooleanArray mLoadingPages = new SparseBooleanArray();
+
+    /**
+     * Id after which each discovered page starts. Page 0 starts after id 0.
+     */
+    private int[] mPageStarts = new int[16];
+
+    /**
+     * Number of pages discovered so far; all of them but the last one are full.
+     */
+    private int mPageCount;
+    private int mLastPageSize;
+    private int mLastAccessedPage;
+
+    /**
+     * Incremented on every invalidation, so pages loaded before a change are dropped.
+     */
+    private int mGeneration;
+
+    ProductPager(Context context) {
+        mContentResolver = context.getContentResolver();
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    void start() {
+        mContentResolver.registerContentObserver(ProductEntry.CONTENT_URI, true, mObserver);
+        requestPage(0);
+    }
+
+    void stop() {
+        mContentResolver.unregisterContentObserver(mObserver);
+        mGeneration++;
+    }
+
+    int getItemCount() {
+        return mPageCount == 0 ? 0 : (mPageCount - 1) * PAGE_SIZE + mLastPageSize;
+    }
+
+    /**
+     * Returns the page holding the position, the row within it is at
+     * {@code position % PAGE_SIZE}. Loads the page and prefetches its neighbours as needed.
+     *
+     * @return the page, its rows from before the last change while it reloads, or null if it is
+     * still loading
+     */
+    ProductRows getPage(int position) {
+        int page = position / PAGE_SIZE;
+        int offset = position % PAGE_SIZE;
+        mLastAccessedPage = page;
+
+        if (offset < PREFETCH_DISTANCE && page > 0) {
+            requestPage(page - 1);
+        } else if (offset >= PAGE_SIZE - PREFETCH_DISTANCE) {
+            requestPage(page + 1);
+        }
+
+        ProductRows rows = mPages.get(page);
+        if (rows == null) {
+            requestPage(page);
+            rows = mStalePages.get(page);
+        }
+        return rows;
+    }
+
+    /**
+     * Marks the loaded pages stale but keeps the page boundaries, then reloads the pages around
+     * the last bound position. The list keeps showing the stale rows until the new ones arrive.
+     */
+    private void invalidate() {
+        mGeneration++;
+        for (int i = 0; i < mPages.size(); i++) {
+            mStalePages.put(mPages.keyAt(i), mPages.valueAt(i));
+        }
+        mPages.clear();
+        mLoadingPages.clear();
+        requestPage(mLastAccessedPage);
+        requestPage(mLastAccessedPage + 1);
+    }
+
+    private void requestPage(final int page) {
+        boolean isKnown = page < mPageCount;
+        boolean isNext = page == mPageCount && (mPageCount == 0 || mLastPageSize == PAGE_SIZE);
+        if (!(isKnown || isNext) || mPages.get(page) != null || mLoadingPages.get(page)) {
+            return;
+        }
+        mLoadingPages.put(page, true);
+
+        final int generation = mGeneration;
+        final int afterId = mPageStarts[page];
+        sLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ProductRows rows = loadPage(afterId);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mLoadingPages.delete(page);
+                        if (rows != null) {
+                            onPageLoaded(page, rows);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private ProductRows loadPage(int afterId) {
+        Cursor cursor = null;
+        try {
+            cursor = mContentResolver.query(ProductEntry.buildPageUri(afterId, PAGE_SIZE),
+                    ProductEntry.SUMMARY_PROJECTION, null, null, null);
+            return cursor == null ? null : ProductRows.from(cursor);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to load page after id " + afterId, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void onPageLoaded(int page, ProductRows rows) {
+        mPages.put(page, rows);
+        mStalePages.remove(page);
+        int start = page * PAGE_SIZE;
+        int size = rows.size();
+
+        if (page == mPageCount) {
+            mPageCount++;
+            mLastPageSize = size;
+            setNextPageStart(page, rows);
+            if (size > 0 && mListener != null) {
+                mListener.onItemRangeInserted(start, size);
+            }
+        } else if (page == mPageCount - 1) {
+            int oldSize = mLastPageSize;
+            mLastPageSize = size;
+            setNextPageStart(page, rows);
+            if (mListener != null) {
+                mListener.onItemRangeChanged(start, Math.min(oldSize, size));
+                if (size > oldSize) {
+                    mListener.onItemRangeInserted(start + oldSize, size - oldSize);
+                } else if (size < oldSize) {
+                    mListener.onItemRangeRemoved(start + size, oldSize - size);
+                }
+            }
+        } else if (size == PAGE_SIZE && rows.getId(size - 1) == mPageStarts[page + 1]) {
+            if (mListener != null) {
+                mListener.onItemRangeChanged(start, size);
+            }
+        } else {
+            // Rows were added or removed inside the page, so the following boundaries moved
+            truncateAfter(page, rows);
+        }
+
+        evictPages();
+    }
+
+    private void truncateAfter(int page, ProductRows rows) {
+        mGeneration++;
+        mLoadingPages.clear();
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            if (mPages.keyAt(i) > page) {
+                mPages.removeAt(i);
+            }
+        }
+        mStalePages.clear();
+        mPageCount = page + 1;
+        mLastPageSize = rows.size();
+        setNextPageStart(page, rows);
+        if (mListener != null) {
+            mListener.onDataSetChanged();
+        }
+    }
+
+    private void setNextPageStart(int page, ProductRows rows) {
+        if (rows.size() < PAGE_SIZE) {
+            return;
+        }
+        if (page + 1 >= mPageStarts.length) {
+            mPageStarts = Arrays.copyOf(mPageStarts, mPageStarts.length * 2);
+        }
+        mPageStarts[page + 1] = rows.getId(rows.size() - 1);
+    }
+
+    /**
+     * Keeps the memory bounded by dropping the pages farthest from the last bound position,
+     * stale ones first.
+     */
+    private void evictPages() {
+        while (mPages.size() + mStalePages.size() > MAX_LOADED_PAGES) {
+            SparseArray<ProductRows> pages = mStalePages.size() > 0 ? mStalePages : mPages;
+            pages.removeAt(findFarthest(pages));
+        }
+    }
+
+    private int findFarthest(SparseArray<ProductRows> pages) {
+        int farthest = 0;
+        for (int i = 1; i < pages.size(); i++) {
+            if (Math.abs(pages.keyAt(i) - mLastAccessedPage)
+                    > Math.abs(pages.keyAt(farthest) - mLastAccessedPage)) {
+                farthest = i;
+            }
+        }
+        return farthest;
+    }
+
+    /**
+     * Reads the number of products in the background and reports it on the main thread. The
+     * count comes from the stats row, so it doesn't depend on the size of the catalog. A failed
+     * query is logged and reported as {@link #COUNT_FAILED}.
+     */
+    static void loadCount(final ContentResolver contentResolver, final OnCountLoadedListener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int count = COUNT_FAILED;
+                Cursor cursor = null;
+                try {
+                    cursor = contentResolver.query(ProductEntry.COUNT_URI,
+                            new String[]{ProductEntry._COUNT}, null, null, null);
+                    if (cursor != null) {
+                        count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to load the product count", e);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+
+                final int productCount = count;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCountLoaded(productCount);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.andyradionov.inventoryapp;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+import io.github.andyradionov.inventoryapp.data.Product;
+
+import static io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Immutable columnar copy of the list rows of a products cursor. Rows are bound and diffed from
+ * it after the cursor has been closed, so scrolling never refills a cursor window.
+ * <p>
+ * Ids and quantities are kept in parallel arrays, and all names are packed into one char array,
+ * so a snapshot is five objects regardless of its size and binding a row allocates nothing.
+ *
+ * @author Andrey Radionov
+ */
+class ProductRows {
+
+    static final ProductRows EMPTY = new ProductRows(new int[0], new int[0], new char[0], new int[1]);
+
+    /**
+     * Initial capacity of the name store per row, the store grows as needed while reading.
+     */
+    private static final int NAME_CHARS_PER_ROW = 16;
+
+    /**
+     * Size of an array header, used to estimate the memory of a snapshot.
+     */
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final int[] mIds;
+    private final int[] mQuantities;
+
+    /**
+     * Name of row i is {@code mNameChars[mNameStarts[i]]} up to {@code mNameStarts[i + 1]}.
+     */
+    private final char[] mNameChars;
+    private final int[] mNameStarts;
+
+    private ProductRows(int[] ids, int[] quantities, char[] nameChars, int[] nameStarts) {
+        mIds = ids;
+        mQuantities = quantities;
+        mNameChars = nameChars;
+        mNameStarts = nameStarts;
+    }
+
+    /**
+     * Reads all rows of a cursor with the columns of {@link ProductEntry#SUMMARY_PROJECTION}.
+     * Names are copied straight from the cursor window, without a string per row.
+     */
+    static ProductRows from(Cursor cursor) {
+        int idColumn = cursor.getColumnIndexOrThrow(ProductEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_NAME);
+        int quantityColumn = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+
+        int count = cursor.getCount();
+        int[] ids = new int[count];
+        int[] quantities = new int[count];
+        char[] nameChars = new char[count * NAME_CHARS_PER_ROW];
+        int[] nameStarts = new int[count + 1];
+        CharArrayBuffer name = new CharArrayBuffer(NAME_CHARS_PER_ROW);
+
+        int length = 0;
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getInt(idColumn);
+            quantities[i] = cursor.getInt(quantityColumn);
+            cursor.copyStringToBuffer(nameColumn, name);
+            if (length + name.sizeCopied > nameChars.length) {
+                nameChars = Arrays.copyOf(nameChars, Math.max(nameChars.length * 2, length + name.sizeCopied));
+            }
+            System.arraycopy(name.data, 0, nameChars, length, name.sizeCopied);
+            length += name.sizeCopied;
+            nameStarts[i + 1] = length;
+        }
+        if (nameChars.length != length) {
+            nameChars = Arrays.copyOf(nameChars, length);
+        }
+        return new ProductRows(ids, quantities, nameChars, nameStarts);
+    }
+
+    int size() {
+        return mIds.length;
+    }
+
+    int getId(int position) {
+        return mIds[position];
+    }
+
+    int getQuantity(int position) {
+        return mQuantities[position];
+    }
+
+    /**
+     * Store holding all names, the name of a row starts at {@link #getNameStart}. Must not be
+     * modified.
+     */
+    char[] getNameChars() {
+        return mNameChars;
+    }
+
+    int getNameStart(int position) {
+        return mNameStarts[position];
+    }
+
+    int getNameLength(int position) {
+        return mNameStarts[position + 1] - mNameStarts[position];
+    }
+
+    /**
+     * Allocates a string, binding reads {@link #getNameChars} instead.
+     */
+    String getName(int position) {
+        return new String(mNameChars, getNameStart(position), getNameLength(position));
+    }
+
+    boolean hasSameName(int position, ProductRows other, int otherPosition) {
+        int length = getNameLength(position);
+        if (length != other.getNameLength(otherPosition)) {
+            return false;
+        }
+        int start = getNameStart(position);
+        int otherStart = other.getNameStart(otherPosition);
+        for (int i = 0; i < length; i++) {
+            if (mNameChars[start + i] != other.mNameChars[otherStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Product getProduct(int position) {
+        return new Product(mIds[position], getName(position), mQuantities[position]);
+    }
+
+    /**
+     * @return the approximate heap size of the snapshot in bytes
+     */
+    long getMemoryBytes() {
+        return 4 * ARRAY_HEADER_BYTES
+                + 4L * mIds.length + 4L * mQuantities.length
+                + 2L * mNameChars.length + 4L * mNameStarts.length;
+    }
+}
@@ -0,0 +1,101 @@
+package io.github.andyradionov.inventoryapp;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+
+import io.github.andyradionov.inventoryapp.metrics.Metrics;
+import io.github.andyradionov.inventoryapp.metrics.OperationMetrics;
+
+import static io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Loads list rows into a {@link ProductRows} snapshot on the loader thread. The cursor is read
+ * and closed right there, so no other thread ever touches it, and the main thread only gets the
+ * immutable snapshot. Products are reloaded whenever they change, like a cursor loader would.
+ *
+ * @author Andrey Radionov
+ */
+class ProductRowsLoader extends AsyncTaskLoader<ProductRows> {
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private final OperationMetrics mLoadMetrics;
+    private final Uri mUri;
+    private final String mSortOrder;
+
+    private ProductRows mRows;
+    private boolean mObserving;
+
+    /**
+     * @param uri       products to load, with the columns of {@link ProductEntry#SUMMARY_PROJECTION}
+     * @param sortOrder order of the rows, or null for the order of the uri
+     */
+    ProductRowsLoader(Context context, String metricName, Uri uri, String sortOrder) {
+        super(context);
+        mLoadMetrics = Metrics.operation(metricName);
+        mUri = uri;
+        mSortOrder = sortOrder;
+    }
+
+    @Override
+    public ProductRows loadInBackground() {
+        long start = System.nanoTime();
+        Cursor cursor = getContext().getContentResolver().query(mUri,
+                ProductEntry.SUMMARY_PROJECTION, null, null, mSortOrder);
+        if (cursor == null) {
+            mLoadMetrics.record(start, 0);
+            return ProductRows.EMPTY;
+        }
+        try {
+            ProductRows rows = ProductRows.from(cursor);
+            mLoadMetrics.record(start, rows.size());
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void deliverResult(ProductRows rows) {
+        if (isReset()) {
+            return;
+        }
+        mRows = rows;
+        if (isStarted()) {
+            super.deliverResult(rows);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            // The cursor is closed after loading, so changes are observed on the products uri
+            getContext().getContentResolver().registerContentObserver(
+                    ProductEntry.CONTENT_URI, true, mObserver);
+            mObserving = true;
+        }
+        if (mRows != null) {
+            deliverResult(mRows);
+        }
+        if (takeContentChanged() || mRows == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mRows = null;
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+    }
+}
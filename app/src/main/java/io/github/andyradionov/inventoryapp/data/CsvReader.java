@@ -0,0 +1,105 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Streaming RFC 4180 parser. Reads one record at a time through a fixed-size buffer, so memory
+ * use doesn't depend on the size of the input. Quoted fields may contain commas, quotes written
+ * as two quotes, and line breaks.
+ *
+ * @author Andrey Radionov
+ */
+final class CsvReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+
+    private final StringBuilder mField = new StringBuilder();
+
+    CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Reads the next record into {@code fields}, replacing its contents.
+     *
+     * @return false if the input is exhausted
+     */
+    boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        mField.setLength(0);
+
+        int c = read();
+        if (c == -1) {
+            return false;
+        }
+
+        boolean quoted = false;
+        boolean fieldWasQuoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field");
+                }
+                if (c == '"') {
+                    int next = read();
+                    if (next == '"') {
+                        mField.append('"');
+                    } else {
+                        quoted = false;
+                        c = next;
+                        continue;
+                    }
+                } else {
+                    mField.append((char) c);
+                }
+            } else if (c == '"' && mField.length() == 0 && !fieldWasQuoted) {
+                quoted = true;
+                fieldWasQuoted = true;
+            } else if (c == ',') {
+                fields.add(mField.toString());
+                mField.setLength(0);
+                fieldWasQuoted = false;
+            } else if (c == '\n' || c == '\r' || c == -1) {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                fields.add(mField.toString());
+                return true;
+            } else {
+                mField.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++];
+    }
+
+    private int peek() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition];
+    }
+
+    private boolean fill() throws IOException {
+        int count = mReader.read(mBuffer, 0, mBuffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        mPosition = 0;
+        mLimit = count;
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.util.SparseArray;
+
+/**
+ * Size-bounded cache with int keys, evicting the least recently used entry when full.
+ * Keys are kept in a {@link SparseArray}, so lookups don't box them. Not thread safe.
+ *
+ * @author Andrey Radionov
+ */
+class IntLruCache<V> {
+
+    private final int mMaxSize;
+    private final SparseArray<Node<V>> mNodes;
+
+    /**
+     * Most recently used entry.
+     */
+    private Node<V> mHead;
+
+    /**
+     * Least recently used entry, the next to be evicted.
+     */
+    private Node<V> mTail;
+
+    IntLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mNodes = new SparseArray<>(maxSize);
+    }
+
+    V get(int key) {
+        Node<V> node = mNodes.get(key);
+        if (node == null) {
+            return null;
+        }
+        moveToHead(node);
+        return node.mValue;
+    }
+
+    void put(int key, V value) {
+        Node<V> node = mNodes.get(key);
+        if (node != null) {
+            node.mValue = value;
+            moveToHead(node);
+            return;
+        }
+
+        node = new Node<>(key, value);
+        mNodes.put(key, node);
+        addHead(node);
+        if (mNodes.size() > mMaxSize) {
+            remove(mTail.mKey);
+        }
+    }
+
+    void remove(int key) {
+        Node<V> node = mNodes.get(key);
+        if (node == null) {
+            return;
+        }
+        mNodes.remove(key);
+        unlink(node);
+    }
+
+    void clear() {
+        mNodes.clear();
+        mHead = null;
+        mTail = null;
+    }
+
+    int size() {
+        return mNodes.size();
+    }
+
+    private void moveToHead(Node<V> node) {
+        if (node == mHead) {
+            return;
+        }
+        unlink(node);
+        addHead(node);
+    }
+
+    private void addHead(Node<V> node) {
+        node.mPrevious = null;
+        node.mNext = mHead;
+        if (mHead != null) {
+            mHead.mPrevious = node;
+        }
+        mHead = node;
+        if (mTail == null) {
+            mTail = node;
+        }
+    }
+
+    private void unlink(Node<V> node) {
+        if (node.mPrevious != null) {
+            node.mPrevious.mNext = node.mNext;
+        } else {
+            mHead = node.mNext;
+        }
+        if (node.mNext != null) {
+            node.mNext.mPrevious = node.mPrevious;
+        } else {
+            mTail = node.mPrevious;
+        }
+        node.mPrevious = null;
+        node.mNext = null;
+    }
+
+    private static class Node<V> {
+        final int mKey;
+        V mValue;
+        Node<V> mPrevious;
+        Node<V> mNext;
+
+        Node(int key, V value) {
+            mKey = key;
+            mValue = value;
+        }
+    }
+}
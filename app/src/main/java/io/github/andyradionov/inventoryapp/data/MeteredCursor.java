@@ -0,0 +1,78 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+
+import io.github.andyradionov.inventoryapp.metrics.OperationMetrics;
+
+/**
+ * Times the cursor window fills of a provider query. SQLite only runs a query when the first
+ * window is filled, so the first fill also measures the query itself and knows the row count.
+ * Window access is passed through, so the wrapper costs no copying.
+ *
+ * @author Andrey Radionov
+ */
+class MeteredCursor extends CrossProcessCursorWrapper {
+
+    private final OperationMetrics mFillMetrics;
+
+    MeteredCursor(Cursor cursor, OperationMetrics fillMetrics) {
+        super(cursor);
+        mFillMetrics = fillMetrics;
+    }
+
+    @Override
+    public int getCount() {
+        if (getWindow() != null) {
+            return super.getCount();
+        }
+        long start = System.nanoTime();
+        int count = super.getCount();
+        mFillMetrics.record(start, count);
+        return count;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        CursorWindow window = getWindow();
+        if (window != null && position >= window.getStartPosition()
+                && position < window.getStartPosition() + window.getNumRows()) {
+            return super.moveToPosition(position);
+        }
+        if (position < 0 || position >= getCount()) {
+            return super.moveToPosition(position);
+        }
+
+        long start = System.nanoTime();
+        boolean moved = super.moveToPosition(position);
+        window = getWindow();
+        mFillMetrics.record(start, window == null ? 0 : window.getNumRows());
+        return moved;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(getPosition() + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(getCount() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(getPosition() + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(getPosition() - 1);
+    }
+}
@@ -0,0 +1,24 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the schema evolution, upgrading the database from {@link #getStartVersion()} to
+ * the next version. Steps must not wipe user data.
+ *
+ * @author Andrey Radionov
+ */
+abstract class Migration {
+
+    private final int mStartVersion;
+
+    Migration(int startVersion) {
+        mStartVersion = startVersion;
+    }
+
+    int getStartVersion() {
+        return mStartVersion;
+    }
+
+    abstract void migrate(SQLiteDatabase db);
+}
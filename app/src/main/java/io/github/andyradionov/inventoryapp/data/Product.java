@@ -8,11 +8,17 @@ public class Product {
     private int id;
     private String name;
     private int quantity;
+    private String sku;
 
     public Product(int id, String name, int quantity) {
+        this(id, name, quantity, null);
+    }
+
+    public Product(int id, String name, int quantity, String sku) {
         this.id = id;
         this.name = name;
         this.quantity = quantity;
+        this.sku = sku;
     }
 
     public int getId() {
@@ -27,6 +33,13 @@ public class Product {
         return quantity;
     }
 
+    /**
+     * @return the SKU, or null if the product has none or was read without it, like list rows
+     */
+    public String getSku() {
+        return sku;
+    }
+
     @Override
     public String toString() {
         return "Product{" +
@@ -30,6 +30,231 @@ public final class ProductContract {
 
     public static final String PATH_PRODUCTS = "products";
 
+    public static final String PATH_SEARCH = "search";
+
+    public static final String PATH_STATS = "stats";
+
+    public static final String PATH_LOW_STOCK = "low_stock";
+
+    public static final String PATH_COUNT = "count";
+
+    public static final String PATH_SKU = "sku";
+
+    public static final String PATH_MOVEMENTS = "movements";
+
+    public static final String PATH_DAILY = "daily";
+
+    /**
+     * Provider method that adds {@link #EXTRA_QUANTITY_DELTA} to the quantity of the product whose
+     * id is passed as the method argument. The change is rejected if the quantity would become
+     * negative, unless {@link #EXTRA_CLAMP} is set. On success the result bundle contains the new
+     * value under {@link #EXTRA_QUANTITY} and the applied change under {@link #EXTRA_QUANTITY_DELTA}.
+     * <p>
+     * It throws an {@link IllegalArgumentException} if the id or the delta is missing or invalid,
+     * as the other methods do for their required argument and extras.
+     */
+    public static final String METHOD_ADJUST_QUANTITY = "adjust_quantity";
+
+    public static final String EXTRA_QUANTITY_DELTA = "quantity_delta";
+
+    public static final String EXTRA_QUANTITY = "quantity";
+
+    /**
+     * Boolean extra of {@link #METHOD_ADJUST_QUANTITY}. When true, a decrease larger than the
+     * quantity takes it down to 0 instead of being rejected. It is only rejected at 0.
+     */
+    public static final String EXTRA_CLAMP = "clamp";
+
+    /**
+     * Provider method that adds {@link #EXTRA_QUANTITY_DELTA} to the quantity of every product in
+     * {@link #EXTRA_PRODUCT_IDS}, in one transaction with one change notification. Products whose
+     * quantity would become negative are left unchanged. The result bundle contains the number of
+     * changed products under {@link #EXTRA_ADJUSTED_COUNT}.
+     */
+    public static final String METHOD_ADJUST_QUANTITIES = "adjust_quantities";
+
+    public static final String EXTRA_PRODUCT_IDS = "product_ids";
+
+    public static final String EXTRA_ADJUSTED_COUNT = "adjusted_count";
+
+    /**
+     * Provider method that sells one unit of the product whose SKU is passed as the method
+     * argument, with a single UPDATE on the unique SKU index. If the SKU is known, the result
+     * bundle contains the product under {@link #EXTRA_PRODUCT_ID} and {@link #EXTRA_PRODUCT_NAME};
+     * if the unit was sold, it also contains the new quantity under {@link #EXTRA_QUANTITY}.
+     */
+    public static final String METHOD_SELL_SKU = "sell_sku";
+
+    public static final String EXTRA_PRODUCT_ID = "product_id";
+
+    public static final String EXTRA_PRODUCT_NAME = "product_name";
+
+    /**
+     * Optional int extra of {@link #METHOD_ADJUST_QUANTITY} and {@link #METHOD_ADJUST_QUANTITIES},
+     * one of the {@code REASON_} constants of {@link MovementEntry}.
+     */
+    public static final String EXTRA_REASON = "reason";
+
+    /**
+     * Provider method that restores the deleted products in {@link #EXTRA_PRODUCT_IDS}, undoing
+     * deletes that were not purged yet. The result bundle contains the number of restored products
+     * under {@link #EXTRA_ADJUSTED_COUNT}.
+     */
+    public static final String METHOD_UNDELETE = "undelete";
+
+    /**
+     * Provider method that purges products deleted longer ago than the undo period, reclaims
+     * the free pages, checkpoints the write-ahead log and refreshes query planner statistics.
+     * Should be called from a background thread while the app is idle.
+     */
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+
+    /**
+     * Provider method that exchanges the changes since the last sync with the back-office server
+     * whose URL is passed as the method argument, see {@link SyncEntry}. Does network I/O and
+     * must not be called on the main thread, nor on a thread other writes wait for. The
+     * database is only locked to apply each response. The result bundle contains the number of
+     * sent and received changes under {@link #EXTRA_SYNC_PUSHED} and {@link #EXTRA_SYNC_PULLED},
+     * and the failure under {@link #EXTRA_SYNC_ERROR} if the sync didn't complete.
+     */
+    public static final String METHOD_SYNC = "sync";
+
+    public static final String EXTRA_SYNC_PUSHED = "sync_pushed";
+
+    public static final String EXTRA_SYNC_PULLED = "sync_pulled";
+
+    public static final String EXTRA_SYNC_ERROR = "sync_error";
+
+    /**
+     * Provider method that returns the checkpoint stored for the import key passed as the method
+     * argument under {@link #EXTRA_IMPORT_RECORDS}, 0 if there is none. See
+     * {@link ImportCheckpointEntry}.
+     */
+    public static final String METHOD_GET_IMPORT_CHECKPOINT = "get_import_checkpoint";
+
+    /**
+     * Provider method that removes the checkpoint of the import key passed as the method argument.
+     */
+    public static final String METHOD_CLEAR_IMPORT_CHECKPOINT = "clear_import_checkpoint";
+
+    public static final String EXTRA_IMPORT_RECORDS = "import_records";
+
+    /**
+     * Provider method that replaces all products with the ones of the {@link ProductSnapshot}
+     * whose {@link android.os.ParcelFileDescriptor} is passed under {@link #EXTRA_SNAPSHOT}. The
+     * purge and all inserts run in one transaction, so a failed restore changes nothing. The
+     * result bundle contains the number of restored products under {@link #EXTRA_RESTORED_COUNT},
+     * or the failure under {@link #EXTRA_RESTORE_ERROR} if the snapshot is invalid.
+     */
+    public static final String METHOD_RESTORE_SNAPSHOT = "restore_snapshot";
+
+    public static final String EXTRA_SNAPSHOT = "snapshot";
+
+    public static final String EXTRA_RESTORED_COUNT = "restored_count";
+
+    public static final String EXTRA_RESTORE_ERROR = "restore_error";
+
+    /**
+     * Query parameter of {@link ProductEntry#CONTENT_URI} limiting the number of returned rows.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameter of {@link ProductEntry#CONTENT_URI} for keyset paging. Only products with a
+     * greater id are returned, ordered by id.
+     */
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Query parameter of {@link ProductEntry#CONTENT_URI} ordering the products, one of the
+     * {@code SORT_} constants of {@link ProductEntry}. Takes precedence over the sort order
+     * argument of the query.
+     */
+    public static final String QUERY_PARAMETER_SORT = "sort";
+
+    /**
+     * Query parameter of {@link ProductEntry#CONTENT_URI} limiting the products to the ones in
+     * stock or low on stock, one of the {@code FILTER_} constants of {@link ProductEntry}.
+     */
+    public static final String QUERY_PARAMETER_FILTER = "filter";
+
+    /**
+     * Query parameter of {@link ProductEntry#CONTENT_URI} limiting the products to names starting
+     * with its value, ignoring the case of ASCII letters.
+     */
+    public static final String QUERY_PARAMETER_NAME_PREFIX = "name_prefix";
+
+    /**
+     * Query parameter of product URIs passed to writes, recorded as the reason of the resulting
+     * stock movements. One of the {@code REASON_} constants of {@link MovementEntry}.
+     */
+    public static final String QUERY_PARAMETER_REASON = "reason";
+
+    /**
+     * Query parameter of product URIs passed to deletes. With the value {@code true}, the
+     * matching products are removed at once, deleted ones included, instead of being marked
+     * deleted. Nothing can be undone after a purge.
+     */
+    public static final String QUERY_PARAMETER_PURGE = "purge";
+
+    /**
+     * Query parameters of a product item URI passed to updates. Together they make the update
+     * optimistic: it changes nothing unless {@link ProductEntry#COLUMN_PRODUCT_VERSION} and
+     * {@link ProductEntry#COLUMN_PRODUCT_UPDATED_AT} still have the values the product was read
+     * with, so any write in between, including one by a sync, makes it return 0. An update with
+     * only the version is rejected.
+     */
+    public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+    public static final String QUERY_PARAMETER_EXPECTED_UPDATED_AT = "expected_updated_at";
+
+    /**
+     * Query parameters of {@link ProductEntry#CONTENT_URI} passed to bulk inserts of an import.
+     * The provider stores the number of records of the file consumed after the batch as the
+     * checkpoint of the import key, in the same transaction as the batch.
+     */
+    public static final String QUERY_PARAMETER_IMPORT_KEY = "import_key";
+    public static final String QUERY_PARAMETER_IMPORT_RECORDS = "import_records";
+
+    /**
+     * Tags a product URI with the reason of the write made through it.
+     */
+    public static Uri withReason(Uri uri, int reason) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_REASON, String.valueOf(reason))
+                .build();
+    }
+
+    /**
+     * Makes deletes through a product URI purge the products, see {@link #QUERY_PARAMETER_PURGE}.
+     */
+    public static Uri withPurge(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_PURGE, String.valueOf(true))
+                .build();
+    }
+
+    /**
+     * Makes updates through a product item URI fail if the product changed since it was read,
+     * see {@link #QUERY_PARAMETER_EXPECTED_VERSION}.
+     */
+    public static Uri withExpectedChange(Uri uri, long version, long updatedAt) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_EXPECTED_VERSION, String.valueOf(version))
+                .appendQueryParameter(QUERY_PARAMETER_EXPECTED_UPDATED_AT, String.valueOf(updatedAt))
+                .build();
+    }
+
+    /**
+     * Makes a bulk insert through a product URI store the checkpoint of an import,
+     * see {@link #QUERY_PARAMETER_IMPORT_KEY}.
+     */
+    public static Uri withImportCheckpoint(Uri uri, String importKey, long recordsRead) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_IMPORT_KEY, importKey)
+                .appendQueryParameter(QUERY_PARAMETER_IMPORT_RECORDS, String.valueOf(recordsRead))
+                .build();
+    }
+
     public static final class ProductEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCTS);
@@ -42,12 +267,351 @@ public final class ProductContract {
 
         public final static String TABLE_NAME = "products";
 
+        /**
+         * Full-text index of product names, kept in sync with {@link #TABLE_NAME} by triggers.
+         */
+        public final static String FTS_TABLE_NAME = "products_fts";
+
         public final static String _ID = BaseColumns._ID;
 
         public final static String COLUMN_PRODUCT_NAME = "name";
 
         public final static String COLUMN_PRODUCT_QUANTITY = "quantity";
+
+        /**
+         * A product is low on stock while its quantity is below this value.
+         */
+        public final static String COLUMN_PRODUCT_LOW_STOCK_THRESHOLD = "low_stock_threshold";
+
+        public final static int DEFAULT_LOW_STOCK_THRESHOLD = 5;
+
+        /**
+         * Columns of a list row. List URIs return these when the query has no projection, the
+         * URI of a single product returns all columns.
+         */
+        public static final String[] SUMMARY_PROJECTION = {
+                _ID,
+                COLUMN_PRODUCT_NAME,
+                COLUMN_PRODUCT_QUANTITY
+        };
+
+        public static final int SUMMARY_INDEX_ID = 0;
+        public static final int SUMMARY_INDEX_NAME = 1;
+        public static final int SUMMARY_INDEX_QUANTITY = 2;
+
+        /**
+         * Stock keeping unit or barcode of the product, unique if set. Empty values are stored
+         * as null.
+         */
+        public final static String COLUMN_PRODUCT_SKU = "sku";
+
+        /**
+         * Time of the last change of the product in milliseconds since the epoch, set by
+         * {@link ProductProvider} on every write. Products created before it existed have 0.
+         */
+        public final static String COLUMN_PRODUCT_UPDATED_AT = "updated_at";
+
+        /**
+         * Local change number of the last write, taken by {@link ProductProvider} from the
+         * counter in {@link SyncEntry}. Products written by a sync keep their previous value.
+         * Managed by the provider, writes must not set it, nor any of the other sync columns.
+         */
+        public final static String COLUMN_PRODUCT_VERSION = "version";
+
+        /**
+         * Id of the product on the sync server, null until the product was first synced.
+         */
+        public final static String COLUMN_PRODUCT_REMOTE_ID = "remote_id";
+
+        /**
+         * Quantity on the sync server as of the last sync. The difference to the quantity is the
+         * local change still to be sent.
+         */
+        public final static String COLUMN_PRODUCT_SYNCED_QUANTITY = "synced_quantity";
+
+        /**
+         * Sum of all quantity changes of this device already sent to the sync server.
+         */
+        public final static String COLUMN_PRODUCT_PUSHED_DELTA = "pushed_delta";
+
+        /**
+         * Time the product was deleted in milliseconds since the epoch, 0 while it is not.
+         * Deletes only set it, so they can be undone with {@link ProductContract#METHOD_UNDELETE}
+         * until maintenance purges the product. Deleted products are left out of every query.
+         * Managed by the provider, writes must not set it.
+         */
+        public final static String COLUMN_PRODUCT_DELETED_AT = "deleted_at";
+
+        public static final String SORT_ID = "id";
+
+        public static final String SORT_NAME = "name";
+
+        public static final String SORT_QUANTITY = "quantity";
+
+        /**
+         * Most recently updated first.
+         */
+        public static final String SORT_UPDATED = "updated";
+
+        public static final String FILTER_IN_STOCK = "in_stock";
+
+        public static final String FILTER_LOW_STOCK = "low_stock";
+
+        /**
+         * URI of the number of products, as a single row with the {@link #_COUNT} column. Takes
+         * the filter and name prefix parameters of {@link #CONTENT_URI}. Unfiltered and
+         * low-stock counts are read from {@link StatsEntry}, the others are counted on an index
+         * without reading the table.
+         */
+        public static final Uri COUNT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_COUNT);
+
+        public static final String CONTENT_COUNT_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_COUNT;
+
+        /**
+         * URI of the products that are low on stock. Only reads the ids maintained in
+         * {@link StatsEntry#LOW_STOCK_TABLE_NAME}, not the whole table.
+         */
+        public static final Uri LOW_STOCK_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LOW_STOCK);
+
+        /**
+         * Builds the URI of products whose name contains words starting with the words of
+         * {@code query}. Results are limited to {@code limit} rows.
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEARCH)
+                    .appendPath(query)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Builds the URI of the products sorted and filtered by the provider. Null arguments
+         * are left out.
+         *
+         * @param sort       one of the {@code SORT_} constants
+         * @param filter     one of the {@code FILTER_} constants
+         * @param namePrefix case-insensitive prefix of the names
+         */
+        public static Uri buildListUri(String sort, String filter, String namePrefix) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (sort != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SORT, sort);
+            }
+            if (filter != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_FILTER, filter);
+            }
+            if (namePrefix != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_NAME_PREFIX, namePrefix);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Builds the URI of the product with the SKU, looked up on the unique SKU index.
+         */
+        public static Uri buildSkuUri(String sku) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SKU)
+                    .appendPath(sku)
+                    .build();
+        }
+
+        /**
+         * Builds the URI of the number of products matching the filter and name prefix, either
+         * of which may be null.
+         */
+        public static Uri buildCountUri(String filter, String namePrefix) {
+            Uri.Builder builder = COUNT_URI.buildUpon();
+            if (filter != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_FILTER, filter);
+            }
+            if (namePrefix != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_NAME_PREFIX, namePrefix);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Builds the URI of the page of at most {@code limit} products following {@code afterId}.
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
     }
 
-}
+    /**
+     * Single-row summary of the products table. Triggers update it on every write, so reading
+     * it costs the same however many products there are.
+     */
+    public static final class StatsEntry {
+
+        private StatsEntry() {
+        }
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(ProductEntry.CONTENT_URI, PATH_STATS);
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        public final static String TABLE_NAME = "product_stats";
+
+        /**
+         * Ids of the products whose quantity is below their low-stock threshold.
+         */
+        public final static String LOW_STOCK_TABLE_NAME = "low_stock_products";
+
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        public final static String COLUMN_PRODUCT_COUNT = "product_count";
+
+        public final static String COLUMN_TOTAL_QUANTITY = "total_quantity";
+
+        public final static String COLUMN_LOW_STOCK_COUNT = "low_stock_count";
+    }
+
+    /**
+     * Append-only journal of quantity changes. Every write of {@link ProductProvider} that changes
+     * a quantity appends the difference here. Movements older than the retention period are
+     * rolled up into {@link DailyStockEntry} during maintenance.
+     */
+    public static final class MovementEntry {
+
+        private MovementEntry() {
+        }
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_MOVEMENTS);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS;
+
+        public final static String TABLE_NAME = "stock_movements";
+
+        public final static String _ID = BaseColumns._ID;
+
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        public final static String COLUMN_DELTA = "delta";
+
+        public final static String COLUMN_REASON = "reason";
 
+        /**
+         * Time of the write in milliseconds since the epoch.
+         */
+        public final static String COLUMN_CREATED_AT = "created_at";
+
+        public final static int REASON_OTHER = 0;
+        public final static int REASON_SALE = 1;
+        public final static int REASON_EDIT = 2;
+        public final static int REASON_IMPORT = 3;
+        public final static int REASON_DELETE = 4;
+        public final static int REASON_RESTORE = 5;
+        public final static int REASON_SYNC = 6;
+        public final static int REASON_UNDELETE = 7;
+    }
+
+    /**
+     * State of the sync with the back-office server, a single row. Every local write of a product
+     * stamps it with the next value of {@link #COLUMN_CHANGE_COUNTER}, so the products still to
+     * be sent are the ones after the watermark of {@link #COLUMN_PUSHED_VERSION} and
+     * {@link #COLUMN_PUSHED_ID}. Deleted products that were synced before are queued in
+     * {@link #TOMBSTONE_TABLE_NAME} until the server has them.
+     */
+    public static final class SyncEntry {
+
+        private SyncEntry() {
+        }
+
+        public final static String TABLE_NAME = "sync_state";
+
+        public final static String TOMBSTONE_TABLE_NAME = "sync_tombstones";
+
+        /**
+         * Random id identifying this database to the server.
+         */
+        public final static String COLUMN_DEVICE_ID = "device_id";
+
+        public final static String COLUMN_CHANGE_COUNTER = "change_counter";
+
+        /**
+         * Version of the last sent product; with {@link #COLUMN_PUSHED_ID}, the keyset position
+         * up to which products were sent.
+         */
+        public final static String COLUMN_PUSHED_VERSION = "pushed_version";
+
+        public final static String COLUMN_PUSHED_ID = "pushed_id";
+
+        /**
+         * Server revision up to which changes of the server were received.
+         */
+        public final static String COLUMN_PULLED_REVISION = "pulled_revision";
+
+        /**
+         * Column of {@link #TOMBSTONE_TABLE_NAME}, the server id of a deleted product.
+         */
+        public final static String COLUMN_REMOTE_ID = "remote_id";
+    }
+
+    /**
+     * Progress of interrupted CSV imports, one row per imported file. A row is written with each
+     * committed batch, so a resumed import neither repeats nor skips rows, and removed once the
+     * import completes.
+     */
+    public static final class ImportCheckpointEntry {
+
+        private ImportCheckpointEntry() {
+        }
+
+        public final static String TABLE_NAME = "import_checkpoints";
+
+        /**
+         * Identifies a file and its contents, so a changed file is imported from the start.
+         */
+        public final static String COLUMN_IMPORT_KEY = "import_key";
+
+        /**
+         * Data records of the file consumed by the committed batches.
+         */
+        public final static String COLUMN_RECORDS_READ = "records_read";
+    }
+
+    /**
+     * Daily totals of compacted stock movements, one row per product and day.
+     */
+    public static final class DailyStockEntry {
+
+        private DailyStockEntry() {
+        }
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(MovementEntry.CONTENT_URI, PATH_DAILY);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS
+                        + "/" + PATH_DAILY;
+
+        public final static String TABLE_NAME = "stock_daily";
+
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * Local day as the number of days since the epoch.
+         */
+        public final static String COLUMN_DAY = "day";
+
+        /**
+         * Net change of the quantity over the day.
+         */
+        public final static String COLUMN_DELTA = "delta";
+
+        /**
+         * Units sold over the day.
+         */
+        public final static String COLUMN_SOLD = "sold";
+
+        public final static String COLUMN_MOVEMENT_COUNT = "movement_count";
+    }
+}
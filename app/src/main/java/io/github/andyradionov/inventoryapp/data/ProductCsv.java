@@ -0,0 +1,281 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.MovementEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Streams products to and from CSV files with an {@code id,name,quantity,sku} header. Neither
+ * direction holds more than one batch of rows in memory, whatever the size of the file.
+ *
+ * @author Andrey Radionov
+ */
+public final class ProductCsv {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Rows inserted per transaction. A failed import can be resumed after the last committed batch.
+     */
+    static final int IMPORT_BATCH_SIZE = 500;
+
+    private static final String COLUMN_ID = "id";
+
+    private static final String[] EXPORT_PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SKU
+    };
+
+    /**
+     * Receives the progress of an import on the importing thread.
+     */
+    public interface ImportListener {
+        /**
+         * Called after each committed batch.
+         *
+         * @param recordsRead  data records of the file consumed so far, including skipped ones
+         * @param rowsImported products inserted by this import so far
+         */
+        void onBatchImported(long recordsRead, int rowsImported);
+    }
+
+    private ProductCsv() {
+    }
+
+    /**
+     * Writes all products ordered by id. The stream is flushed but not closed.
+     *
+     * @return the number of exported products
+     */
+    public static int exportProducts(ContentResolver contentResolver, OutputStream out) throws IOException {
+        Cursor cursor = contentResolver.query(ProductEntry.CONTENT_URI, EXPORT_PROJECTION,
+                null, null, ProductEntry._ID + " ASC");
+        if (cursor == null) {
+            throw new IOException("Failed to query products");
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE);
+        int rows = 0;
+        try {
+            writer.write(COLUMN_ID + ',' + ProductEntry.COLUMN_PRODUCT_NAME + ','
+                    + ProductEntry.COLUMN_PRODUCT_QUANTITY + ',' + ProductEntry.COLUMN_PRODUCT_SKU + '\n');
+            while (cursor.moveToNext()) {
+                writer.write(Integer.toString(cursor.getInt(0)));
+                writer.write(',');
+                writeField(writer, cursor.getString(1));
+                writer.write(',');
+                writer.write(Integer.toString(cursor.getInt(2)));
+                writer.write(',');
+                writeField(writer, cursor.getString(3));
+                writer.write('\n');
+                rows++;
+            }
+            writer.flush();
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Inserts the products of a CSV file in batches of {@link #IMPORT_BATCH_SIZE}, each in its own
+     * transaction. Ids in the file are ignored, imported products get new ones. Records without a
+     * name or with an invalid quantity are skipped. If no header is present the columns are
+     * expected in export order. SKUs are trimmed by the provider, an empty one means none. A SKU
+     * held by another product fails its batch, see {@link ProductProvider#bulkInsert}.
+     * <p>
+     * Each batch stores the records consumed so far as the checkpoint of {@code importKey}, in
+     * its own transaction, see {@link ProductContract.ImportCheckpointEntry}. The records an
+     * earlier failed import of the same key committed are skipped, and the checkpoint is removed
+     * once the whole file is imported.
+     *
+     * @param importKey identifies the file and its contents, see {@link #buildImportKey}
+     * @return the number of products imported by this call
+     */
+    public static int importProducts(ContentResolver contentResolver, InputStream in,
+                                     String importKey, ImportListener listener) throws IOException {
+        Bundle checkpoint = contentResolver.call(ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_GET_IMPORT_CHECKPOINT, importKey, null);
+        long skipRecords = checkpoint == null ? 0 : checkpoint.getLong(ProductContract.EXTRA_IMPORT_RECORDS);
+
+        CsvReader reader = new CsvReader(new InputStreamReader(in, UTF_8));
+        List<String> fields = new ArrayList<>();
+
+        int nameColumn = 1;
+        int quantityColumn = 2;
+        int skuColumn = 3;
+        boolean hasRecord = reader.readRecord(fields);
+        if (hasRecord && isHeader(fields)) {
+            nameColumn = indexOfIgnoreCase(fields, ProductEntry.COLUMN_PRODUCT_NAME);
+            quantityColumn = indexOfIgnoreCase(fields, ProductEntry.COLUMN_PRODUCT_QUANTITY);
+            skuColumn = indexOfIgnoreCase(fields, ProductEntry.COLUMN_PRODUCT_SKU);
+            if (nameColumn == -1) {
+                throw new IOException("CSV header has no " + ProductEntry.COLUMN_PRODUCT_NAME + " column");
+            }
+            hasRecord = reader.readRecord(fields);
+        }
+
+        Uri importUri = ProductContract.withReason(ProductEntry.CONTENT_URI, MovementEntry.REASON_IMPORT);
+        ContentValues[] batch = new ContentValues[IMPORT_BATCH_SIZE];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new ContentValues(3);
+        }
+        int batchSize = 0;
+        long recordsRead = 0;
+        int rowsImported = 0;
+
+        for (; hasRecord; hasRecord = reader.readRecord(fields)) {
+            recordsRead++;
+            if (recordsRead <= skipRecords || isBlank(fields)) {
+                continue;
+            }
+
+            String name = field(fields, nameColumn).trim();
+            int quantity = parseQuantity(field(fields, quantityColumn));
+            if (name.isEmpty() || quantity < 0) {
+                continue;
+            }
+
+            ContentValues row = batch[batchSize++];
+            row.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+            row.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+            // Always set, so all rows share one insert statement
+            row.put(ProductEntry.COLUMN_PRODUCT_SKU, field(fields, skuColumn));
+
+            if (batchSize == batch.length) {
+                rowsImported += contentResolver.bulkInsert(
+                        ProductContract.withImportCheckpoint(importUri, importKey, recordsRead), batch);
+                batchSize = 0;
+                listener.onBatchImported(recordsRead, rowsImported);
+            }
+        }
+
+        if (batchSize > 0) {
+            rowsImported += contentResolver.bulkInsert(
+                    ProductContract.withImportCheckpoint(importUri, importKey, recordsRead),
+                    Arrays.copyOf(batch, batchSize));
+        }
+        listener.onBatchImported(recordsRead, rowsImported);
+        contentResolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_CLEAR_IMPORT_CHECKPOINT,
+                importKey, null);
+        return rowsImported;
+    }
+
+    /**
+     * Builds the checkpoint key of a CSV document from its URI and, when its provider reports
+     * them, its size and last modification time, so an edited or replaced document at the same
+     * URI is imported from the start instead of resuming.
+     */
+    public static String buildImportKey(ContentResolver contentResolver, Uri source) {
+        StringBuilder key = new StringBuilder(source.toString());
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(source, null, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                appendColumn(key, cursor, OpenableColumns.SIZE);
+                appendColumn(key, cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            }
+        } catch (RuntimeException e) {
+            // Providers of plain files may not support queries, the URI alone still works
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendColumn(StringBuilder key, Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        key.append('|');
+        if (index != -1 && !cursor.isNull(index)) {
+            key.append(cursor.getLong(index));
+        }
+    }
+
+    private static void writeField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!needsQuotes) {
+            writer.write(value);
+            return;
+        }
+
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    private static boolean isHeader(List<String> fields) {
+        return indexOfIgnoreCase(fields, COLUMN_ID) != -1
+                || indexOfIgnoreCase(fields, ProductEntry.COLUMN_PRODUCT_NAME) != -1;
+    }
+
+    private static int indexOfIgnoreCase(List<String> fields, String column) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).trim().equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(List<String> fields) {
+        return fields.size() == 1 && fields.get(0).trim().isEmpty();
+    }
+
+    private static String field(List<String> fields, int index) {
+        return index >= 0 && index < fields.size() ? fields.get(index) : "";
+    }
+
+    /**
+     * @return the quantity, 0 if the field is empty, or -1 if it isn't a valid quantity
+     */
+    private static int parseQuantity(String value) {
+        String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return 0;
+        }
+        try {
+            int quantity = Integer.parseInt(trimmed);
+            return quantity < 0 ? -1 : quantity;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -16,13 +16,22 @@
 package io.github.andyradionov.inventoryapp.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
+import io.github.andyradionov.inventoryapp.data.ProductContract.ImportCheckpointEntry;
 import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.StatsEntry;
 
 /**
  * Database helper for Inventory app. Manages database creation and version management.
+ * <p>
+ * A new database is created with the version 1 schema and brought up to date by the same
+ * {@link #MIGRATIONS} that upgrade existing databases, so both always end up with one schema.
  */
 public class ProductDbHelper extends SQLiteOpenHelper {
 
@@ -33,10 +42,125 @@ public class ProductDbHelper extends SQLiteOpenHelper {
      */
     private static final String DATABASE_NAME = "inventory.db";
 
+    public static final String INDEX_PRODUCT_NAME = "products_name_idx";
+
+    public static final String INDEX_PRODUCT_QUANTITY = "products_quantity_idx";
+
+    public static final String INDEX_PRODUCT_UPDATED_AT = "products_updated_at_idx";
+
+    public static final String INDEX_PRODUCT_SKU = "products_sku_idx";
+
+    public static final String INDEX_PRODUCT_VERSION = "products_version_idx";
+
+    public static final String INDEX_PRODUCT_REMOTE_ID = "products_remote_id_idx";
+
+    /**
+     * Deleted products are kept this long, so their delete can be undone.
+     */
+    static final long UNDO_PERIOD_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * Maximum number of products purged per transaction, so writers get the database in between.
+     */
+    static final int PURGE_BATCH_SIZE = 500;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final String SQL_PURGE_BATCH = "DELETE FROM " + ProductEntry.TABLE_NAME
+            + " WHERE " + ProductEntry._ID + " IN (SELECT " + ProductEntry._ID + " FROM " + ProductEntry.TABLE_NAME
+            + " WHERE " + ProductEntry.COLUMN_PRODUCT_DELETED_AT + " > 0"
+            + " AND " + ProductEntry.COLUMN_PRODUCT_DELETED_AT + " < ? LIMIT " + PURGE_BATCH_SIZE + ")";
+
+    /**
+     * Schema steps, the migration at index i upgrades version i + 1 to i + 2. To change the
+     * schema, append a migration; the database version follows from the number of steps.
+     */
+    private static final Migration[] MIGRATIONS = {
+            new Migration(1) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createSearchIndex(db);
+                    db.execSQL("INSERT INTO " + ProductEntry.FTS_TABLE_NAME
+                            + "(" + ProductEntry.FTS_TABLE_NAME + ") VALUES('rebuild')");
+                }
+            },
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + INDEX_PRODUCT_NAME + " ON " + ProductEntry.TABLE_NAME
+                            + " (" + ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE);");
+                    db.execSQL("CREATE INDEX " + INDEX_PRODUCT_QUANTITY + " ON " + ProductEntry.TABLE_NAME
+                            + " (" + ProductEntry.COLUMN_PRODUCT_QUANTITY + ");");
+                }
+            },
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                            + ProductEntry.COLUMN_PRODUCT_LOW_STOCK_THRESHOLD + " INTEGER NOT NULL DEFAULT "
+                            + ProductEntry.DEFAULT_LOW_STOCK_THRESHOLD + ";");
+                    createStockStats(db);
+                }
+            },
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    StockLedger.createTables(db);
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                            + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0;");
+                    db.execSQL("CREATE INDEX " + INDEX_PRODUCT_UPDATED_AT + " ON " + ProductEntry.TABLE_NAME
+                            + " (" + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + ");");
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                            + ProductEntry.COLUMN_PRODUCT_SKU + " TEXT;");
+                    // Products without a SKU hold NULL, which never collides in a unique index
+                    db.execSQL("CREATE UNIQUE INDEX " + INDEX_PRODUCT_SKU + " ON " + ProductEntry.TABLE_NAME
+                            + " (" + ProductEntry.COLUMN_PRODUCT_SKU + ");");
+                }
+            },
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    ProductSync.createTables(db);
+                }
+            },
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                            + ProductEntry.COLUMN_PRODUCT_DELETED_AT + " INTEGER NOT NULL DEFAULT 0;");
+                    // Partial indexes need SQLite 3.8.0, so the list indexes lead with the deletion
+                    // time instead. The live products are the range of 0 at their start, and the
+                    // ones to purge the range after it.
+                    recreateListIndex(db, INDEX_PRODUCT_NAME, ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE");
+                    recreateListIndex(db, INDEX_PRODUCT_QUANTITY, ProductEntry.COLUMN_PRODUCT_QUANTITY);
+                    recreateListIndex(db, INDEX_PRODUCT_UPDATED_AT, ProductEntry.COLUMN_PRODUCT_UPDATED_AT);
+                    createDeletionStats(db);
+                }
+            },
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + ImportCheckpointEntry.TABLE_NAME + " ("
+                            + ImportCheckpointEntry.COLUMN_IMPORT_KEY + " TEXT PRIMARY KEY, "
+                            + ImportCheckpointEntry.COLUMN_RECORDS_READ + " INTEGER NOT NULL);");
+                }
+            }
+    };
+
     /**
-     * Database version. If you change the database schema, you must increment the database version.
+     * Database version, derived from the migrations.
      */
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = MIGRATIONS.length + 1;
 
     /**
      * Constructs a new instance of {@link ProductDbHelper}.
@@ -44,7 +168,84 @@ public class ProductDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public ProductDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    ProductDbHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Switches the connection to write-ahead logging, so the list can be read while products
+     * are written. With WAL, NORMAL synchronous mode still keeps the database consistent and
+     * only syncs on checkpoints instead of on every commit.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Only takes effect on a new database, existing ones are switched by runMaintenance
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.enableWriteAheadLogging();
+        db.setForeignKeyConstraintsEnabled(true);
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        // Negative values are KiB, so the page cache of the writing connection is 4 MiB
+        db.execSQL("PRAGMA cache_size = -4096");
+    }
+
+    /**
+     * Removes the products deleted before {@code deletedBefore}, in batches of
+     * {@link #PURGE_BATCH_SIZE} that each commit on their own. The products are found on the
+     * deletion time prefix of the list indexes, without reading the live ones.
+     *
+     * @return the number of purged products
+     */
+    int purgeDeletedProducts(SQLiteDatabase db, long deletedBefore) {
+        SQLiteStatement purge = db.compileStatement(SQL_PURGE_BATCH);
+        try {
+            purge.bindLong(1, deletedBefore);
+            int purged = 0;
+            int batch;
+            do {
+                batch = purge.executeUpdateDelete();
+                purged += batch;
+            } while (batch == PURGE_BATCH_SIZE);
+            return purged;
+        } finally {
+            purge.close();
+        }
+    }
+
+    /**
+     * Returns the free pages left by purges and compactions to the file system, moves the
+     * write-ahead log back into the database file, truncating it, and lets SQLite refresh the
+     * statistics its query planner relies on. Meant to run periodically when the app is idle.
+     * Versions of SQLite without {@code PRAGMA optimize} ignore it.
+     * <p>
+     * A database created before incremental vacuum was enabled is rebuilt once with a full
+     * {@code VACUUM}, the only way to switch it.
+     */
+    void runMaintenance(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        } else {
+            Cursor vacuum = db.rawQuery("PRAGMA incremental_vacuum", null);
+            vacuum.moveToFirst();
+            vacuum.close();
+        }
+
+        Cursor checkpoint = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            if (checkpoint.moveToFirst() && checkpoint.getInt(0) != 0) {
+                Log.w(LOG_TAG, "WAL checkpoint was blocked by an active reader");
+            }
+        } finally {
+            checkpoint.close();
+        }
+
+        Cursor optimize = db.rawQuery("PRAGMA optimize", null);
+        optimize.moveToFirst();
+        optimize.close();
     }
 
     /**
@@ -58,13 +259,165 @@ public class ProductDbHelper extends SQLiteOpenHelper {
                 + ProductEntry.COLUMN_PRODUCT_QUANTITY + " INTEGER NOT NULL DEFAULT 0);";
 
         db.execSQL(SQL_CREATE_PRODUCTS_TABLE);
+        migrate(db, 1, DATABASE_VERSION);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. {@link SQLiteOpenHelper} runs it in
+     * a transaction, so a failing step leaves the database at its old version.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        migrate(db, oldVersion, newVersion);
+    }
+
+    private static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        for (int version = fromVersion; version < toVersion; version++) {
+            Migration migration = MIGRATIONS[version - 1];
+            if (migration.getStartVersion() != version) {
+                throw new IllegalStateException("Migration from version " + version + " is out of order");
+            }
+            migration.migrate(db);
+        }
+    }
+
+    /**
+     * Creates the stock summary row and the list of low-stock product ids, fills them from the
+     * existing products and adds the triggers that keep them up to date. Each trigger adjusts
+     * the summary by the difference of the written row, so no write scans the products table.
+     */
+    private static void createStockStats(SQLiteDatabase db) {
+        String products = ProductEntry.TABLE_NAME;
+        String quantity = ProductEntry.COLUMN_PRODUCT_QUANTITY;
+        String threshold = ProductEntry.COLUMN_PRODUCT_LOW_STOCK_THRESHOLD;
+        String stats = StatsEntry.TABLE_NAME;
+        String lowStock = StatsEntry.LOW_STOCK_TABLE_NAME;
+        String productId = StatsEntry.COLUMN_PRODUCT_ID;
+        String productCount = StatsEntry.COLUMN_PRODUCT_COUNT;
+        String totalQuantity = StatsEntry.COLUMN_TOTAL_QUANTITY;
+        String lowStockCount = StatsEntry.COLUMN_LOW_STOCK_COUNT;
+
+        db.execSQL("CREATE TABLE " + stats + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + productCount + " INTEGER NOT NULL, "
+                + totalQuantity + " INTEGER NOT NULL, "
+                + lowStockCount + " INTEGER NOT NULL);");
+        db.execSQL("CREATE TABLE " + lowStock + " (" + productId + " INTEGER PRIMARY KEY);");
+
+        db.execSQL("INSERT INTO " + stats + " SELECT 1, COUNT(*), IFNULL(SUM(" + quantity + "), 0), "
+                + "IFNULL(SUM(" + quantity + " < " + threshold + "), 0) FROM " + products + ";");
+        db.execSQL("INSERT INTO " + lowStock + " SELECT " + ProductEntry._ID + " FROM " + products
+                + " WHERE " + quantity + " < " + threshold + ";");
+
+        db.execSQL("CREATE TRIGGER " + stats + "_after_insert AFTER INSERT ON " + products + " BEGIN "
+                + "UPDATE " + stats + " SET "
+                + productCount + " = " + productCount + " + 1, "
+                + totalQuantity + " = " + totalQuantity + " + new." + quantity + ", "
+                + lowStockCount + " = " + lowStockCount + " + (new." + quantity + " < new." + threshold + "); "
+                + "INSERT INTO " + lowStock + " SELECT new.rowid"
+                + " WHERE new." + quantity + " < new." + threshold + "; "
+                + "END;");
+        db.execSQL("CREATE TRIGGER " + stats + "_after_delete AFTER DELETE ON " + products + " BEGIN "
+                + "UPDATE " + stats + " SET "
+                + productCount + " = " + productCount + " - 1, "
+                + totalQuantity + " = " + totalQuantity + " - old." + quantity + ", "
+                + lowStockCount + " = " + lowStockCount + " - (old." + quantity + " < old." + threshold + "); "
+                + "DELETE FROM " + lowStock + " WHERE " + productId + " = old.rowid; "
+                + "END;");
+        db.execSQL("CREATE TRIGGER " + stats + "_after_update AFTER UPDATE OF " + quantity + ", " + threshold
+                + " ON " + products + " BEGIN "
+                + "UPDATE " + stats + " SET "
+                + totalQuantity + " = " + totalQuantity + " + new." + quantity + " - old." + quantity + ", "
+                + lowStockCount + " = " + lowStockCount + " + (new." + quantity + " < new." + threshold + ")"
+                + " - (old." + quantity + " < old." + threshold + "); "
+                + "DELETE FROM " + lowStock + " WHERE " + productId + " = old.rowid"
+                + " AND new." + quantity + " >= new." + threshold + "; "
+                + "INSERT OR IGNORE INTO " + lowStock + " SELECT new.rowid"
+                + " WHERE new." + quantity + " < new." + threshold + "; "
+                + "END;");
+    }
+
+    private static void recreateListIndex(SQLiteDatabase db, String index, String column) {
+        db.execSQL("DROP INDEX " + index + ";");
+        db.execSQL("CREATE INDEX " + index + " ON " + ProductEntry.TABLE_NAME
+                + " (" + ProductEntry.COLUMN_PRODUCT_DELETED_AT + ", " + column + ");");
+    }
+
+    /**
+     * Replaces the stock summary triggers with ones that leave deleted products out: marking a
+     * product deleted takes it out of the summary like a delete, restoring it adds it back like
+     * an insert, and purging it changes nothing.
+     */
+    private static void createDeletionStats(SQLiteDatabase db) {
+        String products = ProductEntry.TABLE_NAME;
+        String quantity = ProductEntry.COLUMN_PRODUCT_QUANTITY;
+        String threshold = ProductEntry.COLUMN_PRODUCT_LOW_STOCK_THRESHOLD;
+        String deletedAt = ProductEntry.COLUMN_PRODUCT_DELETED_AT;
+        String stats = StatsEntry.TABLE_NAME;
+        String lowStock = StatsEntry.LOW_STOCK_TABLE_NAME;
+        String productId = StatsEntry.COLUMN_PRODUCT_ID;
+        String productCount = StatsEntry.COLUMN_PRODUCT_COUNT;
+        String totalQuantity = StatsEntry.COLUMN_TOTAL_QUANTITY;
+        String lowStockCount = StatsEntry.COLUMN_LOW_STOCK_COUNT;
+
+        String addNew = "UPDATE " + stats + " SET "
+                + productCount + " = " + productCount + " + 1, "
+                + totalQuantity + " = " + totalQuantity + " + new." + quantity + ", "
+                + lowStockCount + " = " + lowStockCount + " + (new." + quantity + " < new." + threshold + "); "
+                + "INSERT OR IGNORE INTO " + lowStock + " SELECT new.rowid"
+                + " WHERE new." + quantity + " < new." + threshold + "; ";
+        String removeOld = "UPDATE " + stats + " SET "
+                + productCount + " = " + productCount + " - 1, "
+                + totalQuantity + " = " + totalQuantity + " - old." + quantity + ", "
+                + lowStockCount + " = " + lowStockCount + " - (old." + quantity + " < old." + threshold + "); "
+                + "DELETE FROM " + lowStock + " WHERE " + productId + " = old.rowid; ";
+
+        db.execSQL("DROP TRIGGER " + stats + "_after_insert;");
+        db.execSQL("DROP TRIGGER " + stats + "_after_delete;");
+        db.execSQL("DROP TRIGGER " + stats + "_after_update;");
+
+        db.execSQL("CREATE TRIGGER " + stats + "_after_insert AFTER INSERT ON " + products
+                + " WHEN new." + deletedAt + " = 0 BEGIN " + addNew + "END;");
+        db.execSQL("CREATE TRIGGER " + stats + "_after_delete AFTER DELETE ON " + products
+                + " WHEN old." + deletedAt + " = 0 BEGIN " + removeOld + "END;");
+        db.execSQL("CREATE TRIGGER " + stats + "_after_update AFTER UPDATE OF " + quantity + ", " + threshold
+                + " ON " + products + " WHEN old." + deletedAt + " = 0 AND new." + deletedAt + " = 0 BEGIN "
+                + "UPDATE " + stats + " SET "
+                + totalQuantity + " = " + totalQuantity + " + new." + quantity + " - old." + quantity + ", "
+                + lowStockCount + " = " + lowStockCount + " + (new." + quantity + " < new." + threshold + ")"
+                + " - (old." + quantity + " < old." + threshold + "); "
+                + "DELETE FROM " + lowStock + " WHERE " + productId + " = old.rowid"
+                + " AND new." + quantity + " >= new." + threshold + "; "
+                + "INSERT OR IGNORE INTO " + lowStock + " SELECT new.rowid"
+                + " WHERE new." + quantity + " < new." + threshold + "; "
+                + "END;");
+        db.execSQL("CREATE TRIGGER " + stats + "_after_mark_deleted AFTER UPDATE OF " + deletedAt
+                + " ON " + products + " WHEN old." + deletedAt + " = 0 AND new." + deletedAt + " <> 0"
+                + " BEGIN " + removeOld + "END;");
+        db.execSQL("CREATE TRIGGER " + stats + "_after_undelete AFTER UPDATE OF " + deletedAt
+                + " ON " + products + " WHEN old." + deletedAt + " <> 0 AND new." + deletedAt + " = 0"
+                + " BEGIN " + addNew + "END;");
+    }
+
+    /**
+     * Creates an external content FTS4 table over product names and the triggers that keep it
+     * in sync. Updates only reindex a row when its name changes.
+     */
+    private static void createSearchIndex(SQLiteDatabase db) {
+        String fts = ProductEntry.FTS_TABLE_NAME;
+        String products = ProductEntry.TABLE_NAME;
+        String name = ProductEntry.COLUMN_PRODUCT_NAME;
+
+        db.execSQL("CREATE VIRTUAL TABLE " + fts + " USING fts4(content=\"" + products + "\", "
+                + "prefix=\"2,3\", " + name + ");");
+
+        db.execSQL("CREATE TRIGGER " + fts + "_before_update BEFORE UPDATE OF " + name + " ON " + products
+                + " BEGIN DELETE FROM " + fts + " WHERE docid = old.rowid; END;");
+        db.execSQL("CREATE TRIGGER " + fts + "_before_delete BEFORE DELETE ON " + products
+                + " BEGIN DELETE FROM " + fts + " WHERE docid = old.rowid; END;");
+        db.execSQL("CREATE TRIGGER " + fts + "_after_update AFTER UPDATE OF " + name + " ON " + products
+                + " BEGIN INSERT INTO " + fts + "(docid, " + name + ") VALUES (new.rowid, new." + name + "); END;");
+        db.execSQL("CREATE TRIGGER " + fts + "_after_insert AFTER INSERT ON " + products
+                + " BEGIN INSERT INTO " + fts + "(docid, " + name + ") VALUES (new.rowid, new." + name + "); END;");
     }
 }
\ No newline at end of file
@@ -16,15 +16,41 @@
 package io.github.andyradionov.inventoryapp.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.DailyStockEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ImportCheckpointEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.MovementEntry;
 import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.StatsEntry;
+import io.github.andyradionov.inventoryapp.metrics.Metrics;
+import io.github.andyradionov.inventoryapp.metrics.OperationMetrics;
 
 /**
  * {@link ContentProvider} for Inventory app.
@@ -43,16 +69,166 @@ public class ProductProvider extends ContentProvider {
      */
     private static final int PRODUCT_ID = 101;
 
+    /**
+     * URI matcher code for the content URI for a product name search
+     */
+    private static final int PRODUCT_SEARCH = 102;
+
+    /**
+     * URI matcher code for the content URI for the stock summary
+     */
+    private static final int PRODUCT_STATS = 103;
+
+    /**
+     * URI matcher code for the content URI for the products low on stock
+     */
+    private static final int PRODUCT_LOW_STOCK = 104;
+
+    /**
+     * URI matcher code for the content URI for the stock movements
+     */
+    private static final int MOVEMENTS = 105;
+
+    /**
+     * URI matcher code for the content URI for the daily stock totals
+     */
+    private static final int MOVEMENTS_DAILY = 106;
+
+    /**
+     * URI matcher code for the content URI for the number of products
+     */
+    private static final int PRODUCT_COUNT = 107;
+
+    /**
+     * URI matcher code for the content URI for the product with a SKU
+     */
+    private static final int PRODUCT_SKU = 108;
+
+    private static final String SQL_ADJUST_QUANTITY = "UPDATE " + ProductEntry.TABLE_NAME
+            + " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?, "
+            + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = ?, "
+            + ProductEntry.COLUMN_PRODUCT_VERSION + " = ?"
+            + " WHERE " + ProductEntry._ID + " = ?"
+            + " AND " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ? >= 0"
+            + " AND " + ProductQuery.SELECTION_LIVE_UNINDEXED;
+
+    private static final String SQL_SELL_SKU = "UPDATE " + ProductEntry.TABLE_NAME
+            + " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " - 1, "
+            + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = ?, "
+            + ProductEntry.COLUMN_PRODUCT_VERSION + " = ?"
+            + " WHERE " + ProductEntry.COLUMN_PRODUCT_SKU + " = ?"
+            + " AND " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " > 0"
+            + " AND " + ProductQuery.SELECTION_LIVE_UNINDEXED;
+
+    private static final String SQL_SELECT_BY_SKU = "SELECT " + ProductEntry._ID + ", "
+            + ProductEntry.COLUMN_PRODUCT_NAME + ", " + ProductEntry.COLUMN_PRODUCT_QUANTITY
+            + " FROM " + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry.COLUMN_PRODUCT_SKU + " = ?"
+            + " AND " + ProductQuery.SELECTION_LIVE_UNINDEXED;
+
+    /**
+     * Deleted products keep their SKU so they can be restored. A write giving the SKU to
+     * another product purges the deleted one holding it.
+     */
+    private static final String SQL_PURGE_DELETED_SKU = "DELETE FROM " + ProductEntry.TABLE_NAME
+            + " WHERE " + ProductEntry.COLUMN_PRODUCT_SKU + " = ?"
+            + " AND +" + ProductEntry.COLUMN_PRODUCT_DELETED_AT + " <> 0";
+
+    private static final String SQL_SELECT_QUANTITY = "SELECT " + ProductEntry.COLUMN_PRODUCT_QUANTITY
+            + " FROM " + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " = ?";
+
+    private static final String SQL_SAVE_IMPORT_CHECKPOINT = "INSERT OR REPLACE INTO "
+            + ImportCheckpointEntry.TABLE_NAME + " (" + ImportCheckpointEntry.COLUMN_IMPORT_KEY + ", "
+            + ImportCheckpointEntry.COLUMN_RECORDS_READ + ") VALUES (?, ?)";
+
+    private static final String SQL_SELECT_IMPORT_CHECKPOINT = "SELECT "
+            + ImportCheckpointEntry.COLUMN_RECORDS_READ + " FROM " + ImportCheckpointEntry.TABLE_NAME
+            + " WHERE " + ImportCheckpointEntry.COLUMN_IMPORT_KEY + " = ?";
+
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS, PRODUCTS);
 
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#", PRODUCT_ID);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SEARCH + "/*", PRODUCT_SEARCH);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_STATS, PRODUCT_STATS);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_LOW_STOCK, PRODUCT_LOW_STOCK);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_MOVEMENTS, MOVEMENTS);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_MOVEMENTS + "/" + ProductContract.PATH_DAILY, MOVEMENTS_DAILY);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_COUNT, PRODUCT_COUNT);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SKU + "/*", PRODUCT_SKU);
+    }
+
+    /**
+     * Metric names of the URI types, indexed by match code minus {@link #PRODUCTS}.
+     */
+    private static final String[] URI_TYPES = {
+            "products", "product", "search", "stats", "low_stock", "movements", "movements_daily", "count", "sku"
+    };
+
+    private static final OperationMetrics[] sQueryMetrics = uriMetrics("provider.query.");
+    private static final OperationMetrics[] sWindowFillMetrics = uriMetrics("provider.window_fill.");
+    private static final OperationMetrics[] sInsertMetrics = uriMetrics("provider.insert.");
+    private static final OperationMetrics[] sUpdateMetrics = uriMetrics("provider.update.");
+    private static final OperationMetrics[] sDeleteMetrics = uriMetrics("provider.delete.");
+    private static final OperationMetrics sBulkInsertMetrics = Metrics.operation("provider.bulk_insert.products");
+    private static final OperationMetrics sAdjustQuantityMetrics =
+            Metrics.operation("provider.call." + ProductContract.METHOD_ADJUST_QUANTITY);
+    private static final OperationMetrics sAdjustQuantitiesMetrics =
+            Metrics.operation("provider.call." + ProductContract.METHOD_ADJUST_QUANTITIES);
+    private static final OperationMetrics sSellSkuMetrics =
+            Metrics.operation("provider.call." + ProductContract.METHOD_SELL_SKU);
+    private static final OperationMetrics sUndeleteMetrics =
+            Metrics.operation("provider.call." + ProductContract.METHOD_UNDELETE);
+    private static final OperationMetrics sSyncMetrics =
+            Metrics.operation("provider.call." + ProductContract.METHOD_SYNC);
+    private static final OperationMetrics sMaintenanceMetrics =
+            Metrics.operation("provider.call." + ProductContract.METHOD_RUN_MAINTENANCE);
+    private static final OperationMetrics sRestoreMetrics =
+            Metrics.operation("provider.call." + ProductContract.METHOD_RESTORE_SNAPSHOT);
+
+    private static OperationMetrics[] uriMetrics(String prefix) {
+        OperationMetrics[] metrics = new OperationMetrics[URI_TYPES.length];
+        for (int i = 0; i < URI_TYPES.length; i++) {
+            metrics[i] = Metrics.operation(prefix + URI_TYPES[i]);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the index of the URI in {@link #URI_TYPES}, called after the URI was handled
+     */
+    private static int getUriType(Uri uri) {
+        return sUriMatcher.match(uri) - PRODUCTS;
     }
 
     private ProductDbHelper mDbHelper;
 
+    /**
+     * URIs changed by the batch running on the current thread. While a batch is open, change
+     * notifications are collected here and sent once when the batch commits.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    /**
+     * Held while syncing, so two syncs can't send the same changes. Only syncs wait for it, other
+     * writes just wait for the short transactions that apply the responses.
+     */
+    private final Object mSyncLock = new Object();
+
     @Override
     public boolean onCreate() {
         mDbHelper = new ProductDbHelper(getContext());
@@ -62,31 +238,196 @@ public class ProductProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+        Cursor cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder);
+        int uriType = getUriType(uri);
+        sQueryMetrics[uriType].record(start, 0);
+        if (cursor instanceof AbstractWindowedCursor) {
+            cursor = new MeteredCursor(cursor, sWindowFillMetrics[uriType]);
+        }
+        return cursor;
+    }
+
+    private Cursor queryUri(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         Cursor cursor;
 
         int match = sUriMatcher.match(uri);
+        if (projection == null && (match == PRODUCTS || match == PRODUCT_SEARCH || match == PRODUCT_LOW_STOCK)) {
+            projection = ProductEntry.SUMMARY_PROJECTION;
+        }
         switch (match) {
             case PRODUCTS:
-                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                String table = ProductEntry.TABLE_NAME;
+                ProductQuery productQuery = ProductQuery.fromUri(uri);
+                if (productQuery != null) {
+                    table = productQuery.getTables();
+                    selection = DatabaseUtils.concatenateWhere(selection, productQuery.getSelection());
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            productQuery.getSelectionArgs());
+                    sortOrder = productQuery.getOrderBy();
+                } else {
+                    selection = DatabaseUtils.concatenateWhere(selection, ProductQuery.SELECTION_LIVE_UNINDEXED);
+                }
+                String afterId = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_AFTER_ID);
+                if (afterId != null) {
+                    if (productQuery != null && !productQuery.isIdOrder()) {
+                        throw new IllegalArgumentException("Paging requires id order: " + uri);
+                    }
+                    selection = DatabaseUtils.concatenateWhere(selection, ProductEntry._ID + " > ?");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[]{String.valueOf(parseNumber(afterId))});
+                    sortOrder = ProductEntry._ID + " ASC";
+                }
+                String limit = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT);
+                if (limit != null) {
+                    limit = String.valueOf(parseNumber(limit));
+                }
+
+                cursor = database.query(table, projection, selection, selectionArgs,
+                        null, null, sortOrder, limit);
                 break;
             case PRODUCT_ID:
-                selection = ProductEntry._ID + "=?";
+                selection = ProductEntry._ID + "=? AND " + ProductQuery.SELECTION_LIVE_UNINDEXED;
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 cursor = database.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case PRODUCT_SEARCH:
+                String matchQuery = buildMatchQuery(uri.getLastPathSegment());
+                if (matchQuery == null) {
+                    cursor = new MatrixCursor(projection != null ? projection : new String[]{ProductEntry._ID});
+                    break;
+                }
+                // Deleted products stay in the search index until they are purged
+                selection = DatabaseUtils.concatenateWhere(selection, ProductEntry._ID
+                        + " IN (SELECT docid FROM " + ProductEntry.FTS_TABLE_NAME
+                        + " WHERE " + ProductEntry.FTS_TABLE_NAME + " MATCH ?)"
+                        + " AND " + ProductQuery.SELECTION_LIVE_UNINDEXED);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{matchQuery});
+                String searchLimit = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT);
+                if (searchLimit != null) {
+                    searchLimit = String.valueOf(parseNumber(searchLimit));
+                }
+
+                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder, searchLimit);
+                break;
+            case PRODUCT_STATS:
+                cursor = database.query(StatsEntry.TABLE_NAME, projection, null, null, null, null, null);
+                // Every product write changes the summary, and product notifications reach
+                // observers of the whole table
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductEntry.CONTENT_URI);
+                return cursor;
+            case PRODUCT_LOW_STOCK:
+                selection = DatabaseUtils.concatenateWhere(selection, ProductEntry._ID
+                        + " IN (SELECT " + StatsEntry.COLUMN_PRODUCT_ID + " FROM " + StatsEntry.LOW_STOCK_TABLE_NAME + ")");
+
+                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductEntry.CONTENT_URI);
+                return cursor;
+            case PRODUCT_SKU:
+                selection = ProductEntry.COLUMN_PRODUCT_SKU + "=? AND " + ProductQuery.SELECTION_LIVE_UNINDEXED;
+                selectionArgs = new String[]{uri.getLastPathSegment()};
+
+                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                // Changes are notified on the id URI of the product, which is not a descendant
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductEntry.CONTENT_URI);
+                return cursor;
+            case PRODUCT_COUNT:
+                cursor = queryCount(database, uri);
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductEntry.CONTENT_URI);
+                return cursor;
+            case MOVEMENTS:
+                cursor = database.query(MovementEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                // Movements are appended by product writes
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductEntry.CONTENT_URI);
+                return cursor;
+            case MOVEMENTS_DAILY:
+                cursor = database.query(DailyStockEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                cursor.setNotificationUri(getContext().getContentResolver(), uri);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
 
+    /**
+     * Counts the products matching the filter and name prefix of the URI. The total and the
+     * low-stock count are kept in the stats row, so they cost one row read whatever the size of
+     * the catalog. Other filters are counted on the index chosen by {@link ProductQuery}.
+     */
+    private static Cursor queryCount(SQLiteDatabase database, Uri uri) {
+        String filter = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_FILTER);
+        String namePrefix = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_NAME_PREFIX);
+        if (namePrefix == null || namePrefix.isEmpty()) {
+            if (filter == null) {
+                return database.rawQuery("SELECT " + StatsEntry.COLUMN_PRODUCT_COUNT + " AS "
+                        + ProductEntry._COUNT + " FROM " + StatsEntry.TABLE_NAME, null);
+            }
+            if (ProductEntry.FILTER_LOW_STOCK.equals(filter)) {
+                return database.rawQuery("SELECT " + StatsEntry.COLUMN_LOW_STOCK_COUNT + " AS "
+                        + ProductEntry._COUNT + " FROM " + StatsEntry.TABLE_NAME, null);
+            }
+        }
+
+        ProductQuery query = ProductQuery.build(null, filter, namePrefix);
+        return database.query(query.getTables(), new String[]{"COUNT(*) AS " + ProductEntry._COUNT},
+                query.getSelection(), query.getSelectionArgs(), null, null, null);
+    }
+
+    /**
+     * Turns user input into an FTS prefix query matching rows that contain all of its words.
+     * Everything but letters and digits is dropped, so the input can't inject query syntax.
+     *
+     * @return the MATCH argument, or null if the input has no searchable words
+     */
+    private static String buildMatchQuery(String input) {
+        if (input == null) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String word : input.trim().split("\\s+")) {
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    token.append(c);
+                }
+            }
+            if (token.length() > 0) {
+                query.append(query.length() > 0 ? " " : "").append(token).append('*');
+            }
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    private static long parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid numeric query parameter " + value, e);
+        }
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        Uri newUri = insertUri(uri, contentValues);
+        sInsertMetrics[getUriType(uri)].record(start, newUri == null ? 0 : 1);
+        return newUri;
+    }
+
+    private Uri insertUri(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
@@ -97,6 +438,200 @@ public class ProductProvider extends ContentProvider {
     }
 
     private Uri insertProduct(Uri uri, ContentValues values) {
+        validateNewProduct(values);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+
+        long id;
+        database.beginTransaction();
+        try {
+            values = withChangeStamp(values, now, ProductSync.nextVersion(database));
+            purgeDeletedSku(database, values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU));
+            // Throws, so a failed insert inside applyBatch fails the batch instead of silently
+            // rolling it back
+            id = database.insertOrThrow(ProductEntry.TABLE_NAME, null, values);
+            StockLedger.record(database, id, getQuantity(values), parseReason(uri), now);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        Uri productUri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+        notifyChange(productUri);
+        return productUri;
+    }
+
+    /**
+     * Inserts all rows in a single transaction. Rows are validated like single inserts and bound
+     * to one compiled statement, which is only recompiled when the set of columns changes. The
+     * checkpoint of an import the URI is tagged with is stored in the same transaction.
+     * <p>
+     * A row that violates a constraint, such as a SKU another product holds, fails the whole
+     * call: the exception is thrown and none of the rows are stored, so an import batch or a
+     * restore is never applied in part.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PRODUCTS:
+                String importKey = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_IMPORT_KEY);
+                String importRecords = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_IMPORT_RECORDS);
+                if (importKey != null && importRecords == null) {
+                    throw new IllegalArgumentException(ProductContract.QUERY_PARAMETER_IMPORT_KEY
+                            + " requires " + ProductContract.QUERY_PARAMETER_IMPORT_RECORDS);
+                }
+                int rowsInserted = bulkInsertProducts(values, parseReason(uri), importKey,
+                        importKey == null ? 0 : parseNumber(importRecords));
+                if (rowsInserted > 0) {
+                    notifyChange(ProductEntry.CONTENT_URI);
+                }
+                sBulkInsertMetrics.record(start, rowsInserted);
+                return rowsInserted;
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    private int bulkInsertProducts(ContentValues[] values, int reason, String importKey, long recordsRead) {
+        for (ContentValues row : values) {
+            validateNewProduct(row);
+        }
+        return insertProducts(values, reason, importKey, recordsRead);
+    }
+
+    /**
+     * Inserts validated rows, which may set the sync columns.
+     */
+    private int insertProducts(ContentValues[] values, int reason, String importKey, long recordsRead) {
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteStatement statement = null;
+        SQLiteStatement movement = null;
+        SQLiteStatement purgeSku = null;
+        String[] columns = null;
+        int rowsInserted = 0;
+        long now = System.currentTimeMillis();
+
+        database.beginTransaction();
+        try {
+            long version = ProductSync.nextVersion(database);
+            movement = StockLedger.compileInsert(database);
+            purgeSku = database.compileStatement(SQL_PURGE_DELETED_SKU);
+            for (ContentValues row : values) {
+                if (columns == null || !hasColumns(row, columns)) {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    columns = row.keySet().toArray(new String[row.size()]);
+                    statement = database.compileStatement(buildInsertSql(columns,
+                            !row.containsKey(ProductEntry.COLUMN_PRODUCT_UPDATED_AT)));
+                }
+
+                statement.clearBindings();
+                for (int i = 0; i < columns.length; i++) {
+                    Object value = row.get(columns[i]);
+                    if (ProductEntry.COLUMN_PRODUCT_SKU.equals(columns[i])) {
+                        value = normalizeSku(row.getAsString(columns[i]));
+                        if (value != null) {
+                            purgeSku.bindString(1, (String) value);
+                            purgeSku.executeUpdateDelete();
+                        }
+                    }
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, value);
+                }
+                if (row.containsKey(ProductEntry.COLUMN_PRODUCT_UPDATED_AT)) {
+                    statement.bindLong(columns.length + 1, version);
+                } else {
+                    statement.bindLong(columns.length + 1, now);
+                    statement.bindLong(columns.length + 2, version);
+                }
+                long id = statement.executeInsert();
+                StockLedger.record(movement, id, getQuantity(row), reason, now);
+                rowsInserted++;
+            }
+            if (importKey != null) {
+                database.execSQL(SQL_SAVE_IMPORT_CHECKPOINT, new Object[]{importKey, recordsRead});
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+            if (movement != null) {
+                movement.close();
+            }
+            if (purgeSku != null) {
+                purgeSku.close();
+            }
+            database.endTransaction();
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Applies all operations in a single transaction, so either the whole batch is stored or none of it.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean ownsBatch = beginNotificationBatch();
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            database.endTransaction();
+            if (ownsBatch) {
+                endNotificationBatch(successful);
+            }
+        }
+    }
+
+    /**
+     * Notifies observers of {@code uri}. Observers registered on {@link ProductEntry#CONTENT_URI}
+     * also receive changes of single product URIs, since those are its descendants.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * @return true if a new batch was opened, false if the current thread is already inside one
+     */
+    private boolean beginNotificationBatch() {
+        if (mPendingNotifications.get() != null) {
+            return false;
+        }
+        mPendingNotifications.set(new HashSet<Uri>());
+        return true;
+    }
+
+    private void endNotificationBatch(boolean successful) {
+        Set<Uri> pending = mPendingNotifications.get();
+        mPendingNotifications.remove();
+        if (!successful || pending.isEmpty()) {
+            return;
+        }
+        // Several changed rows collapse into a single notification of the whole table
+        Uri uri = pending.size() == 1 ? pending.iterator().next() : ProductEntry.CONTENT_URI;
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    private void validateNewProduct(ContentValues values) {
+        validateManagedColumns(values);
+
         String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
         if (name == null || name.isEmpty()) {
             throw new IllegalArgumentException("Product requires a name");
@@ -107,20 +642,110 @@ public class ProductProvider extends ContentProvider {
             throw new IllegalArgumentException("Product requires valid quantity");
         }
 
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        validateLowStockThreshold(values);
+    }
 
-        long id = database.insert(ProductEntry.TABLE_NAME, null, values);
-        if (id == -1) {
-            Log.e(TAG, "Failed to insert row for " + uri);
-            return null;
+    private static void validateManagedColumns(ContentValues values) {
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_VERSION)
+                || values.containsKey(ProductEntry.COLUMN_PRODUCT_REMOTE_ID)
+                || values.containsKey(ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY)
+                || values.containsKey(ProductEntry.COLUMN_PRODUCT_PUSHED_DELTA)) {
+            throw new IllegalArgumentException("Sync columns are managed by the provider");
+        }
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_DELETED_AT)) {
+            throw new IllegalArgumentException("Deletes are managed by the provider");
         }
+    }
 
-        return ContentUris.withAppendedId(uri, id);
+    private static void validateLowStockThreshold(ContentValues values) {
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_LOW_STOCK_THRESHOLD)) {
+            Integer threshold = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_LOW_STOCK_THRESHOLD);
+            if (threshold == null || threshold < 0) {
+                throw new IllegalArgumentException("Product requires valid low stock threshold");
+            }
+        }
+    }
+
+    private static boolean hasColumns(ContentValues values, String[] columns) {
+        if (values.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param addUpdatedAt whether to append a parameter for the update time after the columns,
+     *                     the version parameter always follows
+     */
+    private static String buildInsertSql(String[] columns, boolean addUpdatedAt) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(ProductEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        if (addUpdatedAt) {
+            sql.append(", ").append(ProductEntry.COLUMN_PRODUCT_UPDATED_AT);
+        }
+        sql.append(", ").append(ProductEntry.COLUMN_PRODUCT_VERSION);
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        if (addUpdatedAt) {
+            sql.append(", ?");
+        }
+        return sql.append(", ?)").toString();
+    }
+
+    /**
+     * @return the values with the update time and version set, copied so the caller's values
+     * stay unchanged
+     */
+    private static ContentValues withChangeStamp(ContentValues values, long now, long version) {
+        ContentValues stamped = new ContentValues(values);
+        stamped.put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, now);
+        stamped.put(ProductEntry.COLUMN_PRODUCT_VERSION, version);
+        if (stamped.containsKey(ProductEntry.COLUMN_PRODUCT_SKU)) {
+            stamped.put(ProductEntry.COLUMN_PRODUCT_SKU,
+                    normalizeSku(stamped.getAsString(ProductEntry.COLUMN_PRODUCT_SKU)));
+        }
+        return stamped;
+    }
+
+    private static void purgeDeletedSku(SQLiteDatabase database, String sku) {
+        if (sku != null) {
+            database.execSQL(SQL_PURGE_DELETED_SKU, new Object[]{sku});
+        }
+    }
+
+    /**
+     * @return the trimmed SKU, or null if it is empty
+     */
+    private static String normalizeSku(String sku) {
+        if (sku == null) {
+            return null;
+        }
+        sku = sku.trim();
+        return sku.isEmpty() ? null : sku;
     }
 
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsUpdated = updateUri(uri, contentValues, selection, selectionArgs);
+        sUpdateMetrics[getUriType(uri)].record(start, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    private int updateUri(Uri uri, ContentValues contentValues, String selection,
+                          String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
@@ -128,6 +753,21 @@ public class ProductProvider extends ContentProvider {
             case PRODUCT_ID:
                 selection = ProductEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                String expectedVersion = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_EXPECTED_VERSION);
+                if (expectedVersion != null) {
+                    // Optimistic update, the product must not have changed since it was read
+                    String expectedUpdatedAt = uri.getQueryParameter(
+                            ProductContract.QUERY_PARAMETER_EXPECTED_UPDATED_AT);
+                    if (expectedUpdatedAt == null) {
+                        throw new IllegalArgumentException(ProductContract.QUERY_PARAMETER_EXPECTED_VERSION
+                                + " requires " + ProductContract.QUERY_PARAMETER_EXPECTED_UPDATED_AT);
+                    }
+                    selection += " AND " + ProductEntry.COLUMN_PRODUCT_VERSION + "=? AND "
+                            + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + "=?";
+                    selectionArgs = new String[]{selectionArgs[0],
+                            String.valueOf(parseNumber(expectedVersion)),
+                            String.valueOf(parseNumber(expectedUpdatedAt))};
+                }
                 return updateProduct(uri, contentValues, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
@@ -135,6 +775,8 @@ public class ProductProvider extends ContentProvider {
     }
 
     private int updateProduct(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        validateManagedColumns(values);
+
         if (values.containsKey(ProductEntry.COLUMN_PRODUCT_NAME)) {
             String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
             if (name == null) {
@@ -149,29 +791,526 @@ public class ProductProvider extends ContentProvider {
             }
         }
 
+        validateLowStockThreshold(values);
+
         if (values.size() == 0) {
             return 0;
         }
 
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
-        return database.update(ProductEntry.TABLE_NAME, values, selection, selectionArgs);
+        selection = DatabaseUtils.concatenateWhere(selection, ProductQuery.SELECTION_LIVE_UNINDEXED);
+        Integer quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        long now = System.currentTimeMillis();
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            values = withChangeStamp(values, now, ProductSync.nextVersion(database));
+            purgeDeletedSku(database, values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU));
+            if (quantity != null) {
+                StockLedger.recordQuantityChange(database, selection, selectionArgs, quantity,
+                        parseReason(uri), now);
+            }
+            rowsUpdated = database.update(ProductEntry.TABLE_NAME, values, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (rowsUpdated > 0) {
+            notifyChange(uri);
+        }
+        return rowsUpdated;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsDeleted = deleteUri(uri, selection, selectionArgs);
+        sDeleteMetrics[getUriType(uri)].record(start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    private int deleteUri(Uri uri, String selection, String[] selectionArgs) {
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
-                return database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             case PRODUCT_ID:
                 selection = ProductEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
+
+        boolean purge = Boolean.parseBoolean(uri.getQueryParameter(ProductContract.QUERY_PARAMETER_PURGE));
+        String live = DatabaseUtils.concatenateWhere(selection, ProductQuery.SELECTION_LIVE_UNINDEXED);
+        long now = System.currentTimeMillis();
+        int rowsDeleted;
+        database.beginTransaction();
+        try {
+            StockLedger.recordDeletion(database, live, selectionArgs, parseReason(uri), now);
+            ProductSync.recordTombstones(database, live, selectionArgs);
+            if (purge) {
+                rowsDeleted = database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
+            } else {
+                // Only marked, one UPDATE however many products match, and purged once they
+                // can no longer be restored
+                ContentValues deleted = new ContentValues(1);
+                deleted.put(ProductEntry.COLUMN_PRODUCT_DELETED_AT, now);
+                rowsDeleted = database.update(ProductEntry.TABLE_NAME, deleted, live, selectionArgs);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsDeleted > 0) {
+            notifyChange(uri);
+        }
+        return rowsDeleted;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case ProductContract.METHOD_ADJUST_QUANTITY:
+                long start = System.nanoTime();
+                long id = parseProductId(method, arg);
+                requireExtra(method, extras, ProductContract.EXTRA_QUANTITY_DELTA);
+                int delta = extras.getInt(ProductContract.EXTRA_QUANTITY_DELTA);
+                int reason = extras.getInt(ProductContract.EXTRA_REASON, MovementEntry.REASON_OTHER);
+                Bundle result = adjustQuantity(id, delta, reason,
+                        extras.getBoolean(ProductContract.EXTRA_CLAMP));
+                sAdjustQuantityMetrics.record(start, result.containsKey(ProductContract.EXTRA_QUANTITY) ? 1 : 0);
+                return result;
+            case ProductContract.METHOD_ADJUST_QUANTITIES:
+                long batchStart = System.nanoTime();
+                long[] adjustIds = requireProductIds(method, extras);
+                requireExtra(method, extras, ProductContract.EXTRA_QUANTITY_DELTA);
+                int adjusted = adjustQuantities(adjustIds,
+                        extras.getInt(ProductContract.EXTRA_QUANTITY_DELTA),
+                        extras.getInt(ProductContract.EXTRA_REASON, MovementEntry.REASON_OTHER));
+                sAdjustQuantitiesMetrics.record(batchStart, adjusted);
+                Bundle batchResult = new Bundle();
+                batchResult.putInt(ProductContract.EXTRA_ADJUSTED_COUNT, adjusted);
+                return batchResult;
+            case ProductContract.METHOD_UNDELETE:
+                long undeleteStart = System.nanoTime();
+                int undeleted = undelete(requireProductIds(method, extras));
+                sUndeleteMetrics.record(undeleteStart, undeleted);
+                Bundle undeleteResult = new Bundle();
+                undeleteResult.putInt(ProductContract.EXTRA_ADJUSTED_COUNT, undeleted);
+                return undeleteResult;
+            case ProductContract.METHOD_SELL_SKU:
+                long sellStart = System.nanoTime();
+                Bundle sale = sellSku(arg);
+                sSellSkuMetrics.record(sellStart, sale.containsKey(ProductContract.EXTRA_QUANTITY) ? 1 : 0);
+                return sale;
+            case ProductContract.METHOD_SYNC:
+                long syncStart = System.nanoTime();
+                Bundle syncResult = sync(arg);
+                sSyncMetrics.record(syncStart, syncResult.getInt(ProductContract.EXTRA_SYNC_PUSHED)
+                        + syncResult.getInt(ProductContract.EXTRA_SYNC_PULLED));
+                return syncResult;
+            case ProductContract.METHOD_RESTORE_SNAPSHOT:
+                long restoreStart = System.nanoTime();
+                requireExtra(method, extras, ProductContract.EXTRA_SNAPSHOT);
+                Bundle restoreResult = restoreSnapshot(
+                        (ParcelFileDescriptor) extras.getParcelable(ProductContract.EXTRA_SNAPSHOT));
+                sRestoreMetrics.record(restoreStart, restoreResult.getLong(ProductContract.EXTRA_RESTORED_COUNT));
+                return restoreResult;
+            case ProductContract.METHOD_GET_IMPORT_CHECKPOINT:
+                Bundle checkpoint = new Bundle();
+                checkpoint.putLong(ProductContract.EXTRA_IMPORT_RECORDS,
+                        getImportCheckpoint(requireArg(method, arg)));
+                return checkpoint;
+            case ProductContract.METHOD_CLEAR_IMPORT_CHECKPOINT:
+                mDbHelper.getWritableDatabase().delete(ImportCheckpointEntry.TABLE_NAME,
+                        ImportCheckpointEntry.COLUMN_IMPORT_KEY + " = ?", new String[]{requireArg(method, arg)});
+                return null;
+            case ProductContract.METHOD_RUN_MAINTENANCE:
+                long maintenanceStart = System.nanoTime();
+                int compacted = runMaintenance();
+                sMaintenanceMetrics.record(maintenanceStart, compacted);
+                return null;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    private static String requireArg(String method, String arg) {
+        if (arg == null) {
+            throw new IllegalArgumentException(method + " requires an argument");
+        }
+        return arg;
+    }
+
+    private static long parseProductId(String method, String arg) {
+        try {
+            return Long.parseLong(requireArg(method, arg));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(method + " requires a product id, got " + arg, e);
+        }
+    }
+
+    /**
+     * Checks that the extra is set and not null, so a caller's mistake fails the call instead of
+     * reading as 0 or crashing the provider with a NullPointerException.
+     */
+    private static void requireExtra(String method, Bundle extras, String key) {
+        if (extras == null || extras.get(key) == null) {
+            throw new IllegalArgumentException(method + " requires " + key);
+        }
+    }
+
+    private static long[] requireProductIds(String method, Bundle extras) {
+        requireExtra(method, extras, ProductContract.EXTRA_PRODUCT_IDS);
+        long[] ids = extras.getLongArray(ProductContract.EXTRA_PRODUCT_IDS);
+        if (ids == null) {
+            throw new IllegalArgumentException(ProductContract.EXTRA_PRODUCT_IDS + " must be a long array");
+        }
+        return ids;
+    }
+
+    /**
+     * Changes the quantity in place with one guarded UPDATE, so concurrent adjustments can't
+     * overwrite each other. The new value is read back by primary key in the same transaction.
+     *
+     * @param clamp whether to limit a decrease to the quantity in stock, which is read in the
+     *              same transaction, so nothing can change it before the UPDATE
+     */
+    private Bundle adjustQuantity(long id, int delta, int reason, boolean clamp) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Bundle result = new Bundle();
+        long now = System.currentTimeMillis();
+
+        database.beginTransaction();
+        try {
+            if (clamp && delta < 0) {
+                Cursor stock = database.rawQuery(SQL_SELECT_QUANTITY, new String[]{String.valueOf(id)});
+                try {
+                    if (!stock.moveToFirst() || stock.getLong(0) == 0) {
+                        return result;
+                    }
+                    delta = (int) Math.max(delta, -stock.getLong(0));
+                } finally {
+                    stock.close();
+                }
+            }
+
+            SQLiteStatement adjust = database.compileStatement(SQL_ADJUST_QUANTITY);
+            try {
+                adjust.bindLong(1, delta);
+                adjust.bindLong(2, now);
+                adjust.bindLong(3, ProductSync.nextVersion(database));
+                adjust.bindLong(4, id);
+                adjust.bindLong(5, delta);
+                if (adjust.executeUpdateDelete() == 0) {
+                    return result;
+                }
+            } finally {
+                adjust.close();
+            }
+
+            StockLedger.record(database, id, delta, reason, now);
+
+            long quantity = DatabaseUtils.longForQuery(database, SQL_SELECT_QUANTITY,
+                    new String[]{String.valueOf(id)});
+            result.putInt(ProductContract.EXTRA_QUANTITY, (int) quantity);
+            result.putInt(ProductContract.EXTRA_QUANTITY_DELTA, delta);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id));
+        return result;
+    }
+
+    /**
+     * Sells one unit with a guarded UPDATE on the unique SKU index, then reads the product back
+     * on the same index. Neither statement touches more than the one row.
+     */
+    private Bundle sellSku(String sku) {
+        Bundle result = new Bundle();
+        sku = normalizeSku(sku);
+        if (sku == null) {
+            return result;
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        long id;
+
+        database.beginTransaction();
+        try {
+            SQLiteStatement sell = database.compileStatement(SQL_SELL_SKU);
+            boolean sold;
+            try {
+                sell.bindLong(1, now);
+                sell.bindLong(2, ProductSync.nextVersion(database));
+                sell.bindString(3, sku);
+                sold = sell.executeUpdateDelete() == 1;
+            } finally {
+                sell.close();
+            }
+
+            Cursor product = database.rawQuery(SQL_SELECT_BY_SKU, new String[]{sku});
+            try {
+                if (!product.moveToFirst()) {
+                    return result;
+                }
+                id = product.getLong(0);
+                result.putInt(ProductContract.EXTRA_PRODUCT_ID, (int) id);
+                result.putString(ProductContract.EXTRA_PRODUCT_NAME, product.getString(1));
+                if (!sold) {
+                    return result;
+                }
+                result.putInt(ProductContract.EXTRA_QUANTITY, product.getInt(2));
+            } finally {
+                product.close();
+            }
+
+            StockLedger.record(database, id, -1, MovementEntry.REASON_SALE, now);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id));
+        return result;
+    }
+
+    /**
+     * Applies the same guarded UPDATE as {@link #adjustQuantity} to every product, reusing the
+     * compiled statements for the whole batch.
+     *
+     * @return the number of changed products
+     */
+    private int adjustQuantities(long[] ids, int delta, int reason) {
+        if (ids == null || ids.length == 0 || delta == 0) {
+            return 0;
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        int adjusted = 0;
+
+        SQLiteStatement adjust = null;
+        SQLiteStatement movement = null;
+        database.beginTransaction();
+        try {
+            adjust = database.compileStatement(SQL_ADJUST_QUANTITY);
+            movement = StockLedger.compileInsert(database);
+            adjust.bindLong(1, delta);
+            adjust.bindLong(2, now);
+            adjust.bindLong(3, ProductSync.nextVersion(database));
+            adjust.bindLong(5, delta);
+            for (long id : ids) {
+                adjust.bindLong(4, id);
+                if (adjust.executeUpdateDelete() == 1) {
+                    StockLedger.record(movement, id, delta, reason, now);
+                    adjusted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            if (adjust != null) {
+                adjust.close();
+            }
+            if (movement != null) {
+                movement.close();
+            }
+            database.endTransaction();
+        }
+
+        if (adjusted > 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        return adjusted;
+    }
+
+    /**
+     * Restores the deleted products with one UPDATE, returning their stock to the ledger and
+     * taking back their sync tombstones. Restored products get a new version, so they are sent
+     * with the next sync.
+     *
+     * @return the number of restored products, purged or not deleted ones are skipped
+     */
+    private int undelete(long[] ids) {
+        if (ids == null || ids.length == 0) {
+            return 0;
+        }
+        StringBuilder selection = new StringBuilder(ProductEntry._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i > 0 ? "," : "").append(ids[i]);
+        }
+        selection.append(") AND +").append(ProductEntry.COLUMN_PRODUCT_DELETED_AT).append(" <> 0");
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        int restored;
+        database.beginTransaction();
+        try {
+            ProductSync.restoreTombstones(database, selection.toString(), null);
+            StockLedger.recordUndeletion(database, selection.toString(), null, MovementEntry.REASON_UNDELETE, now);
+            ContentValues values = new ContentValues(3);
+            values.put(ProductEntry.COLUMN_PRODUCT_DELETED_AT, 0);
+            values.put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, now);
+            values.put(ProductEntry.COLUMN_PRODUCT_VERSION, ProductSync.nextVersion(database));
+            restored = database.update(ProductEntry.TABLE_NAME, values, selection.toString(), null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (restored > 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        return restored;
+    }
+
+    /**
+     * Runs {@link ProductSync} against the server URL. A failure is reported in the result
+     * instead of thrown, so it reaches callers in other processes too.
+     */
+    private Bundle sync(String serverUrl) {
+        Bundle result = new Bundle();
+        result.putInt(ProductContract.EXTRA_SYNC_PUSHED, 0);
+        result.putInt(ProductContract.EXTRA_SYNC_PULLED, 0);
+        synchronized (mSyncLock) {
+            try {
+                ProductSync.sync(mDbHelper.getWritableDatabase(),
+                        new ProductSync.HttpTransport(new URL(serverUrl)), result);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to sync with " + serverUrl, e);
+                result.putString(ProductContract.EXTRA_SYNC_ERROR, e.toString());
+            }
+        }
+        if (result.getInt(ProductContract.EXTRA_SYNC_PULLED) > 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        return result;
+    }
+
+    /**
+     * Verifies a {@link ProductSnapshot}, then purges all products and inserts the ones of the
+     * snapshot in one transaction, so readers see either the old products or the restored ones,
+     * and a failing insert leaves the old ones in place. An invalid snapshot is reported in the
+     * result instead of thrown, like a failed sync.
+     * <p>
+     * Restored products keep their server ids, so the next sync updates them on the server
+     * instead of deleting and recreating them. Only the synced products missing from the
+     * snapshot are deleted on the server, and products whose server copy was deleted since the
+     * snapshot are sent as new ones.
+     *
+     * @param file snapshot to restore, left open for the caller to close
+     */
+    private Bundle restoreSnapshot(ParcelFileDescriptor file) {
+        Bundle result = new Bundle();
+        ByteBuffer snapshot;
+        try {
+            // Not closed, closing the stream would close the caller's descriptor
+            snapshot = ProductSnapshot.map(new FileInputStream(file.getFileDescriptor()).getChannel());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to verify snapshot", e);
+            result.putString(ProductContract.EXTRA_RESTORE_ERROR, e.toString());
+            return result;
+        }
+
+        Uri restoreUri = ProductContract.withReason(ProductEntry.CONTENT_URI, MovementEntry.REASON_RESTORE);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean ownsBatch = beginNotificationBatch();
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            // Purged, since deleted products would still hold the ids of the snapshot. This
+            // queues a tombstone for every synced product, taken back below for restored ones.
+            deleteUri(ProductContract.withPurge(restoreUri), null, null);
+            long count = ProductSnapshot.readProducts(snapshot, new ProductSnapshot.BatchInserter() {
+                @Override
+                public void insert(ContentValues[] batch) {
+                    // Snapshot rows carry the sync columns, which bulk inserts reject
+                    insertProducts(batch, MovementEntry.REASON_RESTORE, null, 0);
+                }
+            });
+            ProductSync.restoreTombstones(database, ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " IS NOT NULL", null);
+            notifyChange(ProductEntry.CONTENT_URI);
+            database.setTransactionSuccessful();
+            successful = true;
+            result.putLong(ProductContract.EXTRA_RESTORED_COUNT, count);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read snapshot", e);
+            result.putString(ProductContract.EXTRA_RESTORE_ERROR, e.toString());
+        } finally {
+            database.endTransaction();
+            if (ownsBatch) {
+                endNotificationBatch(successful);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rolls old stock movements into daily totals and purges products deleted before the undo
+     * period, then vacuums, checkpoints and optimizes the database.
+     *
+     * @return the number of compacted movements and purged products
+     */
+    private int runMaintenance() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        int compacted = StockLedger.compact(database, now, TimeZone.getDefault().getOffset(now));
+        if (compacted > 0) {
+            Log.i(TAG, "Compacted " + compacted + " stock movements");
+            notifyChange(MovementEntry.CONTENT_URI);
+        }
+        // Purged products were already gone from every query, so there is nothing to notify
+        int purged = mDbHelper.purgeDeletedProducts(database, now - ProductDbHelper.UNDO_PERIOD_MILLIS);
+        if (purged > 0) {
+            Log.i(TAG, "Purged " + purged + " deleted products");
+        }
+        mDbHelper.runMaintenance(database);
+        return compacted + purged;
+    }
+
+    /**
+     * @return the records consumed by the committed batches of an import, 0 if none were
+     */
+    private long getImportCheckpoint(String importKey) {
+        Cursor cursor = mDbHelper.getReadableDatabase().rawQuery(SQL_SELECT_IMPORT_CHECKPOINT,
+                new String[]{importKey});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int getQuantity(ContentValues values) {
+        Integer quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        return quantity == null ? 0 : quantity;
+    }
+
+    /**
+     * @return the reason a write URI is tagged with, see {@link ProductContract#withReason}
+     */
+    private static int parseReason(Uri uri) {
+        String reason = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_REASON);
+        return reason == null ? MovementEntry.REASON_OTHER : (int) parseNumber(reason);
+    }
+
+    /**
+     * Prints the provider and list metrics for {@code adb shell dumpsys activity provider}.
+     * Pass {@code reset} to clear them after printing.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.dump(writer);
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            Metrics.reset();
+            writer.println("Metrics reset");
+        }
     }
 
     @Override
@@ -182,6 +1321,19 @@ public class ProductProvider extends ContentProvider {
                 return ProductEntry.CONTENT_LIST_TYPE;
             case PRODUCT_ID:
                 return ProductEntry.CONTENT_ITEM_TYPE;
+            case PRODUCT_SEARCH:
+            case PRODUCT_LOW_STOCK:
+                return ProductEntry.CONTENT_LIST_TYPE;
+            case PRODUCT_STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case PRODUCT_COUNT:
+                return ProductEntry.CONTENT_COUNT_TYPE;
+            case PRODUCT_SKU:
+                return ProductEntry.CONTENT_ITEM_TYPE;
+            case MOVEMENTS:
+                return MovementEntry.CONTENT_LIST_TYPE;
+            case MOVEMENTS_DAILY:
+                return DailyStockEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,164 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.database.DatabaseUtils;
+import android.net.Uri;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.StatsEntry;
+
+/**
+ * Translates the sort and filter query parameters of {@link ProductEntry#CONTENT_URI} into SQL.
+ * Only whitelisted values are accepted, and every combination names the index it is served
+ * by, so a missing index fails the query instead of silently scanning the table.
+ * <p>
+ * The filter picks the index: a name prefix is a range of the name index, low stock reads the
+ * ids kept in {@link StatsEntry#LOW_STOCK_TABLE_NAME} by primary key and in stock is a range of
+ * the quantity index. Without a filter, the index of the sort order is walked in order. The
+ * indexes lead with {@link ProductEntry#COLUMN_PRODUCT_DELETED_AT}, so all of these ranges only
+ * cover products that are not deleted.
+ *
+ * @author Andrey Radionov
+ */
+final class ProductQuery {
+
+    /**
+     * Greatest code point, appended to a name prefix to get the end of its range.
+     */
+    private static final String MAX_CHAR = "\uDBFF\uDFFF";
+
+    /**
+     * Selection of the products that are not deleted, an equality on the first column of the
+     * list indexes.
+     */
+    static final String SELECTION_LIVE = ProductEntry.COLUMN_PRODUCT_DELETED_AT + " = 0";
+
+    /**
+     * Same as {@link #SELECTION_LIVE}, but kept from being served by an index, for queries that
+     * find their products by id or by another index.
+     */
+    static final String SELECTION_LIVE_UNINDEXED = "+" + SELECTION_LIVE;
+
+    private final String mSort;
+    private final String mTables;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    private ProductQuery(String sort, String tables, String selection, String[] selectionArgs) {
+        mSort = sort;
+        mTables = tables;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+    }
+
+    /**
+     * @return the query for the parameters of the URI, or null if it has none of them
+     * @throws IllegalArgumentException if a parameter has an unknown value
+     */
+    static ProductQuery fromUri(Uri uri) {
+        String sort = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_SORT);
+        String filter = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_FILTER);
+        String namePrefix = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_NAME_PREFIX);
+        if (sort == null && filter == null && namePrefix == null) {
+            return null;
+        }
+        return build(sort, filter, namePrefix);
+    }
+
+    /**
+     * @param sort       one of the {@code SORT_} constants of {@link ProductEntry}, null for id order
+     * @param filter     one of the {@code FILTER_} constants of {@link ProductEntry}, or null
+     * @param namePrefix case-insensitive prefix of the names, or null
+     */
+    static ProductQuery build(String sort, String filter, String namePrefix) {
+        if (sort == null) {
+            sort = ProductEntry.SORT_ID;
+        }
+        String sortIndex = getSortIndex(sort);
+
+        String selection = SELECTION_LIVE;
+        String[] selectionArgs = null;
+        if (ProductEntry.FILTER_IN_STOCK.equals(filter)) {
+            selection = DatabaseUtils.concatenateWhere(selection, ProductEntry.COLUMN_PRODUCT_QUANTITY + " > 0");
+        } else if (ProductEntry.FILTER_LOW_STOCK.equals(filter)) {
+            selection = DatabaseUtils.concatenateWhere(selection, ProductEntry._ID + " IN (SELECT "
+                    + StatsEntry.COLUMN_PRODUCT_ID + " FROM " + StatsEntry.LOW_STOCK_TABLE_NAME + ")");
+        } else if (filter != null) {
+            throw new IllegalArgumentException("Unknown product filter " + filter);
+        }
+
+        String index;
+        if (namePrefix != null && !namePrefix.isEmpty()) {
+            index = ProductDbHelper.INDEX_PRODUCT_NAME;
+            selection = DatabaseUtils.concatenateWhere(selection,
+                    ProductEntry.COLUMN_PRODUCT_NAME + " >= ? COLLATE NOCASE AND "
+                            + ProductEntry.COLUMN_PRODUCT_NAME + " < ? COLLATE NOCASE");
+            selectionArgs = new String[]{namePrefix, namePrefix + MAX_CHAR};
+        } else if (ProductEntry.FILTER_LOW_STOCK.equals(filter)) {
+            index = null;
+        } else if (ProductEntry.FILTER_IN_STOCK.equals(filter)) {
+            index = ProductDbHelper.INDEX_PRODUCT_QUANTITY;
+        } else {
+            index = sortIndex;
+        }
+
+        String tables = ProductEntry.TABLE_NAME;
+        if (index != null) {
+            tables += " INDEXED BY " + index;
+        } else {
+            // Id order and the low-stock ids are read by primary key, this keeps the planner
+            // from walking the live range of a list index instead
+            tables += " NOT INDEXED";
+        }
+        return new ProductQuery(sort, tables, selection, selectionArgs);
+    }
+
+    /**
+     * @return the index giving the sort order, or null for id order
+     */
+    private static String getSortIndex(String sort) {
+        switch (sort) {
+            case ProductEntry.SORT_ID:
+                return null;
+            case ProductEntry.SORT_NAME:
+                return ProductDbHelper.INDEX_PRODUCT_NAME;
+            case ProductEntry.SORT_QUANTITY:
+                return ProductDbHelper.INDEX_PRODUCT_QUANTITY;
+            case ProductEntry.SORT_UPDATED:
+                return ProductDbHelper.INDEX_PRODUCT_UPDATED_AT;
+            default:
+                throw new IllegalArgumentException("Unknown product sort order " + sort);
+        }
+    }
+
+    /**
+     * @return the table with its index hint, to be used as the FROM clause
+     */
+    String getTables() {
+        return mTables;
+    }
+
+    String getSelection() {
+        return mSelection;
+    }
+
+    String[] getSelectionArgs() {
+        return mSelectionArgs;
+    }
+
+    String getOrderBy() {
+        switch (mSort) {
+            case ProductEntry.SORT_NAME:
+                return ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE ASC";
+            case ProductEntry.SORT_QUANTITY:
+                return ProductEntry.COLUMN_PRODUCT_QUANTITY + " ASC";
+            case ProductEntry.SORT_UPDATED:
+                return ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " DESC";
+            default:
+                return ProductEntry._ID + " ASC";
+        }
+    }
+
+    boolean isIdOrder() {
+        return ProductEntry.SORT_ID.equals(mSort);
+    }
+}
@@ -0,0 +1,433 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseIntArray;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.MovementEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * App-wide access to single products, backed by an LRU cache in front of {@link ProductProvider}.
+ * Writes made through the repository update the cache as well as the database. Changes made
+ * by anyone else are picked up by a content observer, which evicts the changed products.
+ *
+ * @author Andrey Radionov
+ */
+public class ProductRepository {
+
+    private static final int MAX_CACHED_PRODUCTS = 1000;
+
+    private static final String[] PRODUCT_PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SKU
+    };
+
+    /**
+     * Receives a product loaded in the background on the main thread.
+     */
+    public interface OnProductLoadedListener {
+        void onProductLoaded(Product product);
+    }
+
+    private static ProductRepository sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final Executor mReadExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Guarded by this, as are the counters and {@link #mOwnChanges}.
+     */
+    private final IntLruCache<Product> mCache = new IntLruCache<>(MAX_CACHED_PRODUCTS);
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Number of change notifications per product still to arrive for writes of this repository.
+     */
+    private final SparseIntArray mOwnChanges = new SparseIntArray();
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            invalidate(uri);
+        }
+    };
+
+    private ProductRepository(Context context) {
+        mContentResolver = context.getContentResolver();
+        mContentResolver.registerContentObserver(ProductEntry.CONTENT_URI, true, mObserver);
+    }
+
+    public static synchronized ProductRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProductRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Caches a product that was just read from the provider with all of its columns.
+     */
+    public synchronized void put(Product product) {
+        mCache.put(product.getId(), product);
+    }
+
+    /**
+     * @return the cached product, or null without querying the provider
+     */
+    public synchronized Product getCachedProduct(int id) {
+        Product product = mCache.get(id);
+        if (product != null) {
+            mHitCount++;
+        }
+        return product;
+    }
+
+    /**
+     * Reads a product from the cache or, on a miss, from the provider. Must not be called on the
+     * main thread, use {@link #loadProduct} there.
+     *
+     * @return the product, or null if it doesn't exist
+     */
+    public Product getProduct(int id) {
+        synchronized (this) {
+            Product product = mCache.get(id);
+            if (product != null) {
+                mHitCount++;
+                return product;
+            }
+            mMissCount++;
+        }
+
+        Product product = queryProduct(id);
+        if (product != null) {
+            put(product);
+        }
+        return product;
+    }
+
+    /**
+     * Delivers the product on the main thread, right away if it is cached.
+     */
+    public void loadProduct(final int id, final OnProductLoadedListener listener) {
+        Product cached = getCachedProduct(id);
+        if (cached != null) {
+            listener.onProductLoaded(cached);
+            return;
+        }
+        mReadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Product product = getProduct(id);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProductLoaded(product);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the uri of the new product, or null if it wasn't inserted
+     */
+    public Uri insert(String name, int quantity, String sku) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductEntry.COLUMN_PRODUCT_SKU, sku);
+
+        Uri newUri = mContentResolver.insert(
+                ProductContract.withReason(ProductEntry.CONTENT_URI, MovementEntry.REASON_EDIT), values);
+        if (newUri != null) {
+            // The id is only known now, so the notification of this insert may evict the product again
+            put(new Product((int) ContentUris.parseId(newUri), name, quantity, sku));
+        }
+        return newUri;
+    }
+
+    public boolean update(int id, String name, int quantity, String sku) {
+        return update(id, productUri(id), name, quantity, sku);
+    }
+
+    /**
+     * Updates the product only if nobody wrote it since it was read with {@code version} and
+     * {@code updatedAt}.
+     *
+     * @return false if the product changed in between, was deleted or wasn't updated
+     */
+    public boolean updateIfUnchanged(int id, String name, int quantity, String sku,
+                                     long version, long updatedAt) {
+        return update(id, ProductContract.withExpectedChange(productUri(id), version, updatedAt),
+                name, quantity, sku);
+    }
+
+    private boolean update(int id, Uri uri, String name, int quantity, String sku) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductEntry.COLUMN_PRODUCT_SKU, sku);
+
+        boolean updated = false;
+        expectOwnChange(id);
+        try {
+            updated = mContentResolver.update(ProductContract.withReason(uri, MovementEntry.REASON_EDIT),
+                    values, null, null) == 1;
+        } finally {
+            if (!updated) {
+                cancelOwnChange(id);
+            }
+        }
+        if (updated) {
+            put(new Product(id, name, quantity, sku));
+        }
+        return updated;
+    }
+
+    public boolean delete(int id) {
+        synchronized (this) {
+            mCache.remove(id);
+        }
+        return mContentResolver.delete(ProductContract.withReason(productUri(id), MovementEntry.REASON_DELETE),
+                null, null) == 1;
+    }
+
+    /**
+     * Adds {@code delta} to the quantity in the database and updates the cached product.
+     *
+     * @param reason one of the {@code REASON_} constants of {@link MovementEntry}
+     * @return false if the product doesn't exist or the quantity would become negative
+     */
+    public boolean adjustQuantity(int id, int delta, int reason) {
+        return adjust(id, delta, reason, false) != null;
+    }
+
+    /**
+     * Sells up to {@code units} of the product, as many as are in stock, and updates the cached
+     * product.
+     *
+     * @return the number of units sold, 0 if the product doesn't exist or is out of stock
+     */
+    public int sellAvailable(int id, int units) {
+        Bundle result = adjust(id, -units, MovementEntry.REASON_SALE, true);
+        return result == null ? 0 : -result.getInt(ProductContract.EXTRA_QUANTITY_DELTA);
+    }
+
+    /**
+     * @return the result of {@link ProductContract#METHOD_ADJUST_QUANTITY}, or null if nothing changed
+     */
+    private Bundle adjust(int id, int delta, int reason, boolean clamp) {
+        Bundle extras = new Bundle();
+        extras.putInt(ProductContract.EXTRA_QUANTITY_DELTA, delta);
+        extras.putInt(ProductContract.EXTRA_REASON, reason);
+        extras.putBoolean(ProductContract.EXTRA_CLAMP, clamp);
+        Bundle result = null;
+        expectOwnChange(id);
+        try {
+            result = mContentResolver.call(ProductEntry.CONTENT_URI,
+                    ProductContract.METHOD_ADJUST_QUANTITY, String.valueOf(id), extras);
+        } finally {
+            if (result == null || !result.containsKey(ProductContract.EXTRA_QUANTITY)) {
+                cancelOwnChange(id);
+            }
+        }
+        if (result == null || !result.containsKey(ProductContract.EXTRA_QUANTITY)) {
+            return null;
+        }
+
+        int quantity = result.getInt(ProductContract.EXTRA_QUANTITY);
+        synchronized (this) {
+            Product cached = mCache.get(id);
+            if (cached != null) {
+                mCache.put(id, new Product(id, cached.getName(), quantity, cached.getSku()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sells one unit of the product with the SKU. Must not be called on the main thread. The id
+     * of the product is only known afterwards, so its change notification evicts it from the cache.
+     *
+     * @return the result of {@link ProductContract#METHOD_SELL_SKU}
+     */
+    public Bundle sellSku(String sku) {
+        Bundle result = mContentResolver.call(ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_SELL_SKU, sku, null);
+        if (result == null) {
+            return new Bundle();
+        }
+        return result;
+    }
+
+    /**
+     * Syncs the products with the server. Must not be called on the main thread. Received
+     * changes are notified as a batch, which clears the cache.
+     *
+     * @return the result of {@link ProductContract#METHOD_SYNC}
+     */
+    public Bundle sync(String serverUrl) {
+        return mContentResolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_SYNC, serverUrl, null);
+    }
+
+    /**
+     * Deletes all the products with one statement.
+     *
+     * @return the number of deleted products
+     */
+    public int deleteAll(long[] ids) {
+        if (ids.length == 0) {
+            return 0;
+        }
+        synchronized (this) {
+            for (long id : ids) {
+                mCache.remove((int) id);
+            }
+        }
+        StringBuilder selection = new StringBuilder(ProductEntry._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+        return mContentResolver.delete(
+                ProductContract.withReason(ProductEntry.CONTENT_URI, MovementEntry.REASON_DELETE),
+                selection.toString(), null);
+    }
+
+    /**
+     * Restores deleted products in one provider call. The batch notification clears the cache.
+     *
+     * @return the number of restored products
+     */
+    public int undeleteAll(long[] ids) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductContract.EXTRA_PRODUCT_IDS, ids);
+        Bundle result = mContentResolver.call(ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_UNDELETE, null, extras);
+        return result == null ? 0 : result.getInt(ProductContract.EXTRA_ADJUSTED_COUNT);
+    }
+
+    /**
+     * Adds {@code delta} to the quantity of all the products in one provider call. The batch
+     * notification clears the cache.
+     *
+     * @param reason one of the {@code REASON_} constants of {@link MovementEntry}
+     * @return the number of changed products, those whose quantity would become negative are skipped
+     */
+    public int adjustQuantities(long[] ids, int delta, int reason) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductContract.EXTRA_PRODUCT_IDS, ids);
+        extras.putInt(ProductContract.EXTRA_QUANTITY_DELTA, delta);
+        extras.putInt(ProductContract.EXTRA_REASON, reason);
+        Bundle result = mContentResolver.call(ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_ADJUST_QUANTITIES, null, extras);
+        return result == null ? 0 : result.getInt(ProductContract.EXTRA_ADJUSTED_COUNT);
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getSize() {
+        return mCache.size();
+    }
+
+    /**
+     * Marks the next change notification of the product as caused by a write of this repository.
+     * Called before the write, so the notification can't arrive before it is expected.
+     */
+    private synchronized void expectOwnChange(int id) {
+        mOwnChanges.put(id, mOwnChanges.get(id) + 1);
+    }
+
+    private synchronized void cancelOwnChange(int id) {
+        int ownChanges = mOwnChanges.get(id);
+        if (ownChanges <= 1) {
+            mOwnChanges.delete(id);
+        } else {
+            mOwnChanges.put(id, ownChanges - 1);
+        }
+    }
+
+    /**
+     * Evicts the product of an item URI, unless the change was written through this repository.
+     * Any other URI, like the one of a batch, clears the whole cache.
+     */
+    private synchronized void invalidate(Uri uri) {
+        int id = parseProductId(uri);
+        if (id == -1) {
+            mCache.clear();
+            mOwnChanges.clear();
+            return;
+        }
+
+        if (mOwnChanges.get(id) > 0) {
+            cancelOwnChange(id);
+            return;
+        }
+        mCache.remove(id);
+    }
+
+    private Product queryProduct(int id) {
+        Cursor cursor = mContentResolver.query(productUri(id), PRODUCT_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new Product(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getString(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int parseProductId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !ProductContract.PATH_PRODUCTS.equals(segments.get(0))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(segments.get(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Uri productUri(int id) {
+        return ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+    }
+}
@@ -0,0 +1,473 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Binary snapshot of the products table for backup and restore.
+ * <p>
+ * A snapshot starts with the magic {@code INVS} and a format version, both 4-byte ints. Each
+ * product follows as a record of a varint payload length, a varint id, a varint quantity, the
+ * varint length of the UTF-8 SKU followed by the SKU, the sync state, and the UTF-8 name filling
+ * the rest of the payload. The sync state is the server id plus one as a varlong, 0 for a product
+ * never synced, followed by the synced quantity and the pushed delta as varints. A zero length
+ * ends the records, followed by the record count as a long and the CRC32 of everything between
+ * the header and the count. Version 1 records have no SKU, version 2 records no sync state.
+ *
+ * @author Andrey Radionov
+ */
+public final class ProductSnapshot {
+
+    static final int MAGIC = 0x494E5653;
+    static final int VERSION = 3;
+
+    /**
+     * Version of the snapshots written before products had a SKU, still accepted by restore.
+     */
+    static final int VERSION_NO_SKU = 1;
+
+    /**
+     * Version of the snapshots written before they kept the sync state, still accepted by
+     * restore. Their products are restored as never synced.
+     */
+    static final int VERSION_NO_SYNC_STATE = 2;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 1 + 8 + 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Longest possible payload length, id, quantity, SKU length, server id, synced quantity and
+     * pushed delta varints.
+     */
+    private static final int MAX_RECORD_OVERHEAD = 5 + 5 + 5 + 5 + 10 + 5 + 5;
+
+    /**
+     * Rows passed to one bulk insert while restoring.
+     */
+    static final int RESTORE_BATCH_SIZE = 500;
+
+    private static final String[] SNAPSHOT_PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+            ProductEntry.COLUMN_PRODUCT_REMOTE_ID,
+            ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_PUSHED_DELTA
+    };
+
+    /**
+     * Receives the products read from a snapshot, a batch at a time. The batch and its values
+     * are reused for the next one.
+     */
+    interface BatchInserter {
+        void insert(ContentValues[] batch);
+    }
+
+    private ProductSnapshot() {
+    }
+
+    /**
+     * Writes all products to the channel, starting at its current position.
+     *
+     * @return the number of written products
+     */
+    public static long write(ContentResolver contentResolver, FileChannel channel) throws IOException {
+        Cursor cursor = contentResolver.query(ProductEntry.CONTENT_URI, SNAPSHOT_PROJECTION,
+                null, null, ProductEntry._ID + " ASC");
+        if (cursor == null) {
+            throw new IOException("Failed to query products");
+        }
+
+        // Heap buffer, so the checksum can be updated from its array
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+        CharArrayBuffer name = new CharArrayBuffer(64);
+        CharArrayBuffer sku = new CharArrayBuffer(32);
+        long count = 0;
+        try {
+            buffer.putInt(MAGIC).putInt(VERSION);
+            drain(buffer, channel, null);
+
+            while (cursor.moveToNext()) {
+                cursor.copyStringToBuffer(1, name);
+                int nameLength = utf8Length(name.data, name.sizeCopied);
+                // A null SKU is copied as no chars
+                cursor.copyStringToBuffer(3, sku);
+                int skuLength = utf8Length(sku.data, sku.sizeCopied);
+                int id = cursor.getInt(0);
+                int quantity = cursor.getInt(2);
+                long remoteId = cursor.isNull(4) ? 0 : cursor.getLong(4) + 1;
+                int syncedQuantity = cursor.getInt(5);
+                int pushedDelta = cursor.getInt(6);
+                int payloadLength = varintLength(id) + varintLength(quantity)
+                        + varintLength(skuLength) + skuLength + varlongLength(remoteId)
+                        + varintLength(syncedQuantity) + varintLength(pushedDelta) + nameLength;
+
+                int recordLength = MAX_RECORD_OVERHEAD + skuLength + nameLength;
+                if (buffer.remaining() < recordLength) {
+                    drain(buffer, channel, crc);
+                    if (buffer.remaining() < recordLength) {
+                        buffer = ByteBuffer.allocate(recordLength);
+                    }
+                }
+                putVarint(buffer, payloadLength);
+                putVarint(buffer, id);
+                putVarint(buffer, quantity);
+                putVarint(buffer, skuLength);
+                putUtf8(buffer, sku.data, sku.sizeCopied);
+                putVarlong(buffer, remoteId);
+                putVarint(buffer, syncedQuantity);
+                putVarint(buffer, pushedDelta);
+                putUtf8(buffer, name.data, name.sizeCopied);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (buffer.remaining() < FOOTER_SIZE) {
+            drain(buffer, channel, crc);
+        }
+        buffer.put((byte) 0);
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(count).putInt((int) crc.getValue());
+        drain(buffer, channel, null);
+        channel.force(false);
+        return count;
+    }
+
+    /**
+     * Replaces all products with the ones of a snapshot, through
+     * {@link ProductContract#METHOD_RESTORE_SNAPSHOT}. The snapshot is verified before any product
+     * is deleted, and the products are replaced in one transaction, so a failed restore leaves
+     * them as they were.
+     *
+     * @param snapshot file descriptor of the snapshot, still open when this returns
+     * @return the number of restored products
+     * @throws IOException if the snapshot is truncated, corrupt or of an unknown version
+     */
+    public static long restore(ContentResolver contentResolver, ParcelFileDescriptor snapshot) throws IOException {
+        Bundle extras = new Bundle();
+        extras.putParcelable(ProductContract.EXTRA_SNAPSHOT, snapshot);
+        Bundle result = contentResolver.call(ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_RESTORE_SNAPSHOT, null, extras);
+        if (result == null) {
+            throw new IOException("Failed to restore products");
+        }
+        String error = result.getString(ProductContract.EXTRA_RESTORE_ERROR);
+        if (error != null) {
+            throw new IOException(error);
+        }
+        return result.getLong(ProductContract.EXTRA_RESTORED_COUNT);
+    }
+
+    /**
+     * Memory-maps a whole snapshot and verifies it.
+     *
+     * @throws IOException if the snapshot is truncated, corrupt or of an unknown version
+     */
+    static ByteBuffer map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + FOOTER_SIZE) {
+            throw new IOException("Snapshot is truncated");
+        }
+        MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        verify(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Reads the products of a snapshot verified by {@link #map} with their original ids and sync
+     * state, in batches of {@link #RESTORE_BATCH_SIZE}.
+     *
+     * @return the number of read products
+     */
+    static long readProducts(ByteBuffer snapshot, BatchInserter inserter) throws IOException {
+        int version = snapshot.getInt(4);
+        boolean hasSku = version != VERSION_NO_SKU;
+        boolean hasSyncState = hasSku && version != VERSION_NO_SYNC_STATE;
+
+        ContentValues[] batch = new ContentValues[RESTORE_BATCH_SIZE];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new ContentValues(7);
+        }
+        char[] name = new char[64];
+        char[] sku = new char[32];
+        int batchSize = 0;
+        long count = 0;
+
+        snapshot.position(HEADER_SIZE);
+        for (int length = getVarint(snapshot); length != 0; length = getVarint(snapshot)) {
+            int end = snapshot.position() + length;
+            int id = getVarint(snapshot);
+            int quantity = getVarint(snapshot);
+            int skuLength = 0;
+            if (hasSku) {
+                int skuEnd = snapshot.position() + getVarint(snapshot);
+                if (skuEnd > end) {
+                    throw new IOException("Malformed SKU");
+                }
+                if (sku.length < skuEnd - snapshot.position()) {
+                    sku = new char[skuEnd - snapshot.position()];
+                }
+                skuLength = getUtf8(snapshot, skuEnd, sku);
+            }
+            long remoteId = 0;
+            int syncedQuantity = 0;
+            int pushedDelta = 0;
+            if (hasSyncState) {
+                remoteId = getVarlong(snapshot);
+                syncedQuantity = getVarint(snapshot);
+                pushedDelta = getVarint(snapshot);
+                if (snapshot.position() > end) {
+                    throw new IOException("Malformed sync state");
+                }
+            }
+            if (name.length < end - snapshot.position()) {
+                name = new char[end - snapshot.position()];
+            }
+            int nameLength = getUtf8(snapshot, end, name);
+
+            ContentValues row = batch[batchSize++];
+            row.put(ProductEntry._ID, id);
+            row.put(ProductEntry.COLUMN_PRODUCT_NAME, new String(name, 0, nameLength));
+            row.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+            if (skuLength > 0) {
+                row.put(ProductEntry.COLUMN_PRODUCT_SKU, new String(sku, 0, skuLength));
+            } else {
+                row.putNull(ProductEntry.COLUMN_PRODUCT_SKU);
+            }
+            if (remoteId > 0) {
+                row.put(ProductEntry.COLUMN_PRODUCT_REMOTE_ID, remoteId - 1);
+            } else {
+                row.putNull(ProductEntry.COLUMN_PRODUCT_REMOTE_ID);
+            }
+            row.put(ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY, syncedQuantity);
+            row.put(ProductEntry.COLUMN_PRODUCT_PUSHED_DELTA, pushedDelta);
+            count++;
+
+            if (batchSize == batch.length) {
+                inserter.insert(batch);
+                batchSize = 0;
+            }
+        }
+        if (batchSize > 0) {
+            inserter.insert(Arrays.copyOf(batch, batchSize));
+        }
+        return count;
+    }
+
+    /**
+     * Checks the header, the record framing and the checksum of a mapped snapshot.
+     *
+     * @return the number of records
+     */
+    static long verify(ByteBuffer snapshot) throws IOException {
+        snapshot.position(0);
+        if (snapshot.getInt() != MAGIC) {
+            throw new IOException("Not a product snapshot");
+        }
+        int version = snapshot.getInt();
+        if (version != VERSION && version != VERSION_NO_SYNC_STATE && version != VERSION_NO_SKU) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        long records = 0;
+        int limit = snapshot.limit() - FOOTER_SIZE + 1;
+        try {
+            for (int length = getVarint(snapshot); length != 0; length = getVarint(snapshot)) {
+                if (length > limit - snapshot.position()) {
+                    throw new IOException("Snapshot is truncated");
+                }
+                snapshot.position(snapshot.position() + length);
+                records++;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot is truncated", e);
+        }
+
+        int end = snapshot.position();
+        if (snapshot.limit() - end != FOOTER_SIZE - 1) {
+            throw new IOException("Snapshot has trailing data");
+        }
+        long count = snapshot.getLong();
+        int checksum = snapshot.getInt();
+
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        snapshot.position(HEADER_SIZE);
+        while (snapshot.position() < end) {
+            int length = Math.min(chunk.length, end - snapshot.position());
+            snapshot.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        if ((int) crc.getValue() != checksum || count != records) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+        return count;
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel, CRC32 crc) throws IOException {
+        if (crc != null) {
+            crc.update(buffer.array(), 0, buffer.position());
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int varlongLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static void putVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarlong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    static int utf8Length(char[] chars, int length) {
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars[i + 1])) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes the chars as UTF-8. Unpaired surrogates are written as is, like
+     * {@link #utf8Length} counts them.
+     */
+    static void putUtf8(ByteBuffer buffer, char[] chars, int length) {
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars[i + 1])) {
+                int codePoint = Character.toCodePoint(c, chars[++i]);
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Decodes UTF-8 up to {@code end} into {@code chars}, which must hold at least as many chars
+     * as there are bytes.
+     *
+     * @return the number of decoded chars
+     */
+    static int getUtf8(ByteBuffer buffer, int end, char[] chars) throws IOException {
+        int length = 0;
+        while (buffer.position() < end) {
+            int b = buffer.get() & 0xFF;
+            if (b < 0x80) {
+                chars[length++] = (char) b;
+            } else if (b >> 5 == 0x6) {
+                chars[length++] = (char) ((b & 0x1F) << 6 | buffer.get() & 0x3F);
+            } else if (b >> 4 == 0xE) {
+                chars[length++] = (char) ((b & 0x0F) << 12 | (buffer.get() & 0x3F) << 6
+                        | buffer.get() & 0x3F);
+            } else if (b >> 3 == 0x1E) {
+                int codePoint = (b & 0x07) << 18 | (buffer.get() & 0x3F) << 12
+                        | (buffer.get() & 0x3F) << 6 | buffer.get() & 0x3F;
+                chars[length++] = (char) (0xD7C0 + (codePoint >> 10));
+                chars[length++] = (char) (0xDC00 | codePoint & 0x3FF);
+            } else {
+                throw new IOException("Malformed UTF-8 text");
+            }
+        }
+        if (buffer.position() != end) {
+            throw new IOException("Malformed UTF-8 text");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,486 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.MovementEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.SyncEntry;
+
+/**
+ * Delta sync of the products with the back-office server, in the messages of
+ * {@link SyncProtocol}. Each exchange sends the next batch of products written after the
+ * watermark and of queued tombstones, and receives the server changes since the last revision
+ * received, so the cost of a sync follows the number of changes, not the size of the catalog.
+ * <p>
+ * Quantities are merged, not overwritten: the server adds up the changes of all devices, and a
+ * received quantity is applied as the difference to the last one received, keeping the local
+ * changes not sent yet. Names, thresholds and SKUs of the server win unless the product has
+ * local changes waiting to be sent, and a local delete wins over a server change.
+ * <p>
+ * The database is not locked while the server is waited for, the response is applied in its
+ * own transaction and local writes made in the meantime are sent with the next exchange.
+ *
+ * @author Andrey Radionov
+ */
+final class ProductSync {
+
+    private static final String TAG = ProductSync.class.getSimpleName();
+
+    /**
+     * Maximum number of changes sent, and received, per exchange.
+     */
+    static final int BATCH_SIZE = 500;
+
+    private static final String SQL_NEXT_VERSION = "UPDATE " + SyncEntry.TABLE_NAME
+            + " SET " + SyncEntry.COLUMN_CHANGE_COUNTER + " = " + SyncEntry.COLUMN_CHANGE_COUNTER + " + 1";
+
+    private static final String SQL_SELECT_VERSION = "SELECT " + SyncEntry.COLUMN_CHANGE_COUNTER
+            + " FROM " + SyncEntry.TABLE_NAME;
+
+    /**
+     * Products after the keyset position of the watermark, read on the version index.
+     */
+    private static final String SQL_SELECT_PENDING = "SELECT " + ProductEntry._ID + ", "
+            + ProductEntry.COLUMN_PRODUCT_VERSION + ", " + ProductEntry.COLUMN_PRODUCT_REMOTE_ID + ", "
+            + ProductEntry.COLUMN_PRODUCT_QUANTITY + " - " + ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY + ", "
+            + ProductEntry.COLUMN_PRODUCT_PUSHED_DELTA + ", "
+            + ProductEntry.COLUMN_PRODUCT_LOW_STOCK_THRESHOLD + ", " + ProductEntry.COLUMN_PRODUCT_NAME + ", "
+            + ProductEntry.COLUMN_PRODUCT_SKU
+            + " FROM " + ProductEntry.TABLE_NAME
+            + " WHERE " + ProductEntry.COLUMN_PRODUCT_VERSION + " >= ?"
+            + " AND (" + ProductEntry.COLUMN_PRODUCT_VERSION + " > ? OR " + ProductEntry._ID + " > ?)"
+            + " AND " + ProductQuery.SELECTION_LIVE_UNINDEXED
+            + " ORDER BY " + ProductEntry.COLUMN_PRODUCT_VERSION + ", " + ProductEntry._ID
+            + " LIMIT ?";
+
+    private static final String SQL_SELECT_BY_REMOTE_ID = "SELECT " + ProductEntry._ID + ", "
+            + ProductEntry.COLUMN_PRODUCT_VERSION + ", " + ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+            + ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY
+            + " FROM " + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " = ?";
+
+    private static final String SQL_ASSIGN_REMOTE_ID = "UPDATE " + ProductEntry.TABLE_NAME
+            + " SET " + ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " = ?"
+            + " WHERE " + ProductEntry._ID + " = ? AND " + ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " IS NULL"
+            + " AND " + ProductQuery.SELECTION_LIVE_UNINDEXED;
+
+    private static final String SQL_MARK_PUSHED = "UPDATE " + ProductEntry.TABLE_NAME
+            + " SET " + ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY + " = "
+            + ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY + " + ?, "
+            + ProductEntry.COLUMN_PRODUCT_PUSHED_DELTA + " = ?"
+            + " WHERE " + ProductEntry._ID + " = ?";
+
+    private static final String SQL_INSERT_TOMBSTONE = "INSERT OR IGNORE INTO " + SyncEntry.TOMBSTONE_TABLE_NAME
+            + " (" + SyncEntry.COLUMN_REMOTE_ID + ") VALUES (?)";
+
+    private static final String SQL_DELETE_TOMBSTONE = "DELETE FROM " + SyncEntry.TOMBSTONE_TABLE_NAME
+            + " WHERE " + SyncEntry.COLUMN_REMOTE_ID + " = ?";
+
+    private static final String SQL_HAS_TOMBSTONE = "SELECT COUNT(*) FROM " + SyncEntry.TOMBSTONE_TABLE_NAME
+            + " WHERE " + SyncEntry.COLUMN_REMOTE_ID + " = ?";
+
+    /**
+     * Exchanges a request with the server.
+     */
+    interface Transport {
+        byte[] exchange(byte[] request) throws IOException;
+    }
+
+    /**
+     * Posts the requests to the server URL.
+     */
+    static final class HttpTransport implements Transport {
+
+        private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+        private final URL mUrl;
+
+        HttpTransport(URL url) {
+            mUrl = url;
+        }
+
+        @Override
+        public byte[] exchange(byte[] request) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setConnectTimeout(TIMEOUT_MILLIS);
+                connection.setReadTimeout(TIMEOUT_MILLIS);
+                connection.setRequestProperty("Content-Type", SyncProtocol.CONTENT_TYPE);
+                connection.setFixedLengthStreamingMode(request.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(request);
+                } finally {
+                    out.close();
+                }
+
+                int responseCode = connection.getResponseCode();
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Sync server responded with " + responseCode);
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    ByteArrayOutputStream response = new ByteArrayOutputStream(
+                            Math.max(connection.getContentLength(), 256));
+                    byte[] chunk = new byte[8192];
+                    for (int length = in.read(chunk); length != -1; length = in.read(chunk)) {
+                        response.write(chunk, 0, length);
+                    }
+                    return response.toByteArray();
+                } finally {
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Products and tombstones sent with one request.
+     */
+    private static final class Batch {
+        final long mDeviceId;
+        final long mPulledRevision;
+        long mPushedVersion;
+        long mPushedId;
+        final List<SyncProtocol.Change> mChanges = new ArrayList<>();
+
+        /**
+         * Quantity change each sent product had at the time it was read.
+         */
+        final List<Long> mSentDeltas = new ArrayList<>();
+
+        Batch(long deviceId, long pulledRevision, long pushedVersion, long pushedId) {
+            mDeviceId = deviceId;
+            mPulledRevision = pulledRevision;
+            mPushedVersion = pushedVersion;
+            mPushedId = pushedId;
+        }
+    }
+
+    private ProductSync() {
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        String products = ProductEntry.TABLE_NAME;
+        db.execSQL("ALTER TABLE " + products + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + products + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " INTEGER;");
+        db.execSQL("ALTER TABLE " + products + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + products + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_PUSHED_DELTA + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("CREATE INDEX " + ProductDbHelper.INDEX_PRODUCT_VERSION + " ON " + products
+                + " (" + ProductEntry.COLUMN_PRODUCT_VERSION + ");");
+        db.execSQL("CREATE UNIQUE INDEX " + ProductDbHelper.INDEX_PRODUCT_REMOTE_ID + " ON " + products
+                + " (" + ProductEntry.COLUMN_PRODUCT_REMOTE_ID + ");");
+
+        db.execSQL("CREATE TABLE " + SyncEntry.TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + SyncEntry.COLUMN_DEVICE_ID + " INTEGER NOT NULL, "
+                + SyncEntry.COLUMN_CHANGE_COUNTER + " INTEGER NOT NULL, "
+                + SyncEntry.COLUMN_PUSHED_VERSION + " INTEGER NOT NULL, "
+                + SyncEntry.COLUMN_PUSHED_ID + " INTEGER NOT NULL, "
+                + SyncEntry.COLUMN_PULLED_REVISION + " INTEGER NOT NULL);");
+        db.execSQL("CREATE TABLE " + SyncEntry.TOMBSTONE_TABLE_NAME + " ("
+                + SyncEntry.COLUMN_REMOTE_ID + " INTEGER PRIMARY KEY);");
+
+        // Existing products get version 1, so all of them are sent with the first sync. The
+        // watermark starts after every product of version 0, which only sync writes keep.
+        db.execSQL("UPDATE " + products + " SET " + ProductEntry.COLUMN_PRODUCT_VERSION + " = 1;");
+        db.execSQL("INSERT INTO " + SyncEntry.TABLE_NAME + " VALUES (1, ?, 1, 0, ?, 0);",
+                new Object[]{new SecureRandom().nextLong() & Long.MAX_VALUE, Long.MAX_VALUE});
+    }
+
+    /**
+     * Takes the version of a write, to be called inside its transaction. All products written
+     * by the transaction can share the version.
+     */
+    static long nextVersion(SQLiteDatabase db) {
+        db.execSQL(SQL_NEXT_VERSION);
+        return DatabaseUtils.longForQuery(db, SQL_SELECT_VERSION, null);
+    }
+
+    /**
+     * Queues a tombstone for every synced product matching the selection, before the products
+     * are deleted.
+     */
+    static void recordTombstones(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String where = DatabaseUtils.concatenateWhere(selection,
+                ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " IS NOT NULL");
+        db.execSQL("INSERT OR IGNORE INTO " + SyncEntry.TOMBSTONE_TABLE_NAME + " ("
+                        + SyncEntry.COLUMN_REMOTE_ID + ") SELECT " + ProductEntry.COLUMN_PRODUCT_REMOTE_ID
+                        + " FROM " + ProductEntry.TABLE_NAME + " WHERE " + where,
+                selectionArgs == null ? new String[0] : selectionArgs);
+    }
+
+    /**
+     * Undoes {@link #recordTombstones} for the deleted products matching the selection, before
+     * they are restored. A tombstone still queued is dropped. If it was sent already, the server
+     * deleted the product, so the restored one loses its server id and is sent as a new product.
+     */
+    static void restoreTombstones(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String[] args = selectionArgs == null ? new String[0] : selectionArgs;
+        String sentTombstones = DatabaseUtils.concatenateWhere(selection,
+                ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " IS NOT NULL AND " + ProductEntry.COLUMN_PRODUCT_REMOTE_ID
+                        + " NOT IN (SELECT " + SyncEntry.COLUMN_REMOTE_ID + " FROM " + SyncEntry.TOMBSTONE_TABLE_NAME + ")");
+        ContentValues unsynced = new ContentValues(3);
+        unsynced.putNull(ProductEntry.COLUMN_PRODUCT_REMOTE_ID);
+        unsynced.put(ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY, 0);
+        unsynced.put(ProductEntry.COLUMN_PRODUCT_PUSHED_DELTA, 0);
+        db.update(ProductEntry.TABLE_NAME, unsynced, sentTombstones, args);
+
+        db.execSQL("DELETE FROM " + SyncEntry.TOMBSTONE_TABLE_NAME + " WHERE " + SyncEntry.COLUMN_REMOTE_ID
+                + " IN (SELECT " + ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " FROM " + ProductEntry.TABLE_NAME
+                + " WHERE " + selection + ")", args);
+    }
+
+    /**
+     * Exchanges batches with the server until neither side has changes left. The counts in
+     * {@code result} are updated after every applied exchange, so they are valid when a later
+     * exchange fails.
+     */
+    static void sync(SQLiteDatabase db, Transport transport, Bundle result) throws IOException {
+        int pushed = 0;
+        int pulled = 0;
+        boolean more = true;
+        while (more) {
+            Batch batch = readBatch(db);
+            SyncProtocol.Request request = new SyncProtocol.Request(batch.mDeviceId, batch.mPulledRevision,
+                    BATCH_SIZE, batch.mChanges);
+            SyncProtocol.Response response = SyncProtocol.decodeResponse(
+                    transport.exchange(SyncProtocol.encodeRequest(request)));
+            applyResponse(db, batch, response);
+
+            pushed += batch.mChanges.size();
+            pulled += response.mChanges.size();
+            result.putInt(ProductContract.EXTRA_SYNC_PUSHED, pushed);
+            result.putInt(ProductContract.EXTRA_SYNC_PULLED, pulled);
+            more = batch.mChanges.size() == BATCH_SIZE || response.mHasMore;
+        }
+    }
+
+    /**
+     * Reads the tombstones, then the products after the watermark, up to {@link #BATCH_SIZE}.
+     * Tombstones go first, so a server never mistakes a product restored under its old local
+     * id for the deleted one.
+     */
+    private static Batch readBatch(SQLiteDatabase db) {
+        Batch batch;
+        Cursor state = db.query(SyncEntry.TABLE_NAME, new String[]{SyncEntry.COLUMN_DEVICE_ID,
+                        SyncEntry.COLUMN_PULLED_REVISION, SyncEntry.COLUMN_PUSHED_VERSION, SyncEntry.COLUMN_PUSHED_ID},
+                null, null, null, null, null);
+        try {
+            state.moveToFirst();
+            batch = new Batch(state.getLong(0), state.getLong(1), state.getLong(2), state.getLong(3));
+        } finally {
+            state.close();
+        }
+
+        Cursor tombstones = db.query(SyncEntry.TOMBSTONE_TABLE_NAME, new String[]{SyncEntry.COLUMN_REMOTE_ID},
+                null, null, null, null, null, String.valueOf(BATCH_SIZE));
+        try {
+            while (tombstones.moveToNext()) {
+                batch.mChanges.add(SyncProtocol.Change.delete(tombstones.getLong(0)));
+            }
+        } finally {
+            tombstones.close();
+        }
+
+        int limit = BATCH_SIZE - batch.mChanges.size();
+        if (limit == 0) {
+            return batch;
+        }
+        Cursor products = db.rawQuery(SQL_SELECT_PENDING, new String[]{
+                String.valueOf(batch.mPushedVersion), String.valueOf(batch.mPushedVersion),
+                String.valueOf(batch.mPushedId), String.valueOf(limit)});
+        try {
+            while (products.moveToNext()) {
+                long delta = products.getLong(3);
+                batch.mChanges.add(SyncProtocol.Change.upsert(products.isNull(2) ? 0 : products.getLong(2),
+                        products.getLong(0), products.getLong(4) + delta, products.getInt(5),
+                        products.getString(6), products.getString(7)));
+                batch.mSentDeltas.add(delta);
+                if (products.isLast()) {
+                    batch.mPushedVersion = products.getLong(1);
+                    batch.mPushedId = products.getLong(0);
+                }
+            }
+        } finally {
+            products.close();
+        }
+        return batch;
+    }
+
+    private static void applyResponse(SQLiteDatabase db, Batch batch, SyncProtocol.Response response) {
+        long now = System.currentTimeMillis();
+        SQLiteStatement assign = null;
+        SQLiteStatement markPushed = null;
+        SQLiteStatement insertTombstone = null;
+        SQLiteStatement deleteTombstone = null;
+        SQLiteStatement movement = null;
+        db.beginTransaction();
+        try {
+            assign = db.compileStatement(SQL_ASSIGN_REMOTE_ID);
+            markPushed = db.compileStatement(SQL_MARK_PUSHED);
+            insertTombstone = db.compileStatement(SQL_INSERT_TOMBSTONE);
+            deleteTombstone = db.compileStatement(SQL_DELETE_TOMBSTONE);
+            movement = StockLedger.compileInsert(db);
+            for (int i = 0; i < response.mAssignedLocalIds.length; i++) {
+                assign.bindLong(1, response.mAssignedRemoteIds[i]);
+                assign.bindLong(2, response.mAssignedLocalIds[i]);
+                if (assign.executeUpdateDelete() == 0) {
+                    // Deleted while the server was creating it, and so without a tombstone
+                    insertTombstone.bindLong(1, response.mAssignedRemoteIds[i]);
+                    insertTombstone.executeInsert();
+                }
+            }
+
+            int sent = 0;
+            for (SyncProtocol.Change change : batch.mChanges) {
+                if (change.isDelete()) {
+                    deleteTombstone.bindLong(1, change.mRemoteId);
+                    deleteTombstone.executeUpdateDelete();
+                    continue;
+                }
+                markPushed.bindLong(1, batch.mSentDeltas.get(sent++));
+                markPushed.bindLong(2, change.mQuantity);
+                markPushed.bindLong(3, change.mLocalId);
+                markPushed.executeUpdateDelete();
+            }
+
+            for (SyncProtocol.Change change : response.mChanges) {
+                if (change.isDelete()) {
+                    applyDelete(db, change.mRemoteId, now);
+                } else {
+                    applyUpsert(db, batch, change, movement, now);
+                }
+            }
+
+            ContentValues state = new ContentValues(3);
+            state.put(SyncEntry.COLUMN_PUSHED_VERSION, batch.mPushedVersion);
+            state.put(SyncEntry.COLUMN_PUSHED_ID, batch.mPushedId);
+            state.put(SyncEntry.COLUMN_PULLED_REVISION, response.mRevision);
+            db.update(SyncEntry.TABLE_NAME, state, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            close(assign, markPushed, insertTombstone, deleteTombstone, movement);
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Closes the statements compiled so far, the ones not compiled yet are null.
+     */
+    private static void close(SQLiteStatement... statements) {
+        for (SQLiteStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+
+    private static void applyDelete(SQLiteDatabase db, long remoteId, long now) {
+        String selection = ProductEntry.COLUMN_PRODUCT_REMOTE_ID + " = ?";
+        String[] selectionArgs = {String.valueOf(remoteId)};
+        // A product deleted locally is left to be purged, or restored as a new product
+        String live = DatabaseUtils.concatenateWhere(selection, ProductQuery.SELECTION_LIVE_UNINDEXED);
+        StockLedger.recordDeletion(db, live, selectionArgs, MovementEntry.REASON_SYNC, now);
+        db.delete(ProductEntry.TABLE_NAME, live, selectionArgs);
+    }
+
+    /**
+     * Applies the server quantity as the difference to the last one received. The other fields
+     * are only taken if the product has no local changes waiting to be sent.
+     */
+    private static void applyUpsert(SQLiteDatabase db, Batch batch, SyncProtocol.Change change,
+                                    SQLiteStatement movement, long now) {
+        String[] remoteIdArgs = {String.valueOf(change.mRemoteId)};
+        if (DatabaseUtils.longForQuery(db, SQL_HAS_TOMBSTONE, remoteIdArgs) > 0) {
+            return;
+        }
+
+        ContentValues values = new ContentValues(7);
+        values.put(ProductEntry.COLUMN_PRODUCT_SYNCED_QUANTITY, change.mQuantity);
+        values.put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, now);
+
+        Cursor local = db.rawQuery(SQL_SELECT_BY_REMOTE_ID, remoteIdArgs);
+        try {
+            if (!local.moveToFirst()) {
+                values.put(ProductEntry.COLUMN_PRODUCT_REMOTE_ID, change.mRemoteId);
+                values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, change.mQuantity);
+                putFields(values, change);
+                long id = insertOrDropSku(db, values);
+                StockLedger.record(movement, id, change.mQuantity, MovementEntry.REASON_SYNC, now);
+                return;
+            }
+
+            long id = local.getLong(0);
+            long version = local.getLong(1);
+            long quantity = local.getLong(2);
+            long newQuantity = Math.max(0, quantity + change.mQuantity - local.getLong(3));
+            values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, newQuantity);
+            boolean pending = version > batch.mPushedVersion
+                    || version == batch.mPushedVersion && id > batch.mPushedId;
+            if (!pending) {
+                putFields(values, change);
+            }
+            updateOrDropSku(db, id, values);
+            StockLedger.record(movement, id, newQuantity - quantity, MovementEntry.REASON_SYNC, now);
+        } finally {
+            local.close();
+        }
+    }
+
+    private static void putFields(ContentValues values, SyncProtocol.Change change) {
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, change.mName);
+        values.put(ProductEntry.COLUMN_PRODUCT_LOW_STOCK_THRESHOLD, change.mLowStockThreshold);
+        values.put(ProductEntry.COLUMN_PRODUCT_SKU, change.mSku);
+    }
+
+    /**
+     * Inserts the product, without its SKU if another product already has it. The product is
+     * still received, and the duplicate SKU is left for someone to fix on one of the devices.
+     */
+    private static long insertOrDropSku(SQLiteDatabase db, ContentValues values) {
+        try {
+            return db.insertOrThrow(ProductEntry.TABLE_NAME, null, values);
+        } catch (SQLiteConstraintException e) {
+            Log.w(TAG, "Dropped duplicate SKU of received product", e);
+            values.putNull(ProductEntry.COLUMN_PRODUCT_SKU);
+            return db.insertOrThrow(ProductEntry.TABLE_NAME, null, values);
+        }
+    }
+
+    private static void updateOrDropSku(SQLiteDatabase db, long id, ContentValues values) {
+        String selection = ProductEntry._ID + " = ?";
+        String[] selectionArgs = {String.valueOf(id)};
+        try {
+            db.update(ProductEntry.TABLE_NAME, values, selection, selectionArgs);
+        } catch (SQLiteConstraintException e) {
+            Log.w(TAG, "Dropped duplicate SKU of received product " + id, e);
+            values.remove(ProductEntry.COLUMN_PRODUCT_SKU);
+            db.update(ProductEntry.TABLE_NAME, values, selection, selectionArgs);
+        }
+    }
+}
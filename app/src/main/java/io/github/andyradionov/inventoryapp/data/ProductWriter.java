@@ -0,0 +1,731 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.MovementEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Single writer for all product mutations. Writes run one at a time on a background thread in
+ * the order they were requested, so changes of the same product are never reordered.
+ * Repeated sales of a product that are still waiting in the queue are merged into one write.
+ *
+ * @author Andrey Radionov
+ */
+public class ProductWriter {
+
+    private static final String TAG = ProductWriter.class.getSimpleName();
+
+    public static final int OPERATION_DELETE = 3;
+    public static final int OPERATION_SALE = 4;
+    public static final int OPERATION_IMPORT = 5;
+    public static final int OPERATION_EXPORT = 6;
+    public static final int OPERATION_BACKUP = 7;
+    public static final int OPERATION_RESTORE = 8;
+    public static final int OPERATION_BULK_DELETE = 9;
+    public static final int OPERATION_BULK_ADJUST = 10;
+    public static final int OPERATION_BULK_SALE = 11;
+    public static final int OPERATION_UNDELETE = 12;
+
+    /**
+     * Minimum time between two database maintenance runs.
+     */
+    static final long MAINTENANCE_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final String PREFS_MAINTENANCE = "maintenance";
+
+    private static final String PREF_LAST_MAINTENANCE = "last_run";
+
+    public static final int SAVE_DONE = 0;
+    public static final int SAVE_CONFLICT = 1;
+    public static final int SAVE_FAILED = 2;
+
+    private static final int NO_SAVE_RESULT = -1;
+
+    /**
+     * Receives results of finished writes on the main thread.
+     */
+    public interface OnWriteCompleteListener {
+        void onWriteComplete(int operation, int productId, boolean successful);
+
+        /**
+         * @param requested number of products the write was queued for
+         * @param affected  number of products it changed
+         */
+        void onBulkWriteComplete(int operation, int requested, int affected);
+    }
+
+    /**
+     * Receives the outcome of a scanned sale on the main thread.
+     */
+    public interface OnSkuSaleListener {
+        /**
+         * @param product the product with its new quantity, or null if no product has the SKU
+         * @param sold    false if the product is out of stock or the sale failed
+         */
+        void onSkuSale(String sku, Product product, boolean sold);
+    }
+
+    /**
+     * Receives the outcome of saving a product from the editor on the main thread. A result
+     * that finishes while no listener is set waits for the next one, so it survives the editor
+     * being recreated.
+     */
+    public interface OnSaveListener {
+        /**
+         * @param result {@link #SAVE_DONE}, {@link #SAVE_CONFLICT} if the product changed since it
+         *               was read, or {@link #SAVE_FAILED} if it was deleted or the write failed
+         */
+        void onSaveComplete(int result);
+    }
+
+    /**
+     * Receives the outcome of a sync on the main thread.
+     */
+    public interface OnSyncListener {
+        /**
+         * @param pushed number of changes sent to the server
+         * @param pulled number of changes received from it
+         */
+        void onSyncComplete(boolean successful, int pushed, int pulled);
+    }
+
+    /**
+     * Receives the progress and results of imports, exports, backups and restores on the main
+     * thread.
+     */
+    public interface OnTransferListener {
+        void onTransferProgress(int operation, int rows);
+
+        void onTransferComplete(int operation, int rows, boolean successful);
+    }
+
+    private static ProductWriter sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ProductRepository mRepository;
+    private final SharedPreferences mMaintenancePreferences;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Runs syncs, so writes queued while the server is waited for don't wait with it.
+     */
+    private final ExecutorService mSyncExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Queued sales by product id, guarded by itself.
+     */
+    private final SparseArray<PendingSale> mPendingSales = new SparseArray<>();
+
+    private OnWriteCompleteListener mListener;
+    private OnTransferListener mTransferListener;
+    private OnSaveListener mSaveListener;
+
+    /**
+     * Result of the last save that finished while no save listener was set, or
+     * {@link #NO_SAVE_RESULT}. Save state is only touched on the main thread.
+     */
+    private int mSaveResult = NO_SAVE_RESULT;
+
+    /**
+     * Saves queued and saves whose result reached the main thread so far. The writer thread
+     * runs them in order, so save n finishes as the n-th.
+     */
+    private int mSavesQueued;
+    private int mSavesFinished;
+
+    /**
+     * Results of the saves up to this one are dropped, the editor that queued them is closed.
+     */
+    private int mSavesAbandoned;
+
+    private ProductWriter(Context context) {
+        mContentResolver = context.getContentResolver();
+        mRepository = ProductRepository.getInstance(context);
+        mMaintenancePreferences = context.getSharedPreferences(PREFS_MAINTENANCE, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized ProductWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProductWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Must be called on the main thread. Pass null to stop receiving results.
+     */
+    public void setOnWriteCompleteListener(OnWriteCompleteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Must be called on the main thread. Pass null to stop receiving progress and results.
+     */
+    public void setOnTransferListener(OnTransferListener listener) {
+        mTransferListener = listener;
+    }
+
+    /**
+     * Must be called on the main thread. Pass null to stop receiving save results, a result that
+     * finishes in the meantime is delivered as soon as a listener is set again.
+     */
+    public void setOnSaveListener(OnSaveListener listener) {
+        mSaveListener = listener;
+        if (listener != null && mSaveResult != NO_SAVE_RESULT) {
+            int result = mSaveResult;
+            mSaveResult = NO_SAVE_RESULT;
+            listener.onSaveComplete(result);
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     *
+     * @return true if a save is still running, or its result waits for a save listener
+     */
+    public boolean hasUnreportedSave() {
+        return Math.max(mSavesFinished, mSavesAbandoned) < mSavesQueued
+                || mSaveResult != NO_SAVE_RESULT;
+    }
+
+    /**
+     * Drops the results of all queued saves, for an editor that is closed before they finish.
+     * The saves themselves still run. Must be called on the main thread.
+     */
+    public void abandonSaves() {
+        mSavesAbandoned = mSavesQueued;
+        mSaveResult = NO_SAVE_RESULT;
+    }
+
+    /**
+     * Inserts a product, reporting {@link #SAVE_DONE} or {@link #SAVE_FAILED} to the save
+     * listener. Must be called on the main thread.
+     */
+    public void insert(final String name, final int quantity, final String sku) {
+        mSavesQueued++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri newUri = null;
+                try {
+                    newUri = mRepository.insert(name, quantity, sku);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to insert product " + name, e);
+                }
+                postSaveResult(newUri != null ? SAVE_DONE : SAVE_FAILED);
+            }
+        });
+    }
+
+    /**
+     * Overwrites the product however it changed since it was read, reporting {@link #SAVE_DONE}
+     * or {@link #SAVE_FAILED} to the save listener. Must be called on the main thread.
+     */
+    public void update(final int id, final String name, final int quantity, final String sku) {
+        mSavesQueued++;
+        closePendingSale(id);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean updated = false;
+                try {
+                    updated = mRepository.update(id, name, quantity, sku);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to update product " + id, e);
+                }
+                postSaveResult(updated ? SAVE_DONE : SAVE_FAILED);
+            }
+        });
+    }
+
+    /**
+     * Updates the product unless it was written since it was read with {@code version} and
+     * {@code updatedAt}, reporting {@link #SAVE_CONFLICT} to the save listener if it was. Sales
+     * queued before the update count as such writes. Must be called on the main thread.
+     */
+    public void updateIfUnchanged(final int id, final String name, final int quantity, final String sku,
+                                  final long version, final long updatedAt) {
+        mSavesQueued++;
+        closePendingSale(id);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int result = SAVE_FAILED;
+                try {
+                    if (mRepository.updateIfUnchanged(id, name, quantity, sku, version, updatedAt)) {
+                        result = SAVE_DONE;
+                    } else if (mRepository.getProduct(id) != null) {
+                        result = SAVE_CONFLICT;
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to update product " + id, e);
+                }
+                postSaveResult(result);
+            }
+        });
+    }
+
+    public void delete(final int id) {
+        closePendingSale(id);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean deleted = false;
+                try {
+                    deleted = mRepository.delete(id);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to delete product " + id, e);
+                }
+                postResult(OPERATION_DELETE, id, deleted);
+            }
+        });
+    }
+
+    /**
+     * Deletes all the products with a single provider write.
+     */
+    public void deleteAll(final long[] ids) {
+        closePendingSales(ids);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int deleted = 0;
+                try {
+                    deleted = mRepository.deleteAll(ids);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to delete " + ids.length + " products", e);
+                }
+                postBulkResult(OPERATION_BULK_DELETE, ids.length, deleted);
+            }
+        });
+    }
+
+    /**
+     * Restores products deleted by {@link #delete} or {@link #deleteAll}. Runs after the delete,
+     * however soon it is called.
+     */
+    public void undeleteAll(final long[] ids) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int restored = 0;
+                try {
+                    restored = mRepository.undeleteAll(ids);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to restore " + ids.length + " products", e);
+                }
+                postBulkResult(OPERATION_UNDELETE, ids.length, restored);
+            }
+        });
+    }
+
+    /**
+     * Adds {@code delta} to the quantity of all the products in one transaction. Products whose
+     * quantity would become negative are skipped.
+     */
+    public void adjustAll(long[] ids, int delta) {
+        adjustAll(OPERATION_BULK_ADJUST, ids, delta, MovementEntry.REASON_EDIT);
+    }
+
+    /**
+     * Sells one unit of each of the products in one transaction. Products out of stock are skipped.
+     */
+    public void sellAll(long[] ids) {
+        adjustAll(OPERATION_BULK_SALE, ids, -1, MovementEntry.REASON_SALE);
+    }
+
+    private void adjustAll(final int operation, final long[] ids, final int delta, final int reason) {
+        closePendingSales(ids);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int adjusted = 0;
+                try {
+                    adjusted = mRepository.adjustQuantities(ids, delta, reason);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to adjust " + ids.length + " products", e);
+                }
+                postBulkResult(operation, ids.length, adjusted);
+            }
+        });
+    }
+
+    /**
+     * Queues database maintenance behind the pending writes, unless it ran less than
+     * {@link #MAINTENANCE_INTERVAL_MILLIS} ago. Cheap enough to call whenever the app goes idle.
+     */
+    public void runMaintenanceIfDue() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                long lastRun = mMaintenancePreferences.getLong(PREF_LAST_MAINTENANCE, 0);
+                // A clock set back doesn't postpone maintenance until it catches up
+                if (now - lastRun < MAINTENANCE_INTERVAL_MILLIS && now >= lastRun) {
+                    return;
+                }
+                // Stored first, so a failing run isn't retried on every stop
+                mMaintenancePreferences.edit().putLong(PREF_LAST_MAINTENANCE, now).apply();
+                try {
+                    mContentResolver.call(ProductEntry.CONTENT_URI,
+                            ProductContract.METHOD_RUN_MAINTENANCE, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Database maintenance failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues an import of the products of a CSV document. If an earlier import of the same
+     * document failed, the records it already committed are skipped.
+     */
+    public void importCsv(final Uri source) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int rows = 0;
+                boolean imported = false;
+                InputStream in = null;
+                try {
+                    in = mContentResolver.openInputStream(source);
+                    if (in == null) {
+                        throw new IOException("Failed to open " + source);
+                    }
+                    rows = ProductCsv.importProducts(mContentResolver, in,
+                            ProductCsv.buildImportKey(mContentResolver, source),
+                            new ProductCsv.ImportListener() {
+                                @Override
+                                public void onBatchImported(long recordsRead, int rowsImported) {
+                                    postTransferProgress(OPERATION_IMPORT, rowsImported);
+                                }
+                            });
+                    imported = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to import products from " + source, e);
+                } finally {
+                    closeQuietly(in);
+                }
+                postTransferResult(OPERATION_IMPORT, rows, imported);
+            }
+        });
+    }
+
+    /**
+     * Queues an export of all products to a CSV document, behind the pending writes.
+     */
+    public void exportCsv(final Uri destination) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int rows = 0;
+                boolean exported = false;
+                OutputStream out = null;
+                try {
+                    out = mContentResolver.openOutputStream(destination, "wt");
+                    if (out == null) {
+                        throw new IOException("Failed to open " + destination);
+                    }
+                    rows = ProductCsv.exportProducts(mContentResolver, out);
+                    out.close();
+                    out = null;
+                    exported = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to export products to " + destination, e);
+                } finally {
+                    closeQuietly(out);
+                }
+                postTransferResult(OPERATION_EXPORT, rows, exported);
+            }
+        });
+    }
+
+    /**
+     * Queues a binary snapshot of all products into a document, behind the pending writes.
+     */
+    public void backup(final Uri destination) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long rows = 0;
+                boolean written = false;
+                ParcelFileDescriptor descriptor = null;
+                FileOutputStream out = null;
+                try {
+                    descriptor = mContentResolver.openFileDescriptor(destination, "wt");
+                    if (descriptor == null) {
+                        throw new IOException("Failed to open " + destination);
+                    }
+                    out = new FileOutputStream(descriptor.getFileDescriptor());
+                    rows = ProductSnapshot.write(mContentResolver, out.getChannel());
+                    written = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to back up products to " + destination, e);
+                } finally {
+                    closeQuietly(out);
+                    closeQuietly(descriptor);
+                }
+                postTransferResult(OPERATION_BACKUP, (int) rows, written);
+            }
+        });
+    }
+
+    /**
+     * Queues replacing all products with the ones of a snapshot document. Nothing is deleted if
+     * the snapshot is corrupt.
+     */
+    public void restore(final Uri source) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long rows = 0;
+                boolean restored = false;
+                ParcelFileDescriptor descriptor = null;
+                try {
+                    descriptor = mContentResolver.openFileDescriptor(source, "r");
+                    if (descriptor == null) {
+                        throw new IOException("Failed to open " + source);
+                    }
+                    rows = ProductSnapshot.restore(mContentResolver, descriptor);
+                    restored = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to restore products from " + source, e);
+                } finally {
+                    closeQuietly(descriptor);
+                }
+                postTransferResult(OPERATION_RESTORE, (int) rows, restored);
+            }
+        });
+    }
+
+    /**
+     * Sells one unit of the product. If a sale of the same product is already waiting in the
+     * queue, the unit is added to it instead of queueing another write.
+     */
+    public void sell(int id) {
+        PendingSale sale;
+        synchronized (mPendingSales) {
+            sale = mPendingSales.get(id);
+            if (sale != null) {
+                sale.mUnits++;
+                return;
+            }
+            sale = new PendingSale(id);
+            mPendingSales.put(id, sale);
+        }
+        mExecutor.execute(sale);
+    }
+
+    /**
+     * Sells one unit of the product with a scanned SKU. The product is resolved and its stock
+     * decremented by the provider in one statement, without reading the list.
+     */
+    public void sellSku(final String sku, final OnSkuSaleListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = null;
+                try {
+                    result = mRepository.sellSku(sku);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to sell SKU " + sku, e);
+                }
+                final Product product;
+                final boolean sold;
+                if (result == null || !result.containsKey(ProductContract.EXTRA_PRODUCT_ID)) {
+                    product = null;
+                    sold = false;
+                } else {
+                    sold = result.containsKey(ProductContract.EXTRA_QUANTITY);
+                    product = new Product(result.getInt(ProductContract.EXTRA_PRODUCT_ID),
+                            result.getString(ProductContract.EXTRA_PRODUCT_NAME),
+                            result.getInt(ProductContract.EXTRA_QUANTITY), sku);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSkuSale(sku, product, sold);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Syncs the products with the server. Starts after the writes queued before it, so their
+     * changes are part of the sync, but runs on its own thread: writes queued later go ahead
+     * while the server is waited for, and only the received changes take the database lock.
+     */
+    public void sync(final String serverUrl, final OnSyncListener listener) {
+        final Runnable sync = new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = null;
+                try {
+                    result = mRepository.sync(serverUrl);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to sync with " + serverUrl, e);
+                }
+                final boolean successful = result != null
+                        && !result.containsKey(ProductContract.EXTRA_SYNC_ERROR);
+                final int pushed = result == null ? 0 : result.getInt(ProductContract.EXTRA_SYNC_PUSHED);
+                final int pulled = result == null ? 0 : result.getInt(ProductContract.EXTRA_SYNC_PULLED);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSyncComplete(successful, pushed, pulled);
+                    }
+                });
+            }
+        };
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSyncExecutor.execute(sync);
+            }
+        });
+    }
+
+    /**
+     * Stops merging further sales into the queued one, so they are ordered after a newer write.
+     */
+    private void closePendingSale(int id) {
+        synchronized (mPendingSales) {
+            mPendingSales.remove(id);
+        }
+    }
+
+    private void closePendingSales(long[] ids) {
+        synchronized (mPendingSales) {
+            for (long id : ids) {
+                mPendingSales.remove((int) id);
+            }
+        }
+    }
+
+    /**
+     * Sells all merged units at once. If there is not enough stock for all of them nothing is sold.
+     */
+    private boolean applySale(int id, int units) {
+        try {
+            // Merged taps sell what is in stock, as the same taps spaced apart would
+            return mRepository.sellAvailable(id, units) > 0;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to sell product " + id, e);
+            return false;
+        }
+    }
+
+    private void postResult(final int operation, final int productId, final boolean successful) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onWriteComplete(operation, productId, successful);
+                }
+            }
+        });
+    }
+
+    private void postSaveResult(final int result) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSavesFinished++;
+                if (mSavesFinished <= mSavesAbandoned) {
+                    return;
+                }
+                if (mSaveListener != null) {
+                    mSaveListener.onSaveComplete(result);
+                } else {
+                    mSaveResult = result;
+                }
+            }
+        });
+    }
+
+    private void postBulkResult(final int operation, final int requested, final int affected) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onBulkWriteComplete(operation, requested, affected);
+                }
+            }
+        });
+    }
+
+    private void postTransferProgress(final int operation, final int rows) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mTransferListener != null) {
+                    mTransferListener.onTransferProgress(operation, rows);
+                }
+            }
+        });
+    }
+
+    private void postTransferResult(final int operation, final int rows, final boolean successful) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mTransferListener != null) {
+                    mTransferListener.onTransferComplete(operation, rows, successful);
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close stream", e);
+        }
+    }
+
+    private class PendingSale implements Runnable {
+
+        private final int mProductId;
+        private int mUnits = 1;
+
+        PendingSale(int productId) {
+            mProductId = productId;
+        }
+
+        @Override
+        public void run() {
+            int units;
+            synchronized (mPendingSales) {
+                if (mPendingSales.get(mProductId) == this) {
+                    mPendingSales.remove(mProductId);
+                }
+                units = mUnits;
+            }
+            postResult(OPERATION_SALE, mProductId, applySale(mProductId, units));
+        }
+    }
+}
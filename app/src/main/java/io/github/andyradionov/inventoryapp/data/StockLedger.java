@@ -0,0 +1,170 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.DailyStockEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.MovementEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Writes the stock movement journal and compacts it. The recording methods are meant to run
+ * inside the transaction of the product write they record.
+ *
+ * @author Andrey Radionov
+ */
+final class StockLedger {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Movements younger than this are kept one by one, older ones only as daily totals.
+     */
+    static final long RETENTION_MILLIS = 30 * DAY_MILLIS;
+
+    private static final String SQL_INSERT_MOVEMENT = "INSERT INTO " + MovementEntry.TABLE_NAME + " ("
+            + MovementEntry.COLUMN_PRODUCT_ID + ", " + MovementEntry.COLUMN_DELTA + ", "
+            + MovementEntry.COLUMN_REASON + ", " + MovementEntry.COLUMN_CREATED_AT + ") VALUES (?, ?, ?, ?)";
+
+    private static final String SQL_ROLL_UP = "INSERT OR REPLACE INTO " + DailyStockEntry.TABLE_NAME + " ("
+            + DailyStockEntry.COLUMN_PRODUCT_ID + ", " + DailyStockEntry.COLUMN_DAY + ", "
+            + DailyStockEntry.COLUMN_DELTA + ", " + DailyStockEntry.COLUMN_SOLD + ", "
+            + DailyStockEntry.COLUMN_MOVEMENT_COUNT + ")"
+            + " SELECT m.product_id, m.day, SUM(m.delta) + IFNULL(d.delta, 0),"
+            + " SUM(m.sold) + IFNULL(d.sold, 0), COUNT(*) + IFNULL(d.movement_count, 0)"
+            + " FROM (SELECT " + MovementEntry.COLUMN_PRODUCT_ID + " AS product_id,"
+            + " (" + MovementEntry.COLUMN_CREATED_AT + " + ?) / " + DAY_MILLIS + " AS day,"
+            + " " + MovementEntry.COLUMN_DELTA + " AS delta,"
+            + " CASE " + MovementEntry.COLUMN_REASON + " WHEN " + MovementEntry.REASON_SALE
+            + " THEN -" + MovementEntry.COLUMN_DELTA + " ELSE 0 END AS sold"
+            + " FROM " + MovementEntry.TABLE_NAME + " WHERE " + MovementEntry._ID + " < ?) m"
+            + " LEFT JOIN " + DailyStockEntry.TABLE_NAME + " d"
+            + " ON d." + DailyStockEntry.COLUMN_PRODUCT_ID + " = m.product_id"
+            + " AND d." + DailyStockEntry.COLUMN_DAY + " = m.day"
+            + " GROUP BY m.product_id, m.day";
+
+    private StockLedger() {
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MovementEntry.TABLE_NAME + " ("
+                + MovementEntry._ID + " INTEGER PRIMARY KEY, "
+                + MovementEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_REASON + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + MovementEntry.TABLE_NAME + "_product_idx ON " + MovementEntry.TABLE_NAME
+                + " (" + MovementEntry.COLUMN_PRODUCT_ID + ");");
+
+        db.execSQL("CREATE TABLE " + DailyStockEntry.TABLE_NAME + " ("
+                + DailyStockEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + DailyStockEntry.COLUMN_DAY + " INTEGER NOT NULL, "
+                + DailyStockEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                + DailyStockEntry.COLUMN_SOLD + " INTEGER NOT NULL, "
+                + DailyStockEntry.COLUMN_MOVEMENT_COUNT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + DailyStockEntry.COLUMN_PRODUCT_ID + ", " + DailyStockEntry.COLUMN_DAY + "));");
+    }
+
+    /**
+     * Compiles the statement appending single movements, to be reused for a whole batch.
+     */
+    static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement(SQL_INSERT_MOVEMENT);
+    }
+
+    static void record(SQLiteStatement insert, long productId, long delta, int reason, long now) {
+        if (delta == 0) {
+            return;
+        }
+        insert.bindLong(1, productId);
+        insert.bindLong(2, delta);
+        insert.bindLong(3, reason);
+        insert.bindLong(4, now);
+        insert.executeInsert();
+    }
+
+    static void record(SQLiteDatabase db, long productId, long delta, int reason, long now) {
+        if (delta == 0) {
+            return;
+        }
+        SQLiteStatement insert = compileInsert(db);
+        try {
+            record(insert, productId, delta, reason, now);
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Records the change of every product matching the selection to {@code newQuantity}, before
+     * the update is made. Products that already have that quantity get no movement.
+     */
+    static void recordQuantityChange(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                     long newQuantity, int reason, long now) {
+        recordDeltas(db, newQuantity + " - " + ProductEntry.COLUMN_PRODUCT_QUANTITY, selection, selectionArgs,
+                reason, now);
+    }
+
+    /**
+     * Records the removal of the whole stock of every product matching the selection, before
+     * the products are deleted.
+     */
+    static void recordDeletion(SQLiteDatabase db, String selection, String[] selectionArgs,
+                               int reason, long now) {
+        recordQuantityChange(db, selection, selectionArgs, 0, reason, now);
+    }
+
+    /**
+     * Records the return of the whole stock of every deleted product matching the selection,
+     * before the products are restored.
+     */
+    static void recordUndeletion(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                 int reason, long now) {
+        recordDeltas(db, ProductEntry.COLUMN_PRODUCT_QUANTITY, selection, selectionArgs, reason, now);
+    }
+
+    private static void recordDeltas(SQLiteDatabase db, String delta, String selection, String[] selectionArgs,
+                                     int reason, long now) {
+        String where = DatabaseUtils.concatenateWhere(selection, delta + " <> 0");
+        db.execSQL("INSERT INTO " + MovementEntry.TABLE_NAME + " ("
+                        + MovementEntry.COLUMN_PRODUCT_ID + ", " + MovementEntry.COLUMN_DELTA + ", "
+                        + MovementEntry.COLUMN_REASON + ", " + MovementEntry.COLUMN_CREATED_AT + ")"
+                        + " SELECT " + ProductEntry._ID + ", " + delta + ", " + reason + ", " + now
+                        + " FROM " + ProductEntry.TABLE_NAME + " WHERE " + where,
+                selectionArgs == null ? new String[0] : selectionArgs);
+    }
+
+    /**
+     * Rolls all movements older than the retention period into daily totals and deletes them.
+     * Movement ids grow with time, so only the old movements are read.
+     *
+     * @param utcOffsetMillis offset of the local time zone, days start at local midnight
+     * @return the number of compacted movements
+     */
+    static int compact(SQLiteDatabase db, long now, long utcOffsetMillis) {
+        long cutoff = now - RETENTION_MILLIS;
+        db.beginTransaction();
+        try {
+            // Read in the transaction, so no movement can be added between the read and the delete
+            long firstKeptId;
+            Cursor cursor = db.rawQuery("SELECT " + MovementEntry._ID + " FROM " + MovementEntry.TABLE_NAME
+                    + " WHERE " + MovementEntry.COLUMN_CREATED_AT + " >= ? ORDER BY " + MovementEntry._ID
+                    + " LIMIT 1", new String[]{String.valueOf(cutoff)});
+            try {
+                firstKeptId = cursor.moveToFirst() ? cursor.getLong(0) : Long.MAX_VALUE;
+            } finally {
+                cursor.close();
+            }
+
+            db.execSQL(SQL_ROLL_UP, new Object[]{utcOffsetMillis, firstKeptId});
+            int compacted = db.delete(MovementEntry.TABLE_NAME, MovementEntry._ID + " < ?",
+                    new String[]{String.valueOf(firstKeptId)});
+            db.setTransactionSuccessful();
+            return compacted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary messages of the sync exchange with the back-office server. Every exchange is one POST
+ * of a request, answered by a response.
+ * <p>
+ * Both start with the magic {@code INSY} as a 4-byte int and the protocol version as a varint.
+ * A request follows with the device id, the server revision it has changes up to and the
+ * maximum number of changes to return, then the count and the changes of the device. A
+ * response follows with the revision its changes go up to, a byte that is 1 if more changes
+ * are waiting, the server ids assigned to new products as pairs of local and server id, then
+ * the count and the changes of the server.
+ * <p>
+ * A change is a kind byte and the server id of the product, 0 for a product the server doesn't
+ * know yet. An upsert follows with the local id, the signed quantity, the low-stock threshold,
+ * the name and the SKU. Numbers are varints, signed ones zigzag-encoded, strings are UTF-8
+ * prefixed by their length plus one, so 0 stands for null.
+ * <p>
+ * The quantity of a change sent by a device is the total of all its quantity changes of the
+ * product, the quantity of a change sent by the server is the server quantity. A server adds
+ * the difference to the total it last received from the device for the product, so quantity
+ * changes of several devices add up, and a request retried after a lost response is not
+ * counted twice. For the same reason, it recognizes a product it already assigned an id to by
+ * the device and local id. Changes are applied in order.
+ *
+ * @author Andrey Radionov
+ */
+final class SyncProtocol {
+
+    static final int MAGIC = 0x494E5359;
+    static final int VERSION = 1;
+
+    static final String CONTENT_TYPE = "application/octet-stream";
+
+    static final int KIND_UPSERT = 0;
+    static final int KIND_DELETE = 1;
+
+    private SyncProtocol() {
+    }
+
+    static final class Change {
+        final int mKind;
+        final long mRemoteId;
+        final long mLocalId;
+        final long mQuantity;
+        final int mLowStockThreshold;
+        final String mName;
+        final String mSku;
+
+        private Change(int kind, long remoteId, long localId, long quantity, int lowStockThreshold,
+                       String name, String sku) {
+            mKind = kind;
+            mRemoteId = remoteId;
+            mLocalId = localId;
+            mQuantity = quantity;
+            mLowStockThreshold = lowStockThreshold;
+            mName = name;
+            mSku = sku;
+        }
+
+        static Change upsert(long remoteId, long localId, long quantity, int lowStockThreshold,
+                             String name, String sku) {
+            return new Change(KIND_UPSERT, remoteId, localId, quantity, lowStockThreshold, name, sku);
+        }
+
+        static Change delete(long remoteId) {
+            return new Change(KIND_DELETE, remoteId, 0, 0, 0, null, null);
+        }
+
+        boolean isDelete() {
+            return mKind == KIND_DELETE;
+        }
+    }
+
+    static final class Request {
+        final long mDeviceId;
+        final long mSince;
+        final int mPullLimit;
+        final List<Change> mChanges;
+
+        Request(long deviceId, long since, int pullLimit, List<Change> changes) {
+            mDeviceId = deviceId;
+            mSince = since;
+            mPullLimit = pullLimit;
+            mChanges = changes;
+        }
+    }
+
+    static final class Response {
+        final long mRevision;
+        final boolean mHasMore;
+        final long[] mAssignedLocalIds;
+        final long[] mAssignedRemoteIds;
+        final List<Change> mChanges;
+
+        Response(long revision, boolean hasMore, long[] assignedLocalIds, long[] assignedRemoteIds,
+                 List<Change> changes) {
+            mRevision = revision;
+            mHasMore = hasMore;
+            mAssignedLocalIds = assignedLocalIds;
+            mAssignedRemoteIds = assignedRemoteIds;
+            mChanges = changes;
+        }
+    }
+
+    static byte[] encodeRequest(Request request) {
+        Encoder encoder = new Encoder();
+        encoder.putHeader();
+        encoder.putVarlong(request.mDeviceId);
+        encoder.putVarlong(request.mSince);
+        encoder.putVarlong(request.mPullLimit);
+        encoder.putChanges(request.mChanges);
+        return encoder.toByteArray();
+    }
+
+    static Request decodeRequest(byte[] message) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            checkHeader(buffer);
+            long deviceId = getVarlong(buffer);
+            long since = getVarlong(buffer);
+            int pullLimit = (int) getVarlong(buffer);
+            List<Change> changes = getChanges(buffer);
+            checkEnd(buffer);
+            return new Request(deviceId, since, pullLimit, changes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Sync request is truncated", e);
+        }
+    }
+
+    static byte[] encodeResponse(Response response) {
+        Encoder encoder = new Encoder();
+        encoder.putHeader();
+        encoder.putVarlong(response.mRevision);
+        encoder.putByte(response.mHasMore ? 1 : 0);
+        encoder.putVarlong(response.mAssignedLocalIds.length);
+        for (int i = 0; i < response.mAssignedLocalIds.length; i++) {
+            encoder.putVarlong(response.mAssignedLocalIds[i]);
+            encoder.putVarlong(response.mAssignedRemoteIds[i]);
+        }
+        encoder.putChanges(response.mChanges);
+        return encoder.toByteArray();
+    }
+
+    static Response decodeResponse(byte[] message) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            checkHeader(buffer);
+            long revision = getVarlong(buffer);
+            boolean hasMore = buffer.get() != 0;
+            int assignedCount = getCount(buffer);
+            long[] localIds = new long[assignedCount];
+            long[] remoteIds = new long[assignedCount];
+            for (int i = 0; i < assignedCount; i++) {
+                localIds[i] = getVarlong(buffer);
+                remoteIds[i] = getVarlong(buffer);
+            }
+            List<Change> changes = getChanges(buffer);
+            checkEnd(buffer);
+            return new Response(revision, hasMore, localIds, remoteIds, changes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Sync response is truncated", e);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a sync message");
+        }
+        long version = getVarlong(buffer);
+        if (version != VERSION) {
+            throw new IOException("Unsupported sync protocol version " + version);
+        }
+    }
+
+    private static void checkEnd(ByteBuffer buffer) throws IOException {
+        if (buffer.hasRemaining()) {
+            throw new IOException("Sync message has trailing data");
+        }
+    }
+
+    private static List<Change> getChanges(ByteBuffer buffer) throws IOException {
+        int count = getCount(buffer);
+        List<Change> changes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int kind = buffer.get();
+            long remoteId = getVarlong(buffer);
+            if (kind == KIND_DELETE) {
+                changes.add(Change.delete(remoteId));
+            } else if (kind == KIND_UPSERT) {
+                long localId = getVarlong(buffer);
+                long quantity = getSignedVarlong(buffer);
+                int threshold = (int) getVarlong(buffer);
+                String name = getString(buffer);
+                String sku = getString(buffer);
+                if (name == null) {
+                    throw new IOException("Sync change without a name");
+                }
+                changes.add(Change.upsert(remoteId, localId, quantity, threshold, name, sku));
+            } else {
+                throw new IOException("Unknown sync change kind " + kind);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Reads a count, checking it against the remaining bytes so a corrupt count can't make the
+     * reader allocate for elements that aren't there.
+     */
+    private static int getCount(ByteBuffer buffer) throws IOException {
+        long count = getVarlong(buffer);
+        if (count > buffer.remaining()) {
+            throw new IOException("Sync message is truncated");
+        }
+        return (int) count;
+    }
+
+    static long getVarlong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long getSignedVarlong(ByteBuffer buffer) throws IOException {
+        long value = getVarlong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        long length = getVarlong(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("Sync message is truncated");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) length);
+        return value;
+    }
+
+    /**
+     * Growable buffer the messages are written to.
+     */
+    private static final class Encoder {
+        private byte[] mBytes = new byte[256];
+        private int mLength;
+
+        void putHeader() {
+            ensureCapacity(4);
+            mBytes[mLength++] = (byte) (MAGIC >>> 24);
+            mBytes[mLength++] = (byte) (MAGIC >>> 16);
+            mBytes[mLength++] = (byte) (MAGIC >>> 8);
+            mBytes[mLength++] = (byte) MAGIC;
+            putVarlong(VERSION);
+        }
+
+        void putByte(int value) {
+            ensureCapacity(1);
+            mBytes[mLength++] = (byte) value;
+        }
+
+        void putVarlong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                mBytes[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mLength++] = (byte) value;
+        }
+
+        void putSignedVarlong(long value) {
+            putVarlong((value << 1) ^ (value >> 63));
+        }
+
+        void putString(String value) {
+            if (value == null) {
+                putVarlong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarlong(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+
+        void putChanges(List<Change> changes) {
+            putVarlong(changes.size());
+            for (Change change : changes) {
+                putByte(change.mKind);
+                putVarlong(change.mRemoteId);
+                if (change.isDelete()) {
+                    continue;
+                }
+                putVarlong(change.mLocalId);
+                putSignedVarlong(change.mQuantity);
+                putVarlong(change.mLowStockThreshold);
+                putString(change.mName);
+                putString(change.mSku);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mLength);
+        }
+
+        private void ensureCapacity(int count) {
+            if (mBytes.length - mLength < count) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + count));
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.andyradionov.inventoryapp.metrics;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide registry of {@link OperationMetrics}. Callers look their metrics up once and keep
+ * them in fields, recording is then a handful of atomic increments.
+ * <p>
+ * The registry is printed by {@code adb shell dumpsys activity provider
+ * io.github.andyradionov.inventoryapp/.data.ProductProvider}, append {@code reset} to clear it.
+ *
+ * @author Andrey Radionov
+ */
+public final class Metrics {
+
+    private static final ConcurrentMap<String, OperationMetrics> sOperations = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the metrics of the named operation, created on first use
+     */
+    public static OperationMetrics operation(String name) {
+        OperationMetrics metrics = sOperations.get(name);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics(name);
+            metrics = sOperations.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    public static void reset() {
+        for (OperationMetrics metrics : sOperations.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Prints one line per operation that was recorded at least once, sorted by name. Latencies
+     * are in microseconds.
+     */
+    public static void dump(PrintWriter writer) {
+        List<String> names = new ArrayList<>(sOperations.keySet());
+        Collections.sort(names);
+
+        writer.println(String.format(Locale.US, "%-40s %8s %9s %9s %9s %9s %9s %9s %9s",
+                "operation", "count", "mean_us", "p50_us", "p90_us", "p99_us", "max_us", "rows_avg", "rows_max"));
+        for (String name : names) {
+            OperationMetrics metrics = sOperations.get(name);
+            Histogram latency = metrics.getLatencyNanos();
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            Histogram rows = metrics.getRows();
+            writer.println(String.format(Locale.US, "%-40s %8d %9d %9d %9d %9d %9d %9d %9d",
+                    name,
+                    latency.getCount(),
+                    latency.getMean() / 1000,
+                    latency.getPercentile(0.5) / 1000,
+                    latency.getPercentile(0.9) / 1000,
+                    latency.getPercentile(0.99) / 1000,
+                    latency.getMax() / 1000,
+                    rows.getMean(),
+                    rows.getMax()));
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.andyradionov.inventoryapp.metrics;
+
+/**
+ * Latency and row count distributions of one kind of operation.
+ *
+ * @author Andrey Radionov
+ */
+public final class OperationMetrics {
+
+    private final String mName;
+    private final Histogram mLatencyNanos = new Histogram();
+    private final Histogram mRows = new Histogram();
+
+    OperationMetrics(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records an operation that started at {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void record(long startNanos, long rows) {
+        mLatencyNanos.record(System.nanoTime() - startNanos);
+        mRows.record(rows);
+    }
+
+    public Histogram getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    public Histogram getRows() {
+        return mRows;
+    }
+
+    void reset() {
+        mLatencyNanos.reset();
+        mRows.reset();
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.andyradionov.inventoryapp;
+
+import com.sun.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests of {@link IntFormatter}, the number path of allocation-free row binding. Binding
+ * as a whole is covered by {@link ProductAdapterAllocationTest}.
+ */
+public class IntFormatterTest {
+
+    private static final int ROWS = 100000;
+
+    @Test
+    public void format_matchesStringValueOf() throws Exception {
+        int[] values = {0, 7, 10, 125, 99999, -1, -250, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        char[] buffer = new char[IntFormatter.MAX_LENGTH];
+        for (int value : values) {
+            int length = IntFormatter.format(value, buffer);
+            assertEquals(String.valueOf(value), new String(buffer, 0, length));
+        }
+    }
+
+    @Test
+    public void format_steadyStateAllocatesNothingPerRow() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+        ThreadMXBean allocations = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        char[] idChars = new char[IntFormatter.MAX_LENGTH];
+        char[] quantityChars = new char[IntFormatter.MAX_LENGTH];
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so class loading and compilation don't count as allocations of the scroll
+        int checksum = scroll(idChars, quantityChars);
+        allocations.getThreadAllocatedBytes(threadId);
+
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        checksum += scroll(idChars, quantityChars);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum > 0);
+        // Any object is at least 16 bytes, so less than a byte per row means no per-row garbage
+        assertTrue("Allocated " + allocated + " bytes for " + ROWS + " rows", allocated < ROWS);
+    }
+
+    private static int scroll(char[] idChars, char[] quantityChars) {
+        int checksum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            checksum += IntFormatter.format(i + 1, idChars);
+            checksum += IntFormatter.format(i % 500, quantityChars);
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.andyradionov.inventoryapp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.widget.FrameLayout;
+
+import com.sun.management.ThreadMXBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.management.ManagementFactory;
+
+import io.github.andyradionov.inventoryapp.data.Product;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import io.github.andyradionov.inventoryapp.data.ProductProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Binds {@link ProductAdapter} rows the way a scrolling list does and counts the bytes the
+ * binds allocate on the main thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProductAdapterAllocationTest {
+
+    private static final int ROWS = 2000;
+
+    /**
+     * About as many holders as a RecyclerView keeps for a screen of rows.
+     */
+    private static final int HOLDERS = 12;
+
+    private Cursor mCursor;
+    private ProductAdapter mAdapter;
+    private ProductAdapter.ProductViewHolder[] mHolders;
+
+    @Before
+    public void setUp() throws Exception {
+        ProductProvider provider = Robolectric.buildContentProvider(ProductProvider.class).create().get();
+        ContentValues[] values = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = new ContentValues();
+            values[i].put(ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+            values[i].put(ProductEntry.COLUMN_PRODUCT_QUANTITY, i % 100);
+        }
+        provider.bulkInsert(ProductEntry.CONTENT_URI, values);
+
+        mCursor = provider.query(ProductEntry.CONTENT_URI, ProductEntry.SUMMARY_PROJECTION,
+                null, null, ProductEntry._ID + " ASC");
+        mAdapter = new ProductAdapter(RuntimeEnvironment.application, new ProductAdapter.OnProductItemClickListener() {
+            @Override
+            public void onProductSaleClick(Product product) {
+            }
+
+            @Override
+            public void onProductEditClick(Product product) {
+            }
+
+            @Override
+            public void onProductSelectionChanged(int selectedCount) {
+            }
+        });
+        mAdapter.swapRows(ProductRows.from(mCursor));
+        awaitItemCount(ROWS);
+
+        FrameLayout parent = new FrameLayout(RuntimeEnvironment.application);
+        mHolders = new ProductAdapter.ProductViewHolder[HOLDERS];
+        for (int i = 0; i < HOLDERS; i++) {
+            mHolders[i] = mAdapter.onCreateViewHolder(parent, 0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mCursor.close();
+    }
+
+    @Test
+    public void steadyStateScroll_allocatesNothingPerRow() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+        ThreadMXBean allocations = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so class loading, compilation and the first text of each view don't count
+        scroll();
+        scroll();
+        allocations.getThreadAllocatedBytes(threadId);
+
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        scroll();
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // Any object is at least 16 bytes, so less than a byte per row means no per-row garbage
+        assertTrue("Allocated " + allocated + " bytes for " + ROWS + " rows", allocated < ROWS);
+    }
+
+    /**
+     * Binds every row once, recycling the holders in order as scrolling does.
+     */
+    private void scroll() {
+        for (int i = 0; i < ROWS; i++) {
+            mAdapter.onBindViewHolder(mHolders[i % HOLDERS], i);
+        }
+    }
+
+    /**
+     * Waits for the background snapshot of the swapped cursor and runs the posted dispatch.
+     */
+    private void awaitItemCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mAdapter.getItemCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        assertEquals(count, mAdapter.getItemCount());
+    }
+}
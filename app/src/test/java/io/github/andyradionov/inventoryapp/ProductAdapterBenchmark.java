@@ -0,0 +1,141 @@
+package io.github.andyradionov.inventoryapp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.widget.FrameLayout;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+
+import io.github.andyradionov.inventoryapp.benchmark.Benchmark;
+import io.github.andyradionov.inventoryapp.benchmark.BenchmarkReport;
+import io.github.andyradionov.inventoryapp.data.Product;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import io.github.andyradionov.inventoryapp.data.ProductProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Cost of snapshotting a real products cursor, and of creating and binding
+ * {@link ProductAdapter} rows from the snapshot.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProductAdapterBenchmark {
+
+    private static final int ROWS = 2000;
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("product-adapter");
+
+    private Context mContext;
+    private ProductAdapter mAdapter;
+    private FrameLayout mParent;
+    private Cursor mCursor;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Benchmark.isEnabled());
+        mContext = RuntimeEnvironment.application;
+        mParent = new FrameLayout(mContext);
+
+        ProductProvider provider = Robolectric.buildContentProvider(ProductProvider.class).create().get();
+        ContentValues[] values = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = new ContentValues();
+            values[i].put(ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+            values[i].put(ProductEntry.COLUMN_PRODUCT_QUANTITY, i % 100);
+        }
+        provider.bulkInsert(ProductEntry.CONTENT_URI, values);
+
+        mCursor = provider.query(ProductEntry.CONTENT_URI, ProductEntry.SUMMARY_PROJECTION,
+                null, null, ProductEntry._ID + " ASC");
+        mAdapter = new ProductAdapter(mContext, new ProductAdapter.OnProductItemClickListener() {
+            @Override
+            public void onProductSaleClick(Product product) {
+            }
+
+            @Override
+            public void onProductEditClick(Product product) {
+            }
+
+            @Override
+            public void onProductSelectionChanged(int selectedCount) {
+            }
+        });
+        mAdapter.swapRows(ProductRows.from(mCursor));
+        awaitItemCount(ROWS);
+    }
+
+    @AfterClass
+    public static void writeReport() throws IOException {
+        sReport.write();
+    }
+
+    @After
+    public void tearDown() {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        sReport.add(Benchmark.measure("snapshot-" + ROWS, 3, 10, ROWS, new Benchmark.Workload() {
+            @Override
+            public void run() {
+                ProductRows.from(mCursor);
+            }
+        }));
+        // Ids, quantities and names of about 11 chars each, packed into 4 arrays
+        assertTrue(ProductRows.from(mCursor).getMemoryBytes() < ROWS * 40);
+    }
+
+    @Test
+    public void createViewHolder() throws Exception {
+        final int holders = 200;
+        sReport.add(Benchmark.measure("create-view-holder", 3, 10, holders, new Benchmark.Workload() {
+            @Override
+            public void run() {
+                for (int i = 0; i < holders; i++) {
+                    mAdapter.onCreateViewHolder(mParent, 0);
+                }
+            }
+        }));
+    }
+
+    @Test
+    public void bind() throws Exception {
+        final ProductAdapter.ProductViewHolder holder = mAdapter.onCreateViewHolder(mParent, 0);
+        sReport.add(Benchmark.measure("bind-" + ROWS, 3, 10, ROWS, new Benchmark.Workload() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ROWS; i++) {
+                    mAdapter.onBindViewHolder(holder, i);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Waits for the background diff of the swapped cursor and runs the posted dispatch.
+     */
+    private void awaitItemCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mAdapter.getItemCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        assertEquals(count, mAdapter.getItemCount());
+    }
+}
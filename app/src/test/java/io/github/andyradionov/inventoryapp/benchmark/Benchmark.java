@@ -0,0 +1,56 @@
+package io.github.andyradionov.inventoryapp.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Minimal JMH-style harness: runs warmup iterations, then times each measured iteration
+ * separately and reports per-operation latencies.
+ */
+public final class Benchmark {
+
+    /**
+     * Work measured by a benchmark. Only {@link #run()} is timed.
+     */
+    public abstract static class Workload {
+
+        /**
+         * Prepares the state of one iteration, for example emptying a table.
+         */
+        public void setUp() throws Exception {
+        }
+
+        public abstract void run() throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * @param operationsPerIteration number of operations a single {@link Workload#run()} performs
+     */
+    public static BenchmarkResult measure(String name, int warmupIterations, int measuredIterations,
+                                          int operationsPerIteration, Workload workload) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            workload.setUp();
+            workload.run();
+        }
+
+        long[] nanosPerOperation = new long[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            workload.setUp();
+            long start = System.nanoTime();
+            workload.run();
+            nanosPerOperation[i] = (System.nanoTime() - start) / operationsPerIteration;
+        }
+        Arrays.sort(nanosPerOperation);
+
+        return new BenchmarkResult(name, operationsPerIteration, nanosPerOperation);
+    }
+
+    /**
+     * @return true if benchmarks were requested for this test run
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("inventory.benchmark");
+    }
+}
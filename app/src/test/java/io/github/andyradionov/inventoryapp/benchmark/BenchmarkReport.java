@@ -0,0 +1,49 @@
+package io.github.andyradionov.inventoryapp.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the results of a benchmark suite and writes them as a JSON array to
+ * {@code <inventory.benchmark.output>/<suite>.json}, so runs can be compared by tools.
+ */
+public final class BenchmarkReport {
+
+    private final String mSuite;
+    private final List<BenchmarkResult> mResults = new ArrayList<>();
+
+    public BenchmarkReport(String suite) {
+        mSuite = suite;
+    }
+
+    public void add(BenchmarkResult result) {
+        System.out.println(mSuite + " " + result);
+        mResults.add(result);
+    }
+
+    public void write() throws IOException {
+        if (mResults.isEmpty()) {
+            return;
+        }
+        File directory = new File(System.getProperty("inventory.benchmark.output", "build/benchmarks"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, mSuite + ".json")), "UTF-8");
+        try {
+            writer.write("[\n");
+            for (int i = 0; i < mResults.size(); i++) {
+                writer.write("  " + mResults.get(i).toJson() + (i < mResults.size() - 1 ? ",\n" : "\n"));
+            }
+            writer.write("]\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.andyradionov.inventoryapp.benchmark;
+
+import java.util.Locale;
+
+/**
+ * Per-operation latencies of one benchmark, sorted ascending.
+ */
+public final class BenchmarkResult {
+
+    private final String mName;
+    private final int mOperationsPerIteration;
+    private final long[] mNanosPerOperation;
+
+    BenchmarkResult(String name, int operationsPerIteration, long[] sortedNanosPerOperation) {
+        mName = name;
+        mOperationsPerIteration = operationsPerIteration;
+        mNanosPerOperation = sortedNanosPerOperation;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getMeanNanos() {
+        long sum = 0;
+        for (long nanos : mNanosPerOperation) {
+            sum += nanos;
+        }
+        return sum / mNanosPerOperation.length;
+    }
+
+    public long getPercentileNanos(int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * mNanosPerOperation.length) - 1;
+        return mNanosPerOperation[Math.max(0, index)];
+    }
+
+    public double getOperationsPerSecond() {
+        long mean = getMeanNanos();
+        return mean == 0 ? Double.POSITIVE_INFINITY : 1_000_000_000.0 / mean;
+    }
+
+    String toJson() {
+        return String.format(Locale.US,
+                "{\"name\":\"%s\",\"iterations\":%d,\"operationsPerIteration\":%d,"
+                        + "\"meanNanos\":%d,\"p50Nanos\":%d,\"p90Nanos\":%d,\"maxNanos\":%d,"
+                        + "\"operationsPerSecond\":%.1f}",
+                mName, mNanosPerOperation.length, mOperationsPerIteration,
+                getMeanNanos(), getPercentileNanos(50), getPercentileNanos(90),
+                mNanosPerOperation[mNanosPerOperation.length - 1], getOperationsPerSecond());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d ns/op (p50 %d, p90 %d), %.1f ops/s",
+                mName, getMeanNanos(), getPercentileNanos(50), getPercentileNanos(90),
+                getOperationsPerSecond());
+    }
+}
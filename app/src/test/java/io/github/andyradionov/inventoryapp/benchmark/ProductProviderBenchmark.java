@@ -0,0 +1,331 @@
+package io.github.andyradionov.inventoryapp.benchmark;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract;
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+import io.github.andyradionov.inventoryapp.data.ProductProvider;
+import io.github.andyradionov.inventoryapp.data.ProductSnapshot;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput of {@link ProductProvider} operations against a local SQLite database.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProductProviderBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final int OPERATIONS = 500;
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("product-provider");
+
+    private ProductProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Benchmark.isEnabled());
+        mProvider = Robolectric.buildContentProvider(ProductProvider.class).create().get();
+    }
+
+    @AfterClass
+    public static void writeReport() throws IOException {
+        sReport.write();
+    }
+
+    @Test
+    public void insert() throws Exception {
+        sReport.add(Benchmark.measure("insert", WARMUP_ITERATIONS, MEASURED_ITERATIONS, OPERATIONS,
+                new Benchmark.Workload() {
+                    @Override
+                    public void setUp() {
+                        deleteAll();
+                    }
+
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            mProvider.insert(ProductEntry.CONTENT_URI, product(i));
+                        }
+                    }
+                }));
+    }
+
+    @Test
+    public void update() throws Exception {
+        final long firstId = seed(OPERATIONS);
+        sReport.add(Benchmark.measure("update", WARMUP_ITERATIONS, MEASURED_ITERATIONS, OPERATIONS,
+                new Benchmark.Workload() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            mProvider.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, firstId + i),
+                                    product(i + 1), null, null);
+                        }
+                    }
+                }));
+    }
+
+    @Test
+    public void adjustQuantity() throws Exception {
+        final long firstId = seed(OPERATIONS);
+        final Bundle extras = new Bundle();
+        extras.putInt(ProductContract.EXTRA_QUANTITY_DELTA, 1);
+        sReport.add(Benchmark.measure("adjust-quantity", WARMUP_ITERATIONS, MEASURED_ITERATIONS, OPERATIONS,
+                new Benchmark.Workload() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            mProvider.call(ProductContract.METHOD_ADJUST_QUANTITY,
+                                    String.valueOf(firstId + i), extras);
+                        }
+                    }
+                }));
+    }
+
+    @Test
+    public void adjustQuantities() throws Exception {
+        long firstId = seed(OPERATIONS);
+        long[] ids = new long[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            ids[i] = firstId + i;
+        }
+        final Bundle extras = new Bundle();
+        extras.putLongArray(ProductContract.EXTRA_PRODUCT_IDS, ids);
+        extras.putInt(ProductContract.EXTRA_QUANTITY_DELTA, 1);
+        sReport.add(Benchmark.measure("adjust-quantities", WARMUP_ITERATIONS, MEASURED_ITERATIONS, OPERATIONS,
+                new Benchmark.Workload() {
+                    @Override
+                    public void run() {
+                        mProvider.call(ProductContract.METHOD_ADJUST_QUANTITIES, null, extras);
+                    }
+                }));
+    }
+
+    @Test
+    public void sellSku100k() throws Exception {
+        final int rows = 100000;
+        ContentValues[] values = products(rows);
+        for (int i = 0; i < rows; i++) {
+            values[i].put(ProductEntry.COLUMN_PRODUCT_SKU, sku(i));
+            values[i].put(ProductEntry.COLUMN_PRODUCT_QUANTITY, Integer.MAX_VALUE / 2);
+        }
+        mProvider.bulkInsert(ProductEntry.CONTENT_URI, values);
+        sReport.add(Benchmark.measure("sell-sku-100k", WARMUP_ITERATIONS, MEASURED_ITERATIONS, OPERATIONS,
+                new Benchmark.Workload() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            // Spread over the table, so the lookups don't stay in a few pages
+                            mProvider.call(ProductContract.METHOD_SELL_SKU, sku(i * 197 % rows), null);
+                        }
+                    }
+                }));
+    }
+
+    @Test
+    public void delete() throws Exception {
+        final long[] firstId = new long[1];
+        sReport.add(Benchmark.measure("delete", WARMUP_ITERATIONS, MEASURED_ITERATIONS, OPERATIONS,
+                new Benchmark.Workload() {
+                    @Override
+                    public void setUp() {
+                        deleteAll();
+                        firstId[0] = seed(OPERATIONS);
+                    }
+
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            mProvider.delete(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, firstId[0] + i),
+                                    null, null);
+                        }
+                    }
+                }));
+    }
+
+    @Test
+    public void queryList() throws Exception {
+        final int rows = 10000;
+        seed(rows);
+        sReport.add(Benchmark.measure("query-list-10k", WARMUP_ITERATIONS, MEASURED_ITERATIONS, rows,
+                new Benchmark.Workload() {
+                    @Override
+                    public void run() {
+                        Cursor cursor = mProvider.query(ProductEntry.CONTENT_URI,
+                                new String[]{ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_NAME,
+                                        ProductEntry.COLUMN_PRODUCT_QUANTITY},
+                                null, null, ProductEntry._ID + " ASC");
+                        while (cursor.moveToNext()) {
+                            cursor.getInt(0);
+                            cursor.getString(1);
+                            cursor.getInt(2);
+                        }
+                        cursor.close();
+                    }
+                }));
+    }
+
+    @Test
+    public void countInStock100k() throws Exception {
+        final int rows = 100000;
+        seed(rows);
+        final Uri countUri = ProductEntry.buildCountUri(ProductEntry.FILTER_IN_STOCK, null);
+        sReport.add(Benchmark.measure("count-in-stock-100k", WARMUP_ITERATIONS, MEASURED_ITERATIONS, 1,
+                new Benchmark.Workload() {
+                    @Override
+                    public void run() {
+                        Cursor cursor = mProvider.query(countUri, null, null, null, null);
+                        cursor.moveToFirst();
+                        cursor.getInt(0);
+                        cursor.close();
+                    }
+                }));
+    }
+
+    @Test
+    public void bulkImport1k() throws Exception {
+        measureBulkImport(1000, MEASURED_ITERATIONS);
+    }
+
+    @Test
+    public void bulkImport10k() throws Exception {
+        measureBulkImport(10000, MEASURED_ITERATIONS);
+    }
+
+    @Test
+    public void bulkImport100k() throws Exception {
+        measureBulkImport(100000, 3);
+    }
+
+    private void measureBulkImport(int rows, int iterations) throws Exception {
+        final ContentValues[] values = products(rows);
+        sReport.add(Benchmark.measure("bulk-import-" + rows, 1, iterations, rows,
+                new Benchmark.Workload() {
+                    @Override
+                    public void setUp() {
+                        deleteAll();
+                    }
+
+                    @Override
+                    public void run() {
+                        mProvider.bulkInsert(ProductEntry.CONTENT_URI, values);
+                    }
+                }));
+    }
+
+    @Test
+    public void snapshotBackup100k() throws Exception {
+        final int rows = 100000;
+        seed(rows);
+        final File file = File.createTempFile("products", ".invs");
+        try {
+            sReport.add(Benchmark.measure("snapshot-backup-" + rows, 1, 3, rows,
+                    new Benchmark.Workload() {
+                        @Override
+                        public void run() throws IOException {
+                            FileOutputStream out = new FileOutputStream(file);
+                            try {
+                                ProductSnapshot.write(getContentResolver(), out.getChannel());
+                            } finally {
+                                out.close();
+                            }
+                        }
+                    }));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void snapshotRestore100k() throws Exception {
+        final int rows = 100000;
+        seed(rows);
+        final File file = File.createTempFile("products", ".invs");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                ProductSnapshot.write(getContentResolver(), out.getChannel());
+            } finally {
+                out.close();
+            }
+            sReport.add(Benchmark.measure("snapshot-restore-" + rows, 1, 3, rows,
+                    new Benchmark.Workload() {
+                        @Override
+                        public void run() throws IOException {
+                            ParcelFileDescriptor in = ParcelFileDescriptor.open(file,
+                                    ParcelFileDescriptor.MODE_READ_ONLY);
+                            try {
+                                ProductSnapshot.restore(getContentResolver(), in);
+                            } finally {
+                                in.close();
+                            }
+                        }
+                    }));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ContentResolver getContentResolver() {
+        return RuntimeEnvironment.application.getContentResolver();
+    }
+
+    /**
+     * Inserts products and returns the id of the first one, ids of a bulk insert are consecutive.
+     */
+    private long seed(int count) {
+        mProvider.bulkInsert(ProductEntry.CONTENT_URI, products(count));
+        Cursor cursor = mProvider.query(ProductEntry.CONTENT_URI, new String[]{"MAX(" + ProductEntry._ID + ")"},
+                null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0) - count + 1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deleteAll() {
+        mProvider.delete(ProductContract.withPurge(ProductEntry.CONTENT_URI), null, null);
+    }
+
+    private static ContentValues[] products(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = product(i);
+        }
+        return values;
+    }
+
+    private static String sku(int i) {
+        return String.format(Locale.US, "%013d", 4000000000000L + i);
+    }
+
+    private static ContentValues product(int i) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, i % 100);
+        return values;
+    }
+}
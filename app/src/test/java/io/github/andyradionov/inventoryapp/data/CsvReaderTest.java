@@ -0,0 +1,96 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CsvReaderTest {
+
+    /**
+     * Size of the buffer of {@link CsvReader}.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    @Test
+    public void quotedCommas_stayInTheField() throws IOException {
+        CsvReader reader = reader("a,\"b,c\",d\n");
+
+        assertRecord(reader, "a", "b,c", "d");
+        assertEnd(reader);
+    }
+
+    @Test
+    public void doubledQuotes_areOneQuote() throws IOException {
+        CsvReader reader = reader("\"say \"\"hi\"\"\",1\n\"\"\"\",\"\"");
+
+        assertRecord(reader, "say \"hi\"", "1");
+        assertRecord(reader, "\"", "");
+        assertEnd(reader);
+    }
+
+    @Test
+    public void quotedLineBreaks_stayInTheField() throws IOException {
+        CsvReader reader = reader("\"line 1\r\nline 2\",5\r\nnext,6\r\n");
+
+        assertRecord(reader, "line 1\r\nline 2", "5");
+        assertRecord(reader, "next", "6");
+        assertEnd(reader);
+    }
+
+    @Test
+    public void doubledQuote_splitByTheBuffer() throws IOException {
+        // The first quote of the pair is the last char of the first buffer fill
+        String text = repeat('x', BUFFER_SIZE - 2);
+        CsvReader reader = reader("\"" + text + "\"\"y\",7\nz,8\n");
+
+        assertRecord(reader, text + "\"y", "7");
+        assertRecord(reader, "z", "8");
+        assertEnd(reader);
+    }
+
+    @Test
+    public void crlf_splitByTheBuffer() throws IOException {
+        // The CR is the last char of the first buffer fill, its LF must not end another record
+        String text = repeat('a', BUFFER_SIZE - 2);
+        CsvReader reader = reader(text + ",\r\nb\r\n");
+
+        assertRecord(reader, text, "");
+        assertRecord(reader, "b");
+        assertEnd(reader);
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedQuote_fails() throws IOException {
+        CsvReader reader = reader("a,\"bc\nd,1\n");
+
+        reader.readRecord(new ArrayList<String>());
+    }
+
+    private static CsvReader reader(String csv) {
+        return new CsvReader(new StringReader(csv));
+    }
+
+    private static void assertRecord(CsvReader reader, String... expected) throws IOException {
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList(expected), fields);
+    }
+
+    private static void assertEnd(CsvReader reader) throws IOException {
+        assertFalse(reader.readRecord(new ArrayList<String>()));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
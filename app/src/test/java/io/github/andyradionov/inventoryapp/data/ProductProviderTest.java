@@ -0,0 +1,88 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProductProviderTest {
+
+    private ProductProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(ProductProvider.class).create().get();
+    }
+
+    @Test
+    public void batchWithAFailingInsert_storesNothing() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(ProductEntry.CONTENT_URI)
+                .withValues(product("Tea", 10, "TEA-1")).build());
+        // The SKU is taken by the first insert of the batch
+        operations.add(ContentProviderOperation.newInsert(ProductEntry.CONTENT_URI)
+                .withValues(product("Green tea", 5, "TEA-1")).build());
+
+        try {
+            mProvider.applyBatch(operations);
+            fail("Applied a batch with a duplicate SKU");
+        } catch (SQLiteConstraintException expected) {
+        }
+        assertEquals(0, getProductCount());
+    }
+
+    @Test
+    public void bulkInsertWithAConflictingRow_storesNothing() {
+        mProvider.insert(ProductEntry.CONTENT_URI, product("Tea", 10, "TEA-1"));
+
+        try {
+            mProvider.bulkInsert(ProductEntry.CONTENT_URI, new ContentValues[]{
+                    product("Coffee", 5, "COFFEE-1"), product("Green tea", 5, "TEA-1")});
+            fail("Inserted a product with a taken SKU");
+        } catch (SQLiteConstraintException expected) {
+        }
+        assertEquals(1, getProductCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adjustQuantityWithoutExtras_isRejected() {
+        mProvider.call(ProductContract.METHOD_ADJUST_QUANTITY, "1", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void undeleteWithoutIds_isRejected() {
+        mProvider.call(ProductContract.METHOD_UNDELETE, null, new Bundle());
+    }
+
+    private int getProductCount() {
+        Cursor cursor = mProvider.query(ProductEntry.CONTENT_URI, new String[]{ProductEntry._ID},
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues product(String name, int quantity, String sku) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductEntry.COLUMN_PRODUCT_SKU, sku);
+        return values;
+    }
+}
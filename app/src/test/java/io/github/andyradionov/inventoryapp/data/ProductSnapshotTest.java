@@ -0,0 +1,161 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.*;
+
+/**
+ * Restores {@link ProductSnapshot} files through {@link ProductProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProductSnapshotTest {
+
+    private ProductProvider mProvider;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mProvider = Robolectric.buildContentProvider(ProductProvider.class).create().get();
+        mFile = File.createTempFile("products", ".invs");
+        mProvider.bulkInsert(ProductEntry.CONTENT_URI, new ContentValues[]{
+                product("Tea", 10), product("Coffee", 5)});
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void restore_replacesAllProducts() throws Exception {
+        writeSnapshot(ids(ProductSnapshot.RESTORE_BATCH_SIZE + 10));
+
+        assertEquals(ProductSnapshot.RESTORE_BATCH_SIZE + 10,
+                restore().getLong(ProductContract.EXTRA_RESTORED_COUNT));
+        List<String> names = getNames();
+        assertEquals(ProductSnapshot.RESTORE_BATCH_SIZE + 10, names.size());
+        assertFalse(names.contains("Tea"));
+    }
+
+    @Test
+    public void failedInsert_keepsTheOldProducts() throws Exception {
+        // Id 1 again in the second batch, so the restore fails after a whole batch was inserted
+        int[] ids = ids(ProductSnapshot.RESTORE_BATCH_SIZE + 10);
+        ids[ids.length - 1] = 1;
+        writeSnapshot(ids);
+
+        try {
+            restore();
+            fail("Restored a snapshot with a duplicate id");
+        } catch (SQLiteConstraintException expected) {
+        }
+        assertEquals(Arrays.asList("Coffee", "Tea"), getNames());
+    }
+
+    @Test
+    public void corruptSnapshot_keepsTheOldProducts() throws Exception {
+        writeSnapshot(ids(3));
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write(0);
+        out.close();
+
+        assertNotNull(restore().getString(ProductContract.EXTRA_RESTORE_ERROR));
+        assertEquals(Arrays.asList("Coffee", "Tea"), getNames());
+    }
+
+    private Bundle restore() throws IOException {
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(ProductContract.EXTRA_SNAPSHOT, descriptor);
+            return mProvider.call(ProductContract.METHOD_RESTORE_SNAPSHOT, null, extras);
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot of products named after their ids, each with one unit, no SKU and never
+     * synced.
+     */
+    private void writeSnapshot(int[] ids) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * ids.length + 64);
+        buffer.putInt(ProductSnapshot.MAGIC).putInt(ProductSnapshot.VERSION);
+        for (int id : ids) {
+            char[] name = ("Product " + id).toCharArray();
+            int nameLength = ProductSnapshot.utf8Length(name, name.length);
+            ProductSnapshot.putVarint(buffer, ProductSnapshot.varintLength(id) + 1 + 1 + 3 + nameLength);
+            ProductSnapshot.putVarint(buffer, id);
+            ProductSnapshot.putVarint(buffer, 1);
+            // No SKU, no server id, synced quantity and pushed delta 0
+            ProductSnapshot.putVarint(buffer, 0);
+            ProductSnapshot.putVarlong(buffer, 0);
+            ProductSnapshot.putVarint(buffer, 0);
+            ProductSnapshot.putVarint(buffer, 0);
+            ProductSnapshot.putUtf8(buffer, name, name.length);
+        }
+        buffer.put((byte) 0);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, buffer.position() - 8);
+        buffer.putLong(ids.length).putInt((int) crc.getValue());
+
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(buffer.array(), 0, buffer.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    private List<String> getNames() {
+        Cursor cursor = mProvider.query(ProductEntry.CONTENT_URI,
+                new String[]{ProductEntry.COLUMN_PRODUCT_NAME}, null, null,
+                ProductEntry.COLUMN_PRODUCT_NAME + " ASC");
+        List<String> names = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private static int[] ids(int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    private static ContentValues product(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        return values;
+    }
+}
@@ -0,0 +1,355 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.ProductEntry;
+
+import static org.junit.Assert.*;
+
+/**
+ * Syncs {@link ProductProvider} with a {@link SyncTestServer} on a local port.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProductSyncTest {
+
+    private SyncTestServer mServer;
+    private ProductProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = SyncTestServer.start();
+        mProvider = Robolectric.buildContentProvider(ProductProvider.class).create().get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+    }
+
+    @Test
+    public void newProducts_areSentOnceAndGetServerIds() throws Exception {
+        long tea = insert("Tea", 10);
+        long coffee = insert("Coffee", 5);
+
+        assertEquals(2, sync().getInt(ProductContract.EXTRA_SYNC_PUSHED));
+        assertEquals(2, mServer.getProductCount());
+        assertEquals(10, mServer.getProduct(getRemoteId(tea)).mQuantity);
+        assertEquals("Coffee", mServer.getProduct(getRemoteId(coffee)).mName);
+
+        assertEquals(0, sync().getInt(ProductContract.EXTRA_SYNC_PUSHED));
+        assertEquals(0, mServer.getLastChangeCount());
+        assertEquals(2, mServer.getProductCount());
+    }
+
+    @Test
+    public void onlyChangedProducts_areSent() throws Exception {
+        ContentValues[] values = new ContentValues[1200];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = product("Product " + i, i % 100);
+        }
+        mProvider.bulkInsert(ProductEntry.CONTENT_URI, values);
+
+        assertEquals(1200, sync().getInt(ProductContract.EXTRA_SYNC_PUSHED));
+        assertEquals(3, mServer.getRequestCount());
+
+        long id = insert("Tea", 10);
+        sync();
+        adjustQuantity(id, -1);
+        Bundle result = sync();
+        assertEquals(1, result.getInt(ProductContract.EXTRA_SYNC_PUSHED));
+        assertEquals(1, mServer.getLastChangeCount());
+        assertEquals(9, mServer.getProduct(getRemoteId(id)).mQuantity);
+    }
+
+    @Test
+    public void quantityChanges_ofAllDevicesAddUp() throws Exception {
+        long id = insert("Tea", 10);
+        sync();
+        long remoteId = getRemoteId(id);
+
+        mServer.adjustQuantity(remoteId, -3);
+        adjustQuantity(id, -2);
+        sync();
+
+        assertEquals(5, getQuantity(id));
+        assertEquals(5, mServer.getProduct(remoteId).mQuantity);
+    }
+
+    @Test
+    public void retriedSync_doesNotCountChangesTwice() throws Exception {
+        long id = insert("Tea", 10);
+        sync();
+        long remoteId = getRemoteId(id);
+
+        adjustQuantity(id, -1);
+        mServer.failNextResponse();
+        Bundle failed = mProvider.call(ProductContract.METHOD_SYNC, mServer.getUrl(), null);
+        assertTrue(failed.containsKey(ProductContract.EXTRA_SYNC_ERROR));
+        assertEquals(9, mServer.getProduct(remoteId).mQuantity);
+
+        sync();
+        assertEquals(9, mServer.getProduct(remoteId).mQuantity);
+        assertEquals(9, getQuantity(id));
+    }
+
+    @Test
+    public void deletes_areSyncedBothWays() throws Exception {
+        long tea = insert("Tea", 10);
+        long coffee = insert("Coffee", 5);
+        sync();
+        long teaRemoteId = getRemoteId(tea);
+        long coffeeRemoteId = getRemoteId(coffee);
+        // Never synced, so there is nothing to tell the server
+        long notSynced = insert("Cocoa", 1);
+        delete(notSynced);
+
+        delete(tea);
+        assertEquals(1, sync().getInt(ProductContract.EXTRA_SYNC_PUSHED));
+        assertNull(mServer.getProduct(teaRemoteId));
+
+        mServer.delete(coffeeRemoteId);
+        assertEquals(1, sync().getInt(ProductContract.EXTRA_SYNC_PULLED));
+        assertEquals(-1, getQuantity(coffee));
+        assertEquals(0, mServer.getProductCount());
+    }
+
+    @Test
+    public void undoneDeletes_keepProductsOnServer() throws Exception {
+        long tea = insert("Tea", 10);
+        long coffee = insert("Coffee", 5);
+        sync();
+        long teaRemoteId = getRemoteId(tea);
+        long coffeeRemoteId = getRemoteId(coffee);
+
+        // Undone before the delete was sent
+        delete(tea);
+        undelete(tea);
+        sync();
+        assertEquals(teaRemoteId, getRemoteId(tea));
+        assertEquals(10, mServer.getProduct(teaRemoteId).mQuantity);
+
+        // Undone after the server deleted it, so it is sent again as a new product
+        delete(coffee);
+        sync();
+        assertNull(mServer.getProduct(coffeeRemoteId));
+        undelete(coffee);
+        sync();
+        assertNotEquals(coffeeRemoteId, getRemoteId(coffee));
+        assertEquals(5, mServer.getProduct(getRemoteId(coffee)).mQuantity);
+        assertEquals(5, getQuantity(coffee));
+        assertEquals(2, mServer.getProductCount());
+    }
+
+    @Test
+    public void serverNames_areOnlyTakenForProductsWithoutLocalChanges() throws Exception {
+        long id = insert("Tea", 10);
+        sync();
+        long remoteId = getRemoteId(id);
+
+        mServer.rename(remoteId, "Green tea");
+        sync();
+        assertEquals("Green tea", getName(id));
+
+        mServer.rename(remoteId, "Black tea");
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "White tea");
+        mProvider.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id), values, null, null);
+        sync();
+        assertEquals("White tea", getName(id));
+        assertEquals("White tea", mServer.getProduct(remoteId).mName);
+    }
+
+    @Test
+    public void editsOfProductsChangedSinceRead_fail() throws Exception {
+        long id = insert("Tea", 10);
+        sync();
+        long remoteId = getRemoteId(id);
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "White tea");
+
+        // Synced changes keep the version, only the update time tells them apart
+        Uri readBeforeSync = readForEdit(id);
+        Thread.sleep(2);
+        mServer.rename(remoteId, "Green tea");
+        sync();
+        assertEquals(0, mProvider.update(readBeforeSync, values, null, null));
+        assertEquals("Green tea", getName(id));
+
+        Uri readBeforeSale = readForEdit(id);
+        adjustQuantity(id, -1);
+        assertEquals(0, mProvider.update(readBeforeSale, values, null, null));
+        assertEquals("Green tea", getName(id));
+
+        assertEquals(1, mProvider.update(readForEdit(id), values, null, null));
+        assertEquals("White tea", getName(id));
+        assertEquals(9, getQuantity(id));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void expectedVersionWithoutUpdateTime_isRejected() {
+        long id = insert("Tea", 10);
+        Uri uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id).buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_EXPECTED_VERSION, "1")
+                .build();
+
+        mProvider.update(uri, product("White tea", 10), null, null);
+    }
+
+    @Test
+    public void restoredProducts_keepTheirServerIds() throws Exception {
+        long tea = insert("Tea", 10);
+        long coffee = insert("Coffee", 5);
+        sync();
+        long teaRemoteId = getRemoteId(tea);
+        long coffeeRemoteId = getRemoteId(coffee);
+        File snapshot = File.createTempFile("products", ".invs");
+        try {
+            backup(snapshot);
+            adjustQuantity(tea, -3);
+            long cake = insert("Cake", 2);
+            sync();
+            long cakeRemoteId = getRemoteId(cake);
+
+            restore(snapshot);
+            assertEquals(teaRemoteId, getRemoteId(tea));
+            assertEquals(-1, getQuantity(cake));
+            sync();
+
+            // Nothing but the product missing from the snapshot is deleted or created again
+            assertEquals(2, mServer.getProductCount());
+            assertEquals(10, mServer.getProduct(teaRemoteId).mQuantity);
+            assertEquals(5, mServer.getProduct(coffeeRemoteId).mQuantity);
+            assertNull(mServer.getProduct(cakeRemoteId));
+            assertEquals(10, getQuantity(tea));
+            assertEquals(0, sync().getInt(ProductContract.EXTRA_SYNC_PUSHED));
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    private Bundle sync() {
+        Bundle result = mProvider.call(ProductContract.METHOD_SYNC, mServer.getUrl(), null);
+        assertFalse(result.getString(ProductContract.EXTRA_SYNC_ERROR),
+                result.containsKey(ProductContract.EXTRA_SYNC_ERROR));
+        return result;
+    }
+
+    private void backup(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            ProductSnapshot.write(RuntimeEnvironment.application.getContentResolver(), out.getChannel());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void restore(File file) throws IOException {
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(ProductContract.EXTRA_SNAPSHOT, descriptor);
+            Bundle result = mProvider.call(ProductContract.METHOD_RESTORE_SNAPSHOT, null, extras);
+            assertFalse(result.containsKey(ProductContract.EXTRA_RESTORE_ERROR));
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    private long insert(String name, int quantity) {
+        return ContentUris.parseId(mProvider.insert(ProductEntry.CONTENT_URI, product(name, quantity)));
+    }
+
+    private void delete(long id) {
+        mProvider.delete(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id), null, null);
+    }
+
+    private void undelete(long id) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductContract.EXTRA_PRODUCT_IDS, new long[]{id});
+        Bundle result = mProvider.call(ProductContract.METHOD_UNDELETE, null, extras);
+        assertEquals(1, result.getInt(ProductContract.EXTRA_ADJUSTED_COUNT));
+    }
+
+    private void adjustQuantity(long id, int delta) {
+        Bundle extras = new Bundle();
+        extras.putInt(ProductContract.EXTRA_QUANTITY_DELTA, delta);
+        mProvider.call(ProductContract.METHOD_ADJUST_QUANTITY, String.valueOf(id), extras);
+    }
+
+    /**
+     * @return the item URI of the product for an update that fails if it changes from now on
+     */
+    private Uri readForEdit(long id) {
+        Uri uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+        Cursor cursor = mProvider.query(uri, new String[]{ProductEntry.COLUMN_PRODUCT_VERSION,
+                ProductEntry.COLUMN_PRODUCT_UPDATED_AT}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return ProductContract.withExpectedChange(uri, cursor.getLong(0), cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getRemoteId(long id) {
+        Cursor cursor = queryProduct(id, ProductEntry.COLUMN_PRODUCT_REMOTE_ID);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertFalse(cursor.isNull(0));
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the quantity, or -1 if the product doesn't exist
+     */
+    private long getQuantity(long id) {
+        Cursor cursor = queryProduct(id, ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getName(long id) {
+        Cursor cursor = queryProduct(id, ProductEntry.COLUMN_PRODUCT_NAME);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryProduct(long id, String column) {
+        Uri uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+        return mProvider.query(uri, new String[]{column}, null, null, null);
+    }
+
+    private static ContentValues product(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        return values;
+    }
+}
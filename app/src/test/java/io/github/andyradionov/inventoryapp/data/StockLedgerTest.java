@@ -0,0 +1,74 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import io.github.andyradionov.inventoryapp.data.ProductContract.DailyStockEntry;
+import io.github.andyradionov.inventoryapp.data.ProductContract.MovementEntry;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class StockLedgerTest {
+
+    private static final long PRODUCT_ID = 7;
+
+    /**
+     * Noon of a day, in UTC like the compactions of this test.
+     */
+    private static final long DAY_NOON = 20000 * 24 * 60 * 60 * 1000L + 12 * 60 * 60 * 1000L;
+
+    private static final long NOW = DAY_NOON + StockLedger.RETENTION_MILLIS + 24 * 60 * 60 * 1000L;
+
+    private ProductDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new ProductDbHelper(RuntimeEnvironment.application, null);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void compactingTwiceOverOneDay_addsUpTheTotals() {
+        StockLedger.record(mDatabase, PRODUCT_ID, 10, MovementEntry.REASON_OTHER, DAY_NOON);
+        StockLedger.record(mDatabase, PRODUCT_ID, -2, MovementEntry.REASON_SALE, DAY_NOON + 1000);
+        StockLedger.record(mDatabase, PRODUCT_ID, -1, MovementEntry.REASON_SALE, DAY_NOON + 2000);
+        assertEquals(3, StockLedger.compact(mDatabase, NOW, 0));
+
+        // Late movements of the same day, as a sync could record them
+        StockLedger.record(mDatabase, PRODUCT_ID, -3, MovementEntry.REASON_SALE, DAY_NOON + 3000);
+        StockLedger.record(mDatabase, PRODUCT_ID, 5, MovementEntry.REASON_SYNC, DAY_NOON + 4000);
+        // Within the retention period, kept as is
+        StockLedger.record(mDatabase, PRODUCT_ID, -4, MovementEntry.REASON_SALE, NOW);
+        assertEquals(2, StockLedger.compact(mDatabase, NOW, 0));
+
+        Cursor cursor = mDatabase.query(DailyStockEntry.TABLE_NAME, new String[]{
+                DailyStockEntry.COLUMN_PRODUCT_ID, DailyStockEntry.COLUMN_DELTA,
+                DailyStockEntry.COLUMN_SOLD, DailyStockEntry.COLUMN_MOVEMENT_COUNT}, null, null, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(PRODUCT_ID, cursor.getLong(0));
+            assertEquals(10 - 2 - 1 - 3 + 5, cursor.getInt(1));
+            assertEquals(2 + 1 + 3, cursor.getInt(2));
+            assertEquals(5, cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDatabase, MovementEntry.TABLE_NAME));
+    }
+}
@@ -0,0 +1,243 @@
+package io.github.andyradionov.inventoryapp.data;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for the back-office server, speaking {@link SyncProtocol} over HTTP on a
+ * local port. Changes of other devices are simulated by editing its products directly.
+ */
+class SyncTestServer {
+
+    static final class ServerProduct {
+        final long mId;
+        String mName;
+        long mQuantity;
+        int mLowStockThreshold;
+        String mSku;
+        long mRevision;
+        boolean mDeleted;
+
+        ServerProduct(long id) {
+            mId = id;
+        }
+    }
+
+    private final HttpServer mServer;
+
+    private final Map<Long, ServerProduct> mProducts = new HashMap<>();
+
+    /**
+     * Server ids of new products by device and local id.
+     */
+    private final Map<String, Long> mAssignedIds = new HashMap<>();
+
+    /**
+     * Quantity totals last received by device and server id.
+     */
+    private final Map<String, Long> mTotals = new HashMap<>();
+
+    private long mRevision;
+    private long mNextId = 1;
+    private int mRequestCount;
+    private int mLastChangeCount;
+    private boolean mFailNextResponse;
+
+    private SyncTestServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/sync", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] response = handleRequest(readFully(exchange.getRequestBody()));
+                    if (takeFailure()) {
+                        // The changes are applied, but the device never hears about it
+                        exchange.sendResponseHeaders(500, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, response.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    static SyncTestServer start() throws IOException {
+        return new SyncTestServer();
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/sync";
+    }
+
+    synchronized ServerProduct getProduct(long id) {
+        ServerProduct product = mProducts.get(id);
+        return product == null || product.mDeleted ? null : product;
+    }
+
+    synchronized int getProductCount() {
+        int count = 0;
+        for (ServerProduct product : mProducts.values()) {
+            if (!product.mDeleted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return the number of changes sent with the last request
+     */
+    synchronized int getLastChangeCount() {
+        return mLastChangeCount;
+    }
+
+    synchronized void failNextResponse() {
+        mFailNextResponse = true;
+    }
+
+    /**
+     * Changes a product as another device would.
+     */
+    synchronized void adjustQuantity(long id, long delta) {
+        ServerProduct product = mProducts.get(id);
+        product.mQuantity += delta;
+        product.mRevision = ++mRevision;
+    }
+
+    synchronized void rename(long id, String name) {
+        ServerProduct product = mProducts.get(id);
+        product.mName = name;
+        product.mRevision = ++mRevision;
+    }
+
+    synchronized void delete(long id) {
+        ServerProduct product = mProducts.get(id);
+        product.mDeleted = true;
+        product.mRevision = ++mRevision;
+    }
+
+    private synchronized boolean takeFailure() {
+        boolean fail = mFailNextResponse;
+        mFailNextResponse = false;
+        return fail;
+    }
+
+    private synchronized byte[] handleRequest(byte[] message) throws IOException {
+        SyncProtocol.Request request = SyncProtocol.decodeRequest(message);
+        mRequestCount++;
+        mLastChangeCount = request.mChanges.size();
+
+        List<Long> assignedLocalIds = new ArrayList<>();
+        List<Long> assignedRemoteIds = new ArrayList<>();
+        for (SyncProtocol.Change change : request.mChanges) {
+            if (change.isDelete()) {
+                ServerProduct product = mProducts.get(change.mRemoteId);
+                if (product != null && !product.mDeleted) {
+                    product.mDeleted = true;
+                    product.mRevision = ++mRevision;
+                }
+                continue;
+            }
+
+            ServerProduct product;
+            if (change.mRemoteId != 0) {
+                product = mProducts.get(change.mRemoteId);
+                if (product == null || product.mDeleted) {
+                    // Deleted by another device, the device receives the delete
+                    continue;
+                }
+            } else {
+                String key = request.mDeviceId + ":" + change.mLocalId;
+                Long assignedId = mAssignedIds.get(key);
+                product = assignedId == null ? null : mProducts.get(assignedId);
+                if (product == null || product.mDeleted) {
+                    product = new ServerProduct(mNextId++);
+                    mProducts.put(product.mId, product);
+                    mAssignedIds.put(key, product.mId);
+                }
+                assignedLocalIds.add(change.mLocalId);
+                assignedRemoteIds.add(product.mId);
+            }
+
+            String totalKey = request.mDeviceId + ":" + product.mId;
+            Long lastTotal = mTotals.get(totalKey);
+            product.mQuantity += change.mQuantity - (lastTotal == null ? 0 : lastTotal);
+            mTotals.put(totalKey, change.mQuantity);
+            product.mName = change.mName;
+            product.mLowStockThreshold = change.mLowStockThreshold;
+            product.mSku = change.mSku;
+            product.mRevision = ++mRevision;
+        }
+
+        List<ServerProduct> changed = new ArrayList<>();
+        for (ServerProduct product : mProducts.values()) {
+            if (product.mRevision > request.mSince) {
+                changed.add(product);
+            }
+        }
+        Collections.sort(changed, new Comparator<ServerProduct>() {
+            @Override
+            public int compare(ServerProduct a, ServerProduct b) {
+                return Long.compare(a.mRevision, b.mRevision);
+            }
+        });
+        boolean hasMore = changed.size() > request.mPullLimit;
+        if (hasMore) {
+            changed = changed.subList(0, request.mPullLimit);
+        }
+        List<SyncProtocol.Change> changes = new ArrayList<>(changed.size());
+        for (ServerProduct product : changed) {
+            changes.add(product.mDeleted ? SyncProtocol.Change.delete(product.mId)
+                    : SyncProtocol.Change.upsert(product.mId, 0, product.mQuantity,
+                    product.mLowStockThreshold, product.mName, product.mSku));
+        }
+        long revision = changed.isEmpty() ? request.mSince : changed.get(changed.size() - 1).mRevision;
+
+        return SyncProtocol.encodeResponse(new SyncProtocol.Response(revision, hasMore,
+                toArray(assignedLocalIds), toArray(assignedRemoteIds), changes));
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        for (int length = in.read(chunk); length != -1; length = in.read(chunk)) {
+            bytes.write(chunk, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.andyradionov.inventoryapp.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+
+    @Test
+    public void percentiles_areBucketUpperBounds() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        // 50 falls into [32, 63], 90 and 99 into [64, 127] which is capped by the max
+        assertEquals(63, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.9));
+        assertEquals(100, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void zeroAndNegativeValues_fallIntoFirstBucket() {
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+        histogram.record(-5);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+}